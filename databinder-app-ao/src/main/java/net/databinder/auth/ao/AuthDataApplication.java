@@ -1,7 +1,6 @@
 package net.databinder.auth.ao;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 
 import javax.servlet.http.HttpServletRequest;
@@ -12,6 +11,8 @@ import net.databinder.auth.AuthApplication;
 import net.databinder.auth.AuthSession;
 import net.databinder.auth.components.ao.DataSignInPage;
 import net.databinder.auth.data.DataUser;
+import net.databinder.auth.data.DigestPasswordHasher;
+import net.databinder.auth.data.PasswordHasher;
 import net.java.ao.Query;
 import net.java.ao.RawEntity;
 
@@ -33,6 +34,8 @@ import org.apache.wicket.util.crypt.Base64UrlSafe;
 
 /** Optional base class for ActiveObjects applications using Databinder authentication. */
 public abstract class AuthDataApplication extends DataApplication implements IUnauthorizedComponentInstantiationListener, IRoleCheckingStrategy, AuthApplication {
+
+	private volatile DigestPasswordHasher digestHasher;
 	
 	/**
 	 * Internal initialization. Client applications should not normally override
@@ -117,16 +120,20 @@ public abstract class AuthDataApplication extends DataApplication implements IUn
 	}
 	
 	/**
-	 * @return app-salted MessageDigest.  
+	 * @return app-salted MessageDigest, copied from a salted prototype.
 	 */
 	public MessageDigest getDigest() {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA");
-			digest.update(getSalt());
-			return digest;
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("SHA Hash algorithm not found.", e);
-		}
+		return getPasswordHasher().newDigest();
+	}
+	
+	/**
+	 * UserHelper stores raw digest bytes, so passwords are always hashed with the app-salted digest.
+	 * @return app-salted SHA hasher
+	 */
+	public DigestPasswordHasher getPasswordHasher() {
+		if (digestHasher == null)
+			digestHasher = new DigestPasswordHasher(getSalt());
+		return digestHasher;
 	}
 	
 	/**
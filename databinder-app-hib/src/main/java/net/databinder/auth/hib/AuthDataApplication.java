@@ -19,14 +19,20 @@
 package net.databinder.auth.hib;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import javax.servlet.http.HttpServletRequest;
 
 import net.databinder.auth.AuthApplication;
+import net.databinder.auth.AuthDataSessionBase;
 import net.databinder.auth.AuthSession;
+import net.databinder.auth.UserVersions;
+import net.databinder.auth.components.RSAKeyService;
 import net.databinder.auth.components.hib.DataSignInPage;
+import net.databinder.auth.data.DataPrincipal;
 import net.databinder.auth.data.DataUser;
+import net.databinder.auth.data.DigestPasswordHasher;
+import net.databinder.auth.data.PasswordHasher;
+import net.databinder.auth.data.RoleRegistry;
 import net.databinder.hib.DataApplication;
 import net.databinder.hib.Databinder;
 
@@ -65,6 +71,9 @@ import org.hibernate.criterion.Restrictions;
 public abstract class AuthDataApplication extends DataApplication
 implements IUnauthorizedComponentInstantiationListener, IRoleCheckingStrategy, AuthApplication<DataUser> {
 
+	private volatile DigestPasswordHasher digestHasher;
+	private volatile PasswordHasher passwordHasher;
+
 	/**
 	 * Internal initialization. Client applications should not normally override
 	 * or call this method.
@@ -77,11 +86,26 @@ implements IUnauthorizedComponentInstantiationListener, IRoleCheckingStrategy, A
 
 	/**
 	 * Sets Wicket's security strategy for role authorization and appoints this
-	 * object as the unauthorized instatiation listener. Called automatically on start-up.
+	 * object as the unauthorized instatiation listener. Registers the application's roles,
+	 * and starts generating the RSA key for sign-in forms so the first form need not wait
+	 * for it. Called automatically on start-up.
 	 */
 	protected void authInit() {
 		getSecuritySettings().setAuthorizationStrategy(new RoleAuthorizationStrategy(this));
 		getSecuritySettings().setUnauthorizedComponentInstantiationListener(this);
+		RoleRegistry.set(this, newRoleRegistry());
+		RSAKeyService.get(this);
+	}
+
+	/**
+	 * Roles numbered for role checks from session snapshots and for users storing role
+	 * bits. Override to register the application's other roles, appending new roles
+	 * so that stored bits keep their meaning.
+	 * @return registry of Roles.USER and Roles.ADMIN
+	 * @see net.databinder.auth.data.RoleBitsUser
+	 */
+	protected RoleRegistry newRoleRegistry() {
+		return new RoleRegistry(Roles.USER, Roles.ADMIN);
 	}
 
 	/**
@@ -93,12 +117,15 @@ implements IUnauthorizedComponentInstantiationListener, IRoleCheckingStrategy, A
 		return new AuthDataSession<DataUser>(request);
 	}
 	/**
-	 * Adds to the configuration whatever DataUser class is defined.
+	 * Adds to the configuration whatever DataUser class is defined, and a listener
+	 * invalidating principal snapshots of users that change.
+	 * @see UserChangeListener
 	 */
 	@Override
 	protected void configureHibernate(AnnotationConfiguration config) {
 		super.configureHibernate(config);
 		config.addAnnotatedClass(getUserClass());
+		UserChangeListener.register(config, UserVersions.get(this));
 	}
 
 	/**
@@ -114,10 +141,22 @@ implements IUnauthorizedComponentInstantiationListener, IRoleCheckingStrategy, A
 	}
 
 	/**
-	 * Passes query on to the DataUser object if signed in.
+	 * Answers from the session's principal snapshot where possible, otherwise passes
+	 * query on to the DataUser object if signed in.
+	 * @see AuthDataSessionBase#getPrincipal()
 	 */
 	public final boolean hasAnyRole(Roles roles) {
-		DataUser user = ((AuthSession<?>)Session.get()).getUser();
+		Session session = Session.get();
+		if (session instanceof AuthDataSessionBase) {
+			DataPrincipal principal = ((AuthDataSessionBase<?>) session).getPrincipal();
+			if (principal == null)
+				return false;
+			if (principal.hasAnyRole(roles))
+				return true;
+			if (principal.isChecked(roles))
+				return false;
+		}
+		DataUser user = ((AuthSession<?>)session).getUser();
 		if (user != null)
 			for (String role : roles)
 				if (user.hasRole(role))
@@ -144,16 +183,36 @@ implements IUnauthorizedComponentInstantiationListener, IRoleCheckingStrategy, A
 	}
 
 	/**
-	 * @return app-salted MessageDigest.
+	 * @return app-salted MessageDigest, copied from a salted prototype.
 	 */
 	public MessageDigest getDigest() {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA");
-			digest.update(getSalt());
-			return digest;
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("SHA Hash algorithm not found.", e);
-		}
+		return getDigestHasher().newDigest();
+	}
+
+	/** @return app-salted SHA hasher, the original password format */
+	protected DigestPasswordHasher getDigestHasher() {
+		if (digestHasher == null)
+			digestHasher = new DigestPasswordHasher(getSalt());
+		return digestHasher;
+	}
+
+	/** @return hasher created by newPasswordHasher() */
+	public PasswordHasher getPasswordHasher() {
+		if (passwordHasher == null)
+			passwordHasher = newPasswordHasher();
+		return passwordHasher;
+	}
+
+	/**
+	 * Override to hash new passwords with a stronger function, while accepting existing
+	 * hashes until users next sign in:
+	 * <pre>
+	 * return new VersionedPasswordHasher(new Pbkdf2PasswordHasher(20000), getDigestHasher());
+	 * </pre>
+	 * @return the app-salted SHA hasher, for compatibility with stored passwords
+	 */
+	protected PasswordHasher newPasswordHasher() {
+		return getDigestHasher();
 	}
 
 	/**
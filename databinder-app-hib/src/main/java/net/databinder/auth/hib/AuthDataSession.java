@@ -27,6 +27,7 @@ package net.databinder.auth.hib;
  */
 import net.databinder.auth.AuthDataSessionBase;
 import net.databinder.auth.data.DataUser;
+import net.databinder.hib.Databinder;
 import net.databinder.models.hib.HibernateObjectModel;
 
 import org.apache.wicket.model.IModel;
@@ -50,4 +51,10 @@ public class AuthDataSession<T extends DataUser> extends AuthDataSessionBase<T>
 		return new HibernateObjectModel<T>(user);
 	}
 
+	/** Commits the current transaction to store the new password hash. */
+	@Override
+	protected void onPasswordRehashed(T user) {
+		Databinder.getHibernateSession().getTransaction().commit();
+	}
+
 }
@@ -0,0 +1,112 @@
+package net.databinder.auth.hib;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import net.databinder.auth.UserVersions;
+import net.databinder.auth.data.DataUser;
+import net.databinder.hib.EventListenerArrays;
+
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.AbstractCollectionEvent;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PostCollectionRecreateEvent;
+import org.hibernate.event.PostCollectionRecreateEventListener;
+import org.hibernate.event.PostCollectionRemoveEvent;
+import org.hibernate.event.PostCollectionRemoveEventListener;
+import org.hibernate.event.PostCollectionUpdateEvent;
+import org.hibernate.event.PostCollectionUpdateEventListener;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+
+/**
+ * Records committed updates and deletes of DataUser entities in {@link UserVersions},
+ * invalidating the principal snapshots held by sessions of those users. If the user
+ * has a "username" property, its previous value is also recorded when it changes.
+ * Changes to collections owned by a user, such as its roles, are recorded when their
+ * transaction commits, since they need not update the user's own row.
+ * Registered by AuthDataApplication.
+ */
+public class UserChangeListener implements PostUpdateEventListener, PostDeleteEventListener,
+		PostCollectionUpdateEventListener, PostCollectionRecreateEventListener, PostCollectionRemoveEventListener {
+	private static final long serialVersionUID = 1L;
+
+	/** Name of the username property, as queried by AuthDataApplication.getUser(). */
+	public static final String USERNAME_PROPERTY = "username";
+
+	private final UserVersions versions;
+
+	/**
+	 * @param versions versions to update
+	 */
+	public UserChangeListener(UserVersions versions) {
+		this.versions = versions;
+	}
+
+	/**
+	 * Adds a listener to the configuration's post-commit listeners, retaining existing listeners.
+	 * @param config configuration to add listener to
+	 * @param versions versions to update
+	 */
+	public static void register(Configuration config, UserVersions versions) {
+		UserChangeListener listener = new UserChangeListener(versions);
+		EventListeners listeners = config.getEventListeners();
+		listeners.setPostCommitUpdateEventListeners(EventListenerArrays.append(listeners.getPostCommitUpdateEventListeners(), listener));
+		listeners.setPostCommitDeleteEventListeners(EventListenerArrays.append(listeners.getPostCommitDeleteEventListeners(), listener));
+		listeners.setPostCollectionUpdateEventListeners(EventListenerArrays.append(listeners.getPostCollectionUpdateEventListeners(), listener));
+		listeners.setPostCollectionRecreateEventListeners(EventListenerArrays.append(listeners.getPostCollectionRecreateEventListeners(), listener));
+		listeners.setPostCollectionRemoveEventListeners(EventListenerArrays.append(listeners.getPostCollectionRemoveEventListeners(), listener));
+	}
+
+	public void onPostUpdate(PostUpdateEvent event) {
+		if (!(event.getEntity() instanceof DataUser))
+			return;
+		String username = ((DataUser) event.getEntity()).getUsername();
+		versions.changed(username);
+		Integer index = event.getPersister().getEntityMetamodel().getPropertyIndexOrNull(USERNAME_PROPERTY);
+		if (index != null && event.getOldState() != null) {
+			Object old = event.getOldState()[index];
+			if (old instanceof String && !old.equals(username))
+				versions.changed((String) old);
+		}
+	}
+
+	public void onPostDelete(PostDeleteEvent event) {
+		if (event.getEntity() instanceof DataUser)
+			versions.changed(((DataUser) event.getEntity()).getUsername());
+	}
+
+	public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+		collectionChanged(event);
+	}
+
+	public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+		collectionChanged(event);
+	}
+
+	public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+		collectionChanged(event);
+	}
+
+	/** Records a change to a user's collection once its transaction commits, or now if there is none. */
+	private void collectionChanged(AbstractCollectionEvent event) {
+		if (!(event.getAffectedOwnerOrNull() instanceof DataUser))
+			return;
+		final String username = ((DataUser) event.getAffectedOwnerOrNull()).getUsername();
+		Transaction tx = event.getSession().getTransaction();
+		if (tx == null || !tx.isActive()) {
+			versions.changed(username);
+			return;
+		}
+		tx.registerSynchronization(new Synchronization() {
+			public void beforeCompletion() { }
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED)
+					versions.changed(username);
+			}
+		});
+	}
+}
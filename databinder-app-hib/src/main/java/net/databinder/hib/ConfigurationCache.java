@@ -0,0 +1,293 @@
+package net.databinder.hib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.databinder.components.PrivateFiles;
+
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.annotations.reflection.EJB3ReflectionManager;
+import org.hibernate.event.EventListeners;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local disk cache of annotation configurations with their mappings built, so that
+ * annotation scanning and binding can be skipped when an application starts again. Each
+ * entry is stored with a fingerprint of the Hibernate version, the configuration's
+ * "hibernate." properties, and the name, size, and modification time of everything on the
+ * application's classpath; it is used only while that fingerprint matches. Mappings must
+ * therefore be determined by those alone. A cached configuration takes its properties and
+ * event listeners from the new configuration it stands in for. Failure to read or write
+ * an entry is logged and treated as a miss.
+ * <p>Entries are deserialized, so the directory must be dedicated to the cache and private
+ * to the user running the application. "hibernate.connection." properties, including the
+ * password, are left out of entries and fingerprints. The directory and entries are made
+ * accessible only to their owner where the runtime allows (Java 6 and later), and entries
+ * are read only if they and the directory are owned by the user running the application.
+ * Ownership can only be determined on Java 7 and later; on earlier runtimes the cache is
+ * not used.</p>
+ * @see DataApplication#getConfigurationCache()
+ */
+public class ConfigurationCache {
+	private static final Logger log = LoggerFactory.getLogger(ConfigurationCache.class);
+
+	/** Prefix of properties left out of entries and fingerprints, such as the password. */
+	private static final String CONNECTION_PREFIX = "hibernate.connection.";
+
+	private final File directory;
+	private final ClassLoader loader;
+
+	/**
+	 * @param directory where entries are stored, private to the application's user; created
+	 * as needed
+	 * @param loader loader of the application's classes
+	 */
+	public ConfigurationCache(File directory, ClassLoader loader) {
+		this.directory = directory;
+		this.loader = loader;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param config configuration with properties set and classes added
+	 * @return digest identifying the mappings the configuration would build
+	 */
+	public String fingerprint(AnnotationConfiguration config) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, Environment.VERSION);
+		Map<String, String> props = new TreeMap<String, String>();
+		for (Map.Entry<Object, Object> e : config.getProperties().entrySet())
+			if (String.valueOf(e.getKey()).startsWith("hibernate.") && !isConnectionProperty(e.getKey()))
+				props.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+		update(digest, props.toString());
+		for (File file : getClasspath()) {
+			update(digest, file.getPath());
+			fingerprint(digest, file, "");
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		return hex.toString();
+	}
+
+	private static boolean isConnectionProperty(Object key) {
+		return String.valueOf(key).startsWith(CONNECTION_PREFIX);
+	}
+
+	/** Digests the name, size, and modification time of a file or each file in a directory. */
+	private void fingerprint(MessageDigest digest, File file, String path) {
+		if (file.isDirectory()) {
+			String[] names = file.list();
+			if (names == null)
+				return;
+			Arrays.sort(names);
+			for (String name : names)
+				fingerprint(digest, new File(file, name), path + "/" + name);
+		} else
+			update(digest, path + ":" + file.length() + ":" + file.lastModified());
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			digest.update(value.getBytes("UTF-8"));
+			digest.update((byte) 0);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** @return files of the loader and its parents, and of the java.class.path property */
+	private Set<File> getClasspath() {
+		Set<File> files = new LinkedHashSet<File>();
+		for (ClassLoader l = loader; l != null; l = l.getParent())
+			if (l instanceof URLClassLoader)
+				for (URL url : ((URLClassLoader) l).getURLs())
+					if ("file".equals(url.getProtocol()))
+						try {
+							files.add(new File(url.toURI()));
+						} catch (URISyntaxException e) {
+							files.add(new File(url.getPath()));
+						}
+		for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator))
+			if (path.length() > 0)
+				files.add(new File(path).getAbsoluteFile());
+		return files;
+	}
+
+	/**
+	 * @param key session factory key; the default key is null
+	 * @return file of the cache entry for the key
+	 */
+	protected File getFile(Object key) {
+		String name = key == null ? "default" : key.toString().replaceAll("[^\\w.-]", "_");
+		return new File(directory, name + ".cfg.ser");
+	}
+
+	/**
+	 * @param key session factory key; the default key is null
+	 * @param fingerprint fingerprint of the new configuration
+	 * @param config new configuration, with properties set and classes added
+	 * @return cached configuration with config's properties and event listeners, or null if
+	 * there is no entry for the fingerprint or it is not owned by the application's user
+	 */
+	public AnnotationConfiguration load(Object key, String fingerprint, AnnotationConfiguration config) {
+		File file = getFile(key);
+		if (!file.isFile())
+			return null;
+		if (!PrivateFiles.isOwnedByUser(directory) || !PrivateFiles.isOwnedByUser(file)) {
+			log.warn("Not reading cached configuration " + file + ": it or its directory is not owned by "
+					+ System.getProperty("user.name") + ", or ownership cannot be determined on this runtime");
+			return null;
+		}
+		try {
+			ObjectInputStream in = new LoaderObjectInputStream(new BufferedInputStream(new FileInputStream(file)), loader);
+			AnnotationConfiguration cached;
+			try {
+				if (!fingerprint.equals(in.readUTF()))
+					return null;
+				cached = (AnnotationConfiguration) in.readObject();
+			} finally {
+				in.close();
+			}
+			// not serialized; only used for binding, which is already done
+			Field reflectionManager = AnnotationConfiguration.class.getDeclaredField("reflectionManager");
+			reflectionManager.setAccessible(true);
+			reflectionManager.set(cached, new EJB3ReflectionManager());
+			cached.setProperties(config.getProperties());
+			cached.setInterceptor(config.getInterceptor());
+			copyListeners(config.getEventListeners(), cached.getEventListeners());
+			return cached;
+		} catch (Exception e) {
+			log.warn("Unable to read cached configuration " + file, e);
+			remove(key);
+			return null;
+		}
+	}
+
+	/** Copies each type of listener with matching getter and setter. */
+	private static void copyListeners(EventListeners from, EventListeners to) throws Exception {
+		for (Method getter : EventListeners.class.getMethods())
+			if (getter.getName().startsWith("get") && getter.getName().endsWith("EventListeners")
+					&& getter.getParameterTypes().length == 0)
+				try {
+					EventListeners.class.getMethod("set" + getter.getName().substring(3), getter.getReturnType())
+						.invoke(to, getter.invoke(from));
+				} catch (NoSuchMethodException e) { }
+	}
+
+	/**
+	 * Stores the configuration, with default event listeners since the application's may
+	 * not be serializable, and without connection properties.
+	 * @param key session factory key; the default key is null
+	 * @param fingerprint fingerprint of the configuration as it was before mappings were built
+	 * @param config configuration with mappings built
+	 */
+	public void store(Object key, String fingerprint, AnnotationConfiguration config) {
+		File file = getFile(key);
+		File temp = null;
+		try {
+			directory.mkdirs();
+			if (!PrivateFiles.isOwnedByUser(directory)) {
+				log.warn("Not caching configuration in " + directory + ": it is not owned by "
+						+ System.getProperty("user.name") + ", or ownership cannot be determined on this runtime");
+				return;
+			}
+			PrivateFiles.restrict(directory);
+			temp = File.createTempFile(file.getName(), null, directory);
+			PrivateFiles.restrict(temp);
+			ObjectOutputStream out = new EntryOutputStream(new BufferedOutputStream(new FileOutputStream(temp)),
+					config.getProperties());
+			try {
+				out.writeUTF(fingerprint);
+				out.writeObject(config);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			temp = null;
+		} catch (Exception e) {
+			log.warn("Unable to cache configuration in " + file, e);
+		} finally {
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	/** Removes any entry for the key, as when its configuration failed to build. */
+	public void remove(Object key) {
+		getFile(key).delete();
+	}
+
+	/** Writes entries with default event listeners and without connection properties. */
+	private static class EntryOutputStream extends ObjectOutputStream {
+		private final Properties properties;
+		EntryOutputStream(OutputStream out, Properties properties) throws IOException {
+			super(out);
+			this.properties = properties;
+			enableReplaceObject(true);
+		}
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj instanceof EventListeners)
+				return new EventListeners();
+			if (obj == properties) {
+				Properties kept = new Properties();
+				for (Map.Entry<Object, Object> e : properties.entrySet())
+					if (!isConnectionProperty(e.getKey()))
+						kept.put(e.getKey(), e.getValue());
+				return kept;
+			}
+			return obj;
+		}
+	}
+
+	private static class LoaderObjectInputStream extends ObjectInputStream {
+		private final ClassLoader loader;
+		LoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+			super(in);
+			this.loader = loader;
+		}
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			if (loader != null)
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				} catch (ClassNotFoundException e) { }
+			return super.resolveClass(desc);
+		}
+	}
+}
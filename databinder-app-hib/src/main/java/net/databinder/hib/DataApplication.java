@@ -19,15 +19,37 @@
 
 package net.databinder.hib;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import net.databinder.DataApplicationBase;
 import net.databinder.components.hib.DataBrowser;
+import net.databinder.hib.pool.C3P0ConnectionPool;
+import net.databinder.hib.pool.ConnectionPool;
+import net.databinder.hib.pool.PoolConnectionProvider;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
 import org.apache.wicket.WicketRuntimeException;
+import org.hibernate.HibernateException;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.hibernate.tool.hbm2ddl.SchemaUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Optional Databinder base Application class for configuration and session management.
@@ -36,21 +58,27 @@ import org.hibernate.cfg.AnnotationConfiguration;
  */
 public abstract class DataApplication extends DataApplicationBase implements HibernateApplication {
 
+	private static final Logger log = LoggerFactory.getLogger(DataApplication.class);
+
 	/** App-wide session factories */
 	private HashMap<Object, SessionFactory> hibernateSessionFactories = new HashMap<Object, SessionFactory>();
-
+	/** Connection pools of session factories using PoolConnectionProvider */
+	private HashMap<Object, ConnectionPool> connectionPools = new HashMap<Object, ConnectionPool>();
+	/** Schema updates still running, by session factory key */
+	private final HashMap<Object, Future<?>> schemaUpdates = new HashMap<Object, Future<?>>();
+	private volatile boolean schemaUpdatesPending;
 
 	/**
-	 * Initializes a default Hibernate session factory and mounts a page for
-	 * the data browser. This is called automatically during start-up. Applications
-	 * with one session factory will not normally need to override this method;
-	 * see related methods to override specific tasks.
-	 * @see #buildHibernateSessionFactory(Object) aoe
+	 * Initializes Hibernate session factories for getSessionFactoryKeys() and mounts a
+	 * page for the data browser. This is called automatically during start-up. Applications
+	 * will not normally need to override this method; see related methods to override
+	 * specific tasks.
+	 * @see #buildHibernateSessionFactories(Object...)
 	 * @see #mountDataBrowser()
 	 */
 	@Override
   protected void dataInit() {
-		buildHibernateSessionFactory(null);
+		buildHibernateSessionFactories(getSessionFactoryKeys());
 		if (isDataBrowserAllowed())
 			mountDataBrowser();
 		getRequestCycleListeners().add(new DataRequestCycleListener());
@@ -76,6 +104,66 @@ public abstract class DataApplication extends DataApplicationBase implements Hib
 		mountPage("/dbrowse", BmarkDataBrowser.class);
 	}
 
+	/**
+	 * Keys of the session factories to build at start-up. Override to return the keys
+	 * of all an application's factories, rather than building them one by one.
+	 * @return array holding only the default key, null
+	 */
+	protected Object[] getSessionFactoryKeys() {
+		return new Object[] { null };
+	}
+
+	/**
+	 * Builds session factories for the keys at once, each on its own thread, returning
+	 * when all are built. Configuration methods are called with this application set
+	 * on the thread.
+	 * @param keys session factory keys
+	 * @throws RuntimeException first failure to build a session factory
+	 * @see #buildHibernateSessionFactory(Object)
+	 */
+	public void buildHibernateSessionFactories(Object... keys) {
+		if (keys.length < 2) {
+			for (Object key : keys)
+				buildHibernateSessionFactory(key);
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(keys.length, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Session factory build");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<?>> builds = new ArrayList<Future<?>>();
+			for (final Object key : keys)
+				builds.add(executor.submit(new Runnable() {
+					public void run() {
+						ThreadContext.setApplication(DataApplication.this);
+						try {
+							buildHibernateSessionFactory(key);
+						} finally {
+							ThreadContext.detach();
+						}
+					}
+				}));
+			for (Future<?> build : builds)
+				build.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WicketRuntimeException("Interrupted while building session factories", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new WicketRuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	/**
 	 * Called by init to create Hibernate session factory and load a configuration. Passes
 	 * an empty new AnnotationConfiguration to buildHibernateSessionFactory(key, config) by
@@ -88,16 +176,176 @@ public abstract class DataApplication extends DataApplicationBase implements Hib
 
 	/**
 	 * Builds and	a session factory with the given configuration. Passes config
-	 * through configureHibernate methods.
+	 * through configureHibernate methods. If the configuration uses PoolConnectionProvider,
+	 * a pool from newConnectionPool(key) is supplied to it and registered with JMX.
+	 * Mappings are taken from the configuration cache, if any, when it has them for an identical
+	 * configuration, and stored there otherwise. An hbm2ddl "update" is deferred if
+	 * isSchemaUpdateDeferred() is true.
 	 * @param key session factory key; the default key is null
 	 * @param config annotation conifuration
 	 * @see #configureHibernateEssentials(AnnotationConfiguration)
 	 * @see #configureHibernate(AnnotationConfiguration, Object)
+	 * @see #newConnectionPool(Object)
+	 * @see #getConfigurationCache()
 	 */
 	final public void buildHibernateSessionFactory(Object key, AnnotationConfiguration config) {
 		configureHibernateEssentials(config);
 		configureHibernate(config, key);
-		setHibernateSessionFactory(key, config.buildSessionFactory());
+		boolean deferUpdate = "update".equals(config.getProperty(Environment.HBM2DDL_AUTO))
+			&& isSchemaUpdateDeferred();
+		if (deferUpdate)
+			config.getProperties().remove(Environment.HBM2DDL_AUTO);
+		ConnectionPool pool = null;
+		String poolId = null;
+		if (PoolConnectionProvider.class.getName().equals(config.getProperty(Environment.CONNECTION_PROVIDER))) {
+			pool = newConnectionPool(key);
+			poolId = PoolConnectionProvider.register(pool);
+			config.setProperty(PoolConnectionProvider.POOL_ID, poolId);
+		}
+		AnnotationConfiguration built = config;
+		SessionFactory sf;
+		try {
+			ConfigurationCache cache = getConfigurationCache();
+			if (cache != null) {
+				String fingerprint = cache.fingerprint(config);
+				built = cache.load(key, fingerprint, config);
+				if (built == null) {
+					built = config;
+					config.buildMappings();
+					cache.store(key, fingerprint, config);
+				}
+			}
+			try {
+				sf = built.buildSessionFactory();
+			} catch (RuntimeException e) {
+				if (built == config)
+					throw e;
+				log.warn("Unable to build session factory from cached configuration", e);
+				cache.remove(key);
+				built = config;
+				// the failed build may have started the pool
+				if (pool != null)
+					pool.close();
+				sf = config.buildSessionFactory();
+			}
+		} catch (RuntimeException e) {
+			if (pool != null) {
+				PoolConnectionProvider.unregister(poolId);
+				pool.close();
+			}
+			throw e;
+		}
+		setHibernateSessionFactory(key, sf);
+		if (deferUpdate)
+			updateSchemaLater(key, built);
+		if (pool != null) {
+			synchronized (connectionPools) {
+				connectionPools.put(key, pool);
+			}
+			try {
+				pool.registerMBean(new ObjectName("net.databinder:type=ConnectionPool,application="
+						+ ObjectName.quote(getName()) + ",key=" + ObjectName.quote(String.valueOf(key))));
+			} catch (MalformedObjectNameException e) {
+				log.warn("Unable to name connection pool for JMX", e);
+			}
+		}
+	}
+
+	/**
+	 * Cache of built configurations, reused when the classpath and Hibernate properties
+	 * are unchanged. None by default; override to return a cache in a directory private
+	 * to the application's user, such as
+	 * <code>new ConfigurationCache(new File(dataDir, "hibernate"), getClass().getClassLoader())</code>,
+	 * where mappings depend on nothing else.
+	 * @return cache of built configurations, or null to build every configuration
+	 */
+	protected ConfigurationCache getConfigurationCache() {
+		return null;
+	}
+
+	/**
+	 * By default, an hbm2ddl "update" runs on its own thread after the session factory is
+	 * built, and getHibernateSessionFactory() waits for it to finish. Override to return
+	 * false to have Hibernate update the schema while building the session factory.
+	 * @return true
+	 */
+	protected boolean isSchemaUpdateDeferred() {
+		return true;
+	}
+
+	/**
+	 * Runs the schema update on a new thread. A pooled configuration is given its own
+	 * connections, as closing the pool's provider would close the pool.
+	 */
+	private void updateSchemaLater(final Object key, final AnnotationConfiguration config) {
+		final Properties props = new Properties();
+		props.putAll(config.getProperties());
+		if (PoolConnectionProvider.class.getName().equals(props.getProperty(Environment.CONNECTION_PROVIDER)))
+			props.setProperty(Environment.CONNECTION_PROVIDER, DriverManagerConnectionProvider.class.getName());
+		FutureTask<Void> update = new FutureTask<Void>(new Runnable() {
+			public void run() {
+				try {
+					SchemaUpdate update = new SchemaUpdate(config, props);
+					update.execute(false, true);
+					if (!update.getExceptions().isEmpty())
+						log.warn(update.getExceptions().size() + " error(s) updating schema for session factory " + key);
+				} catch (HibernateException e) {
+					log.error("Unable to update schema for session factory " + key, e);
+				}
+			}
+		}, null) {
+			@Override
+			protected void done() {
+				synchronized (schemaUpdates) {
+					if (schemaUpdates.get(key) == this)
+						schemaUpdates.remove(key);
+					schemaUpdatesPending = !schemaUpdates.isEmpty();
+				}
+			}
+		};
+		synchronized (schemaUpdates) {
+			schemaUpdates.put(key, update);
+			schemaUpdatesPending = true;
+		}
+		Thread thread = new Thread(update, "Schema update");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Waits for any schema update of the keyed session factory to finish. */
+	private void awaitSchemaUpdate(Object key) {
+		Future<?> update;
+		synchronized (schemaUpdates) {
+			update = schemaUpdates.get(key);
+		}
+		if (update != null)
+			try {
+				update.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// logged by the update
+			}
+	}
+
+	/**
+	 * Creates the connection pool for a session factory configured with PoolConnectionProvider,
+	 * as it is by default for deployment. The pool is configured from Hibernate properties
+	 * when the session factory is built.
+	 * @param key session factory key; the default key is null
+	 * @return new C3P0 pool
+	 * @see ConnectionPool
+	 */
+	protected ConnectionPool newConnectionPool(Object key) {
+		return new C3P0ConnectionPool();
+	}
+
+	/**
+	 * @param key object, or null for the default factory
+	 * @return pool of the session factory, or null if it does not use PoolConnectionProvider
+	 */
+	public ConnectionPool getConnectionPool(Object key) {
+		return connectionPools.get(key);
 	}
 
 	/**
@@ -127,18 +375,17 @@ public abstract class DataApplication extends DataApplicationBase implements Hib
 	 * but don't forget to call this super-implementation if you want its defaults.
 	 * When running in development the session factory is set for
 	 * hbm2ddl auto-updating to create and add columns to tables
-	 * as required. For deployment it is configured for C3P0 connection pooling.
+	 * as required. For deployment it is configured for pooled connections, by default
+	 * twenty; set "hibernate.connection.pool_size" to change this.
 	 * @param config used to build Hibernate session factory
+	 * @see ConnectionPool
 	 */
 	protected	void configureHibernate(AnnotationConfiguration config) {
 			if (isDevelopment())
 				config.setProperty("hibernate.hbm2ddl.auto", "update");
 			else {
 				config
-					.setProperty("hibernate.connection.provider_class", "org.hibernate.connection.C3P0ConnectionProvider")
-					.setProperty("hibernate.c3p0.max_size", "20")
-					.setProperty("hibernate.c3p0.timeout","3000")
-					.setProperty("hibernate.c3p0.idle_test_period", "300");
+					.setProperty("hibernate.connection.provider_class", PoolConnectionProvider.class.getName());
 			}
 	}
 
@@ -147,6 +394,8 @@ public abstract class DataApplication extends DataApplicationBase implements Hib
 	 * @return the retained session factory
 	 */
 	public SessionFactory getHibernateSessionFactory(Object key) {
+		if (schemaUpdatesPending)
+			awaitSchemaUpdate(key);
 		SessionFactory sf = hibernateSessionFactories.get(key);
 		if (sf == null)
 			if (key == null)
@@ -162,7 +411,21 @@ public abstract class DataApplication extends DataApplicationBase implements Hib
 	 * @param sf session factory to retain
 	 */
 	protected void setHibernateSessionFactory(Object key, SessionFactory sf) {
-		hibernateSessionFactories.put(key, sf);
+		synchronized (hibernateSessionFactories) {
+			hibernateSessionFactories.put(key, sf);
+		}
+	}
+
+	/** Closes session factories and their connection pools. */
+	@Override
+	protected void onDestroy() {
+		for (SessionFactory sf : hibernateSessionFactories.values())
+			try {
+				sf.close();
+			} catch (HibernateException e) {
+				log.warn("Unable to close session factory", e);
+			}
+		super.onDestroy();
 	}
 
 	/**
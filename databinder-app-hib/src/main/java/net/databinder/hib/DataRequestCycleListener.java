@@ -25,6 +25,9 @@ package net.databinder.hib;
 
 import java.util.HashSet;
 
+import net.databinder.hib.pool.ConnectionPool;
+
+import org.apache.wicket.Application;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -85,15 +88,24 @@ public class DataRequestCycleListener implements net.databinder.models.DataReque
 	/**
 	 * Closes all Hibernate sessions opened for this request. If a transaction has
 	 * not been committed, it will be rolled back before closing the session.
+	 * Connections from pooled session factories that are still held afterwards are
+	 * reported as leaks.
 	 * @see net.databinder.components.hib.DataForm#onSubmit()
+	 * @see ConnectionPool#checkLeases()
 	 */
 	public void onEndRequest(RequestCycle cycle) {
+		Application app = Application.get();
 		for (Object key : keys) {
 			SessionFactory sf = Databinder.getHibernateSessionFactory(key);
 			if (ManagedSessionContext.hasBind(sf)) {
 				closeSession(key);
 				ManagedSessionContext.unbind(sf);
 			}
+			if (app instanceof DataApplication) {
+				ConnectionPool pool = ((DataApplication) app).getConnectionPool(key);
+				if (pool != null)
+					pool.checkLeases();
+			}
 		}
 	}
 
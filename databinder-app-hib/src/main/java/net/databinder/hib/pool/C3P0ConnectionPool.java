@@ -0,0 +1,154 @@
+package net.databinder.hib.pool;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * C3P0 connection pool, the default for deployment. Idle connections are tested every
+ * five minutes. Settings for Hibernate's own C3P0 provider are honored: max_size, min_size,
+ * and timeout as described in ConnectionPool, hibernate.c3p0.max_statements,
+ * acquire_increment, and idle_test_period, and "hibernate.c3p0." followed by the name of
+ * any other C3P0 property, such as hibernate.c3p0.preferredTestQuery. Other settings with
+ * that prefix are logged and ignored.
+ */
+public class C3P0ConnectionPool extends ConnectionPool {
+	private static final Logger log = LoggerFactory.getLogger(C3P0ConnectionPool.class);
+
+	private static final String C3P0_PREFIX = "hibernate.c3p0.";
+	/** C3P0 properties of Hibernate's named settings not already read by ConnectionPool. */
+	private static final Map<String, String> C3P0_SETTINGS = new HashMap<String, String>();
+	static {
+		C3P0_SETTINGS.put(Environment.C3P0_MAX_STATEMENTS, "maxStatements");
+		C3P0_SETTINGS.put(Environment.C3P0_ACQUIRE_INCREMENT, "acquireIncrement");
+		C3P0_SETTINGS.put(Environment.C3P0_IDLE_TEST_PERIOD, "idleConnectionTestPeriod");
+		C3P0_SETTINGS.put(Environment.C3P0_MAX_SIZE, null);
+		C3P0_SETTINGS.put(Environment.C3P0_MIN_SIZE, null);
+		C3P0_SETTINGS.put(Environment.C3P0_TIMEOUT, null);
+	}
+
+	private ComboPooledDataSource dataSource;
+
+	@Override
+	protected void start(Properties props) throws SQLException {
+		dataSource = new ComboPooledDataSource();
+		String driver = props.getProperty(Environment.DRIVER);
+		if (driver != null)
+			try {
+				dataSource.setDriverClass(driver);
+			} catch (PropertyVetoException e) {
+				throw new SQLException("JDBC driver not found: " + driver);
+			}
+		dataSource.setJdbcUrl(props.getProperty(Environment.URL));
+		dataSource.setProperties(ConnectionProviderFactory.getConnectionProperties(props));
+		if (props.getProperty(Environment.USER) != null)
+			dataSource.setUser(props.getProperty(Environment.USER));
+		if (props.getProperty(Environment.PASS) != null)
+			dataSource.setPassword(props.getProperty(Environment.PASS));
+		dataSource.setMaxPoolSize(getMaxSize());
+		dataSource.setMinPoolSize(getMinSize());
+		dataSource.setInitialPoolSize(getMinSize());
+		dataSource.setCheckoutTimeout(getCheckoutTimeout());
+		dataSource.setMaxIdleTime(getIdleTimeout());
+		dataSource.setIdleConnectionTestPeriod(300);
+		applyC3P0Settings(props);
+	}
+
+	/** Sets C3P0 properties from "hibernate.c3p0." settings. */
+	private void applyC3P0Settings(Properties props) throws SQLException {
+		Map<String, PropertyDescriptor> properties = new HashMap<String, PropertyDescriptor>();
+		try {
+			BeanInfo info = Introspector.getBeanInfo(ComboPooledDataSource.class);
+			for (PropertyDescriptor pd : info.getPropertyDescriptors())
+				if (pd.getWriteMethod() != null)
+					properties.put(pd.getName(), pd);
+		} catch (IntrospectionException e) {
+			throw new SQLException("Unable to inspect C3P0 properties: " + e.getMessage());
+		}
+		for (Object k : props.keySet()) {
+			String key = String.valueOf(k);
+			if (!key.startsWith(C3P0_PREFIX))
+				continue;
+			String name = C3P0_SETTINGS.containsKey(key) ? C3P0_SETTINGS.get(key)
+					: key.substring(C3P0_PREFIX.length());
+			if (name == null)
+				continue;
+			PropertyDescriptor pd = properties.get(name);
+			Object value = null;
+			try {
+				value = pd == null ? null : convert(props.getProperty(key), pd.getPropertyType());
+				if (value != null)
+					pd.getWriteMethod().invoke(dataSource, value);
+			} catch (Exception e) {
+				log.warn("Unable to apply " + key, e);
+				continue;
+			}
+			if (value == null)
+				log.warn("Ignoring " + key + ", which is not a settable C3P0 property");
+		}
+	}
+
+	/** @return value converted to an int, long, boolean or String property, or null if another type */
+	private static Object convert(String value, Class<?> type) {
+		if (type == String.class)
+			return value;
+		if (type == int.class)
+			return Integer.valueOf(value.trim());
+		if (type == long.class)
+			return Long.valueOf(value.trim());
+		if (type == boolean.class)
+			return Boolean.valueOf(value.trim());
+		return null;
+	}
+
+	@Override
+	protected Connection acquire() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	@Override
+	protected void stop() throws SQLException {
+		if (dataSource != null) {
+			dataSource.close();
+			dataSource = null;
+		}
+	}
+
+	public int getActiveConnections() {
+		try {
+			return dataSource.getNumBusyConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	public int getIdleConnections() {
+		try {
+			return dataSource.getNumIdleConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	public int getPendingThreads() {
+		try {
+			return dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package net.databinder.hib.pool;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.util.PropertiesHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection pool of a session factory, plugged into Hibernate by {@link PoolConnectionProvider}.
+ * Subclasses adapt a pooling library; this class reads common settings from the Hibernate
+ * configuration, times checkouts, and tracks which thread holds each connection so that
+ * connections not returned by the end of a request can be reported as leaks. Settings:
+ * <pre>
+ * hibernate.connection.pool_size      maximum connections, default 20
+ * databinder.pool.min_size            connections kept open, default 1
+ * databinder.pool.checkout_timeout    milliseconds to wait for a connection, default 30000
+ * databinder.pool.idle_timeout        seconds before closing an idle connection, default 3000
+ * databinder.pool.leak_threshold      milliseconds a connection may be held, default 60000</pre>
+ * As with other Hibernate properties these may be set in hibernate.properties, as system
+ * properties, or on the configuration. Where the first, second, or fourth is not set,
+ * hibernate.c3p0.max_size, min_size, or timeout is used as it would be by Hibernate's
+ * C3P0 provider.
+ * @see net.databinder.hib.DataApplication#newConnectionPool(Object)
+ */
+public abstract class ConnectionPool implements ConnectionPoolMBean {
+	public static final String MIN_SIZE = "databinder.pool.min_size",
+		CHECKOUT_TIMEOUT = "databinder.pool.checkout_timeout",
+		IDLE_TIMEOUT = "databinder.pool.idle_timeout",
+		LEAK_THRESHOLD = "databinder.pool.leak_threshold";
+	public static final int DEFAULT_MAX_SIZE = 20;
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private int maxSize, minSize, checkoutTimeout, idleTimeout;
+	private long leakThreshold;
+
+	private final AtomicLong checkouts = new AtomicLong(), failures = new AtomicLong(),
+		waitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+
+	/** Checked out connections, with their holder. */
+	private final Map<Connection, Lease> leases = new ConcurrentHashMap<Connection, Lease>();
+
+	private ObjectName objectName;
+
+	private static class Lease {
+		final Thread thread = Thread.currentThread();
+		final long time = System.currentTimeMillis();
+	}
+
+	/**
+	 * Reads settings and starts the pool.
+	 * @param props Hibernate configuration properties
+	 */
+	public final void configure(Properties props) throws SQLException {
+		maxSize = PropertiesHelper.getInt(Environment.POOL_SIZE, props,
+				PropertiesHelper.getInt(Environment.C3P0_MAX_SIZE, props, DEFAULT_MAX_SIZE));
+		minSize = Math.min(maxSize, PropertiesHelper.getInt(MIN_SIZE, props,
+				PropertiesHelper.getInt(Environment.C3P0_MIN_SIZE, props, 1)));
+		checkoutTimeout = PropertiesHelper.getInt(CHECKOUT_TIMEOUT, props, 30000);
+		idleTimeout = PropertiesHelper.getInt(IDLE_TIMEOUT, props,
+				PropertiesHelper.getInt(Environment.C3P0_TIMEOUT, props, 3000));
+		leakThreshold = PropertiesHelper.getInt(LEAK_THRESHOLD, props, 60000);
+		start(props);
+	}
+
+	/**
+	 * Starts the underlying pool, connecting with the standard Hibernate connection
+	 * properties and sized by the getters of this class.
+	 * @param props Hibernate configuration properties
+	 */
+	protected abstract void start(Properties props) throws SQLException;
+
+	/** @return connection from the underlying pool, waiting at most getCheckoutTimeout() */
+	protected abstract Connection acquire() throws SQLException;
+
+	/** Closes the underlying pool. */
+	protected abstract void stop() throws SQLException;
+
+	/** @return connection, timed and recorded as held by the current thread */
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		Connection conn;
+		try {
+			conn = acquire();
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			throw e;
+		}
+		long wait = System.nanoTime() - start;
+		checkouts.incrementAndGet();
+		waitNanos.addAndGet(wait);
+		for (long max = maxWaitNanos.get(); wait > max; max = maxWaitNanos.get())
+			if (maxWaitNanos.compareAndSet(max, wait))
+				break;
+		leases.put(conn, new Lease());
+		return conn;
+	}
+
+	/** Returns the connection to the pool. */
+	public void release(Connection conn) throws SQLException {
+		leases.remove(conn);
+		conn.close();
+	}
+
+	/**
+	 * Reports connections still held by the current thread, called at the end of a
+	 * request once its Hibernate sessions are closed.
+	 * @return number of connections the thread has not returned
+	 */
+	public int checkLeases() {
+		Thread current = Thread.currentThread();
+		int held = 0;
+		for (Lease lease : leases.values())
+			if (lease.thread == current)
+				held++;
+		if (held > 0)
+			log.warn(held + " connection(s) not returned to pool " + objectName + " by end of request");
+		return held;
+	}
+
+	/** Closes the pool and unregisters it from JMX. */
+	public void close() {
+		unregisterMBean();
+		try {
+			stop();
+		} catch (SQLException e) {
+			log.warn("Unable to close connection pool", e);
+		}
+	}
+
+	/** Registers this pool with the platform MBean server; failures are logged. */
+	public void registerMBean(ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(new StandardMBean(this, ConnectionPoolMBean.class), name);
+			objectName = name;
+		} catch (JMException e) {
+			log.warn("Unable to register connection pool " + name, e);
+		}
+	}
+
+	private void unregisterMBean() {
+		if (objectName != null)
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				log.debug("Unable to unregister connection pool " + objectName, e);
+			}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/** @return connections to keep open */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/** @return milliseconds to wait for a connection before failing */
+	public int getCheckoutTimeout() {
+		return checkoutTimeout;
+	}
+
+	/** @return seconds before an idle connection is closed */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public long getCheckouts() {
+		return checkouts.get();
+	}
+
+	public long getFailedCheckouts() {
+		return failures.get();
+	}
+
+	public double getAverageWaitMillis() {
+		long count = checkouts.get();
+		return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public int getLeakedConnections() {
+		long limit = System.currentTimeMillis() - leakThreshold;
+		int leaked = 0;
+		for (Lease lease : leases.values())
+			if (lease.time < limit)
+				leaked++;
+		return leaked;
+	}
+
+	public void resetStatistics() {
+		checkouts.set(0);
+		failures.set(0);
+		waitNanos.set(0);
+		maxWaitNanos.set(0);
+	}
+}
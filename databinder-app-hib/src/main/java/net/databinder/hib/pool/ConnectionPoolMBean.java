@@ -0,0 +1,36 @@
+package net.databinder.hib.pool;
+
+/**
+ * JMX view of a {@link ConnectionPool}.
+ */
+public interface ConnectionPoolMBean {
+	/** @return maximum number of connections */
+	int getMaxSize();
+
+	/** @return connections checked out of the pool */
+	int getActiveConnections();
+
+	/** @return connections open and available in the pool */
+	int getIdleConnections();
+
+	/** @return threads waiting for a connection */
+	int getPendingThreads();
+
+	/** @return successful checkouts since start or the last reset */
+	long getCheckouts();
+
+	/** @return checkouts that failed or timed out since start or the last reset */
+	long getFailedCheckouts();
+
+	/** @return mean time to check out a connection, in milliseconds */
+	double getAverageWaitMillis();
+
+	/** @return longest time to check out a connection, in milliseconds */
+	double getMaxWaitMillis();
+
+	/** @return connections held longer than the leak threshold */
+	int getLeakedConnections();
+
+	/** Clears checkout counts and wait times. */
+	void resetStatistics();
+}
@@ -0,0 +1,85 @@
+package net.databinder.hib.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.util.PropertiesHelper;
+
+/**
+ * Hibernate connection provider drawing on a {@link ConnectionPool}. Hibernate creates
+ * providers by class name, so pools are registered here before the session factory is
+ * built and found by the id in the "databinder.pool.id" property.
+ * @see net.databinder.hib.DataApplication#buildHibernateSessionFactory(Object, org.hibernate.cfg.AnnotationConfiguration)
+ */
+public class PoolConnectionProvider implements ConnectionProvider {
+	public static final String POOL_ID = "databinder.pool.id";
+
+	private static final Map<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private String id;
+	private ConnectionPool pool;
+	private Integer isolation;
+	private boolean autocommit;
+
+	/**
+	 * @param pool pool for a session factory about to be built
+	 * @return id to set as the "databinder.pool.id" property
+	 */
+	public static String register(ConnectionPool pool) {
+		String id = String.valueOf(ids.incrementAndGet());
+		pools.put(id, pool);
+		return id;
+	}
+
+	/**
+	 * Removes a pool whose session factory could not be built.
+	 * @param id id returned by register()
+	 */
+	public static void unregister(String id) {
+		pools.remove(id);
+	}
+
+	public void configure(Properties props) throws HibernateException {
+		id = props.getProperty(POOL_ID);
+		pool = id == null ? null : pools.get(id);
+		if (pool == null)
+			throw new HibernateException("No connection pool registered for " + POOL_ID + "=" + id);
+		try {
+			pool.configure(props);
+		} catch (SQLException e) {
+			throw new HibernateException("Unable to start connection pool", e);
+		}
+		isolation = PropertiesHelper.getInteger(Environment.ISOLATION, props);
+		autocommit = PropertiesHelper.getBoolean(Environment.AUTOCOMMIT, props);
+	}
+
+	public Connection getConnection() throws SQLException {
+		Connection conn = pool.getConnection();
+		if (isolation != null)
+			conn.setTransactionIsolation(isolation);
+		if (conn.getAutoCommit() != autocommit)
+			conn.setAutoCommit(autocommit);
+		return conn;
+	}
+
+	public void closeConnection(Connection conn) throws SQLException {
+		pool.release(conn);
+	}
+
+	public void close() throws HibernateException {
+		pools.remove(id);
+		pool.close();
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+}
@@ -23,7 +23,9 @@ import java.net.URI;
 
 import javax.servlet.http.HttpServletResponse;
 
+import net.databinder.auth.components.RSAKeyService;
 import net.databinder.components.PageExpiredCookieless;
+import net.databinder.components.RenderedImageCache;
 import net.databinder.converters.ColorConverter;
 import net.databinder.converters.URIConverter;
 import net.databinder.web.NorewriteWebResponse;
@@ -55,6 +57,14 @@ public abstract class DataApplicationBase extends WebApplication {
 	/** Databinder initialization, client applications should not normally override.*/
 	abstract protected void dataInit();
 
+	/** Stops background threads of rendered labels and of any RSA key service. */
+	@Override
+	protected void onDestroy() {
+		RenderedImageCache.shutdown(this);
+		RSAKeyService.shutdown(this);
+		super.onDestroy();
+	}
+
 	/** Adds converters to Wicket's base locator. */
 	@Override
 	protected IConverterLocator newConverterLocator() {
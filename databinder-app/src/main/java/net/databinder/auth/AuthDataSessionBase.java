@@ -22,7 +22,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 
+import net.databinder.auth.data.DataPassword;
+import net.databinder.auth.data.DataPrincipal;
 import net.databinder.auth.data.DataUser;
+import net.databinder.auth.data.RehashablePassword;
+import net.databinder.auth.data.RoleRegistry;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.WicketRuntimeException;
@@ -49,6 +53,12 @@ public abstract class AuthDataSessionBase<T extends DataUser> extends WebSession
   /** Effective signed in state. */
 	private IModel<T> userModel;
 
+	/** Snapshot of the signed in user, for role checks. */
+	private DataPrincipal principal;
+
+	/** Username the user signed in with, for reading its version before loading it. */
+	private String username;
+
 	/**
 	 * Initialize new session.
 	 * @see WebApplication
@@ -84,6 +94,39 @@ public abstract class AuthDataSessionBase<T extends DataUser> extends WebSession
 		return userModel;
 	}
 
+	/**
+	 * Returns a snapshot of the signed in user, loading the user only if there is no
+	 * snapshot or the user has changed since it was taken. If the user no longer exists,
+	 * it is signed out of this session.
+	 * @return snapshot of current user, or null if none signed in
+	 * @see UserVersions
+	 */
+	public DataPrincipal getPrincipal() {
+		if (!isSignedIn())
+			return null;
+		DataPrincipal current = principal;
+		// read before loading, so that a change committed meanwhile outdates the new snapshot
+		long version = UserVersions.get().getVersion(current == null ? username : current.getUsername());
+		if (current == null || current.getVersion() != version) {
+			T user = getUser();
+			if (user == null) {
+				clearUser();
+				return null;
+			}
+			principal = current = new DataPrincipal(user, getRoleRegistry(), version);
+		}
+		return current;
+	}
+
+	/**
+	 * Roles checked for principal snapshots; checks of other roles load the user.
+	 * @return the application's role registry
+	 * @see RoleRegistry#set(Application, RoleRegistry)
+	 */
+	protected RoleRegistry getRoleRegistry() {
+		return RoleRegistry.get();
+	}
+
 	/**
 	 * @return model for current user
 	 */
@@ -114,18 +157,57 @@ public abstract class AuthDataSessionBase<T extends DataUser> extends WebSession
 	}
 
 	/**
+	 * Signs in the user if the password matches, first replacing its stored hash if that
+	 * is outdated. Attempts for a username or from a client address with too many recent
+	 * failures are refused without loading the user.
 	 * @param setCookie if true, sets cookie to remember user
-	 * @return true if signed in, false if credentials incorrect
+	 * @return true if signed in, false if credentials incorrect or attempts throttled
+	 * @see RehashablePassword
+	 * @see SignInThrottle
 	 */
 	public boolean signIn(final String username, final String password, boolean setCookie) {
 		clearUser();
+		SignInThrottle throttle = getSignInThrottle();
+		String address = throttle == null ? null : getClientAddress();
+		if (throttle != null && throttle.isThrottled(username, address))
+			return false;
 		T potential = getUser(username);
-		if (potential != null && (potential).getPassword().matches(password))
+		if (potential != null && (potential).getPassword().matches(password)) {
+			DataPassword stored = potential.getPassword();
+			if (stored instanceof RehashablePassword && ((RehashablePassword) stored).needsRehash()) {
+				stored.change(password);
+				onPasswordRehashed(potential);
+			}
 			signIn(potential, setCookie);
+		} else if (throttle != null)
+			throttle.failed(username, address);
 
 		return userModel != null;
 	}
 
+	/**
+	 * @return limiter of failed sign-in attempts, or null to allow unlimited attempts
+	 */
+	protected SignInThrottle getSignInThrottle() {
+		return SignInThrottle.get();
+	}
+
+	/**
+	 * @return client address for throttling sign-in attempts
+	 * @see SignInThrottle#getClientAddress()
+	 */
+	protected String getClientAddress() {
+		return SignInThrottle.getClientAddress();
+	}
+
+	/**
+	 * Called when a user's password hash has been replaced on sign in; override to
+	 * persist the change. Does nothing by default.
+	 * @param user user whose password has been changed to the same password
+	 */
+	protected void onPasswordRehashed(T user) {
+	}
+
 	/**
 	 * Sign in a user whose credentials have been validated elsewhere. The user object must exist,
 	 * and already have been saved, in the current request's Hibernate session.
@@ -134,34 +216,47 @@ public abstract class AuthDataSessionBase<T extends DataUser> extends WebSession
 	 */
 	public void signIn(T user, boolean setCookie) {
 		userModel = createUserModel(user);
+		principal = null;
+		username = user.getUsername();
 		if (setCookie)
 			setCookie();
 	}
 
 	/**
-	 * Attempts cookie sign in, which will set usename field but not user.
+	 * Attempts cookie sign in. The token is verified before the user is loaded, so that
+	 * requests with missing, expired, or forged cookies do not query for users.
 	 * @return true if signed in, false if credentials incorrect or unavailable
+	 * @see SignInTokens
 	 */
 	protected boolean cookieSignIn() {
 		String userCookie = cookieUtils.load(getUserCookieName()),
 			token = cookieUtils.load(getAuthCookieName());
 
 		if (userCookie != null && token != null) {
-			T potential;
+			String username;
 			try {
-				potential = getUser(URLDecoder.decode(userCookie, CHARACTER_ENCODING));
+				username = URLDecoder.decode(userCookie, CHARACTER_ENCODING);
 			} catch (UnsupportedEncodingException e) {
 				throw new WicketRuntimeException(e);
 			}
-			if (potential != null && potential instanceof DataUser) {
-				String correctToken = getApp().getToken(potential);
-				if (correctToken.equals(token))
+			SignInTokens tokens = getSignInTokens();
+			String fingerprint = tokens.verify(username, token);
+			if (fingerprint != null) {
+				T potential = getUser(username);
+				if (potential == null)
+					tokens.reject(username, token);
+				else if (tokens.matches(potential, token, fingerprint))
 					signIn(potential, false);
 			}
 		}
 		return userModel != null;
 	}
 
+	/** @return signer and verifier of sign-in cookie tokens */
+	protected SignInTokens getSignInTokens() {
+		return SignInTokens.get();
+	}
+
 	/**
 	 * Looks for a persisted DataUser object matching the given username. Uses the user class
 	 * and criteria builder returned from the application subclass implementing AuthApplication.
@@ -195,7 +290,8 @@ public abstract class AuthDataSessionBase<T extends DataUser> extends WebSession
 		try {
 		  cookieUtils.save(getUserCookieName(),
 					URLEncoder.encode(cookieUser.getUsername(), CHARACTER_ENCODING));
-		  cookieUtils.save(getAuthCookieName(), getApp().getToken(cookieUser));
+		  cookieUtils.save(getAuthCookieName(), getSignInTokens().create(cookieUser,
+		  		System.currentTimeMillis() + getSignInCookieMaxAge().getMilliseconds()));
 		} catch (UnsupportedEncodingException e) {
 			throw new WicketRuntimeException(e);
 		}
@@ -213,6 +309,8 @@ public abstract class AuthDataSessionBase<T extends DataUser> extends WebSession
 	/** Nullifies userModela nd clears authentication cookies. */
 	protected void clearUser() {
 		userModel = null;
+		principal = null;
+		username = null;
 		cookieUtils.remove(getUserCookieName());
 		cookieUtils.remove(getAuthCookieName());
   }
@@ -0,0 +1,204 @@
+package net.databinder.auth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Limits failed sign-in attempts per username and per client address over a sliding
+ * window, so that floods of guesses are turned away before users are loaded or passwords
+ * hashed. Failures are counted exactly for each key, in eight time buckets spanning the
+ * window. Keys are spread by hash over sixteen stripes, each with its own lock, so that
+ * attempts on different keys rarely contend. At most maxKeys usernames and maxKeys
+ * addresses are tracked, an equal share in each stripe; beyond that the counts of a
+ * stripe's least recently failed or checked keys are dropped, so memory use stays
+ * bounded. A key under attack is touched by every attempt and so is not evicted. Counts
+ * are kept per application and per JVM.
+ * @see AuthDataSessionBase#signIn(String, String, boolean)
+ */
+public class SignInThrottle {
+	/** Defaults: 10 failures per username and 100 per address within 15 minutes. */
+	public static final int DEFAULT_USER_LIMIT = 10, DEFAULT_ADDRESS_LIMIT = 100;
+	public static final long DEFAULT_WINDOW = 15L * 60 * 1000;
+	/** Default number of usernames, and of addresses, tracked. */
+	public static final int DEFAULT_MAX_KEYS = 10000;
+
+	private static final int BUCKETS = 8;
+	private static final int STRIPES = 16;
+
+	private static final MetaDataKey<SignInThrottle> THROTTLE_KEY = new MetaDataKey<SignInThrottle>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final int userLimit, addressLimit;
+	private final long bucketMillis;
+	private final FailureMap users, addresses;
+
+	/** Failures of one key, in buckets by period number. */
+	private static class Failures {
+		final long[] periods = new long[BUCKETS];
+		final int[] counts = new int[BUCKETS];
+
+		/** @return failures within the window ending at period */
+		int count(long period) {
+			int sum = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				if (period - periods[i] < BUCKETS)
+					sum += counts[i];
+			return sum;
+		}
+
+		/** Adds a failure in period, restarting its bucket if stale. */
+		void add(long period) {
+			int i = (int) (period % BUCKETS);
+			if (periods[i] != period) {
+				periods[i] = period;
+				counts[i] = 0;
+			}
+			counts[i]++;
+		}
+	}
+
+	/** Failures by key, in stripes that are each locked separately and bounded. */
+	private static class FailureMap {
+		private final Map<String, Failures>[] stripes;
+
+		@SuppressWarnings("unchecked")
+		FailureMap(int maxKeys) {
+			final int stripeKeys = Math.max(1, (maxKeys + STRIPES - 1) / STRIPES);
+			stripes = new Map[STRIPES];
+			for (int i = 0; i < STRIPES; i++)
+				// access-ordered, dropping the least recently used key beyond its share
+				stripes[i] = new LinkedHashMap<String, Failures>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, Failures> eldest) {
+						return size() > stripeKeys;
+					}
+				};
+		}
+
+		private Map<String, Failures> stripe(String key) {
+			int h = key == null ? 0 : key.hashCode();
+			h ^= (h >>> 20) ^ (h >>> 12);
+			return stripes[(h ^ (h >>> 7) ^ (h >>> 4)) & (STRIPES - 1)];
+		}
+
+		/** @return failures of the key within the window ending at period */
+		int count(String key, long period) {
+			Map<String, Failures> stripe = stripe(key);
+			synchronized (stripe) {
+				Failures failures = stripe.get(key);
+				return failures == null ? 0 : failures.count(period);
+			}
+		}
+
+		/** Records a failure of the key in period. */
+		void add(String key, long period) {
+			Map<String, Failures> stripe = stripe(key);
+			synchronized (stripe) {
+				Failures failures = stripe.get(key);
+				if (failures == null)
+					stripe.put(key, failures = new Failures());
+				failures.add(period);
+			}
+		}
+	}
+
+	/** Throttles with default limits and window. */
+	public SignInThrottle() {
+		this(DEFAULT_USER_LIMIT, DEFAULT_ADDRESS_LIMIT, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param userLimit failures allowed per username within the window
+	 * @param addressLimit failures allowed per client address within the window
+	 * @param window milliseconds over which failures are counted, at least eight seconds
+	 */
+	public SignInThrottle(int userLimit, int addressLimit, long window) {
+		this(userLimit, addressLimit, window, DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * @param userLimit failures allowed per username within the window
+	 * @param addressLimit failures allowed per client address within the window
+	 * @param window milliseconds over which failures are counted, at least eight seconds
+	 * @param maxKeys number of usernames, and of addresses, whose failures are tracked
+	 */
+	public SignInThrottle(int userLimit, int addressLimit, long window, int maxKeys) {
+		this.userLimit = userLimit;
+		this.addressLimit = addressLimit;
+		bucketMillis = Math.max(1000, window / BUCKETS);
+		users = new FailureMap(maxKeys);
+		addresses = new FailureMap(maxKeys);
+	}
+
+	/** @return throttle of the current application */
+	public static SignInThrottle get() {
+		return get(Application.get());
+	}
+
+	/** @return throttle of the given application, created with default limits on first use */
+	public static SignInThrottle get(Application app) {
+		SignInThrottle throttle = app.getMetaData(THROTTLE_KEY);
+		if (throttle == null)
+			synchronized (app) {
+				throttle = app.getMetaData(THROTTLE_KEY);
+				if (throttle == null)
+					app.setMetaData(THROTTLE_KEY, throttle = new SignInThrottle());
+			}
+		return throttle;
+	}
+
+	/** Replaces the throttle of the given application, for example to change its limits. */
+	public static void set(Application app, SignInThrottle throttle) {
+		synchronized (app) {
+			app.setMetaData(THROTTLE_KEY, throttle);
+		}
+	}
+
+	/**
+	 * Client address of the current request: its remote address. Headers such as
+	 * "X-Forwarded-For" are ignored, as clients can set them to anything. Behind a reverse
+	 * proxy every client has the proxy's address; override
+	 * AuthDataSessionBase.getClientAddress() there to read the header the proxy sets, if
+	 * it replaces any such header sent by clients.
+	 * @return address of the current request's client
+	 */
+	public static String getClientAddress() {
+		return getClientAddress(RequestCycle.get().getRequest());
+	}
+
+	/** @return address of the request's client, as for getClientAddress() */
+	public static String getClientAddress(Request request) {
+		return ((ServletWebRequest) request).getHttpServletRequest().getRemoteAddr();
+	}
+
+	/**
+	 * @param username attempted username
+	 * @param address client address, or null to check only the username
+	 * @return true if either has reached its limit of failures in the window
+	 */
+	public boolean isThrottled(String username, String address) {
+		long period = System.currentTimeMillis() / bucketMillis;
+		return users.count(username, period) >= userLimit
+			|| (address != null && addresses.count(address, period) >= addressLimit);
+	}
+
+	/**
+	 * Records a failed attempt.
+	 * @param username attempted username
+	 * @param address client address, or null to count only the username
+	 */
+	public void failed(String username, String address) {
+		long period = System.currentTimeMillis() / bucketMillis;
+		users.add(username, period);
+		if (address != null)
+			addresses.add(address, period);
+	}
+}
@@ -0,0 +1,152 @@
+package net.databinder.auth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.databinder.auth.data.DataUser;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.crypt.Base64;
+
+/**
+ * Self-validating sign-in cookie tokens. A token carries its expiry time and a fingerprint
+ * of the user's password, signed with HMAC-SHA256 over those and the username, so that it
+ * can be checked without loading the user. The fingerprint is compared once the user is
+ * loaded, which revokes tokens when the password changes. Rejected tokens are remembered
+ * in a bounded cache so that replays of the same bad cookie are turned away immediately.
+ * Keyed with the application's salt.
+ * @see AuthDataSessionBase#cookieSignIn()
+ */
+public class SignInTokens {
+	private static final String ALGORITHM = "HmacSHA256", CHARACTER_ENCODING = "UTF-8";
+	private static final int MAX_REJECTED = 1024, FINGERPRINT_BYTES = 8;
+
+	private static final MetaDataKey<SignInTokens> TOKENS_KEY = new MetaDataKey<SignInTokens>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final SecretKeySpec key;
+
+	/** Recently rejected tokens, with their usernames. */
+	private final Map<String, Boolean> rejected = Collections.synchronizedMap(
+			new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > MAX_REJECTED;
+				}
+			});
+
+	/**
+	 * @param secret key for signing tokens; must not be empty
+	 */
+	public SignInTokens(byte[] secret) {
+		key = new SecretKeySpec(secret, ALGORITHM);
+	}
+
+	/** @return tokens of the current application, keyed with its salt */
+	public static SignInTokens get() {
+		Application app = Application.get();
+		SignInTokens tokens = app.getMetaData(TOKENS_KEY);
+		if (tokens == null)
+			synchronized (app) {
+				tokens = app.getMetaData(TOKENS_KEY);
+				if (tokens == null)
+					app.setMetaData(TOKENS_KEY, tokens = new SignInTokens(((AuthApplication<?>) app).getSalt()));
+			}
+		return tokens;
+	}
+
+	/**
+	 * @param user user to sign in
+	 * @param expires time in milliseconds after which the token is invalid
+	 * @return signed token for the user
+	 */
+	public String create(DataUser user, long expires) {
+		String payload = expires + "." + fingerprint(user);
+		return payload + "." + sign(user.getUsername(), payload);
+	}
+
+	/**
+	 * Checks a token's signature and expiry, without loading the user.
+	 * @return fingerprint expected of the user's password, or null if the token is invalid
+	 */
+	public String verify(String username, String token) {
+		if (username == null || token == null || rejected.containsKey(username + "\n" + token))
+			return null;
+		int sig = token.lastIndexOf('.'), dot = token.indexOf('.');
+		if (dot > 0 && sig > dot) {
+			String payload = token.substring(0, sig);
+			try {
+				if (Long.parseLong(token.substring(0, dot)) > System.currentTimeMillis()
+						&& constantEquals(sign(username, payload), token.substring(sig + 1)))
+					return token.substring(dot + 1, sig);
+			} catch (NumberFormatException e) { }
+		}
+		reject(username, token);
+		return null;
+	}
+
+	/**
+	 * @return true if the user's password has the fingerprint returned by verify();
+	 * otherwise, the token is rejected
+	 */
+	public boolean matches(DataUser user, String token, String fingerprint) {
+		if (user != null && constantEquals(fingerprint(user), fingerprint))
+			return true;
+		if (user != null)
+			reject(user.getUsername(), token);
+		return false;
+	}
+
+	/** Remembers a bad token so that it is refused without further checks. */
+	public void reject(String username, String token) {
+		rejected.put(username + "\n" + token, Boolean.TRUE);
+	}
+
+	/** @return short digest of the user's password state */
+	protected String fingerprint(DataUser user) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			user.getPassword().update(digest);
+			byte[] hash = digest.digest(), fp = new byte[FINGERPRINT_BYTES];
+			System.arraycopy(hash, 0, fp, 0, fp.length);
+			return Base64.encodeBase64URLSafeString(fp);
+		} catch (GeneralSecurityException e) {
+			throw new WicketRuntimeException(e);
+		}
+	}
+
+	private String sign(String username, String payload) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			mac.update(username.getBytes(CHARACTER_ENCODING));
+			mac.update((byte) 0);
+			return Base64.encodeBase64URLSafeString(mac.doFinal(payload.getBytes(CHARACTER_ENCODING)));
+		} catch (GeneralSecurityException e) {
+			throw new WicketRuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new WicketRuntimeException(e);
+		}
+	}
+
+	/** Compares in time independent of where the strings first differ. */
+	static boolean constantEquals(String a, String b) {
+		if (a.length() != b.length())
+			return false;
+		int diff = 0;
+		for (int i = 0; i < a.length(); i++)
+			diff |= a.charAt(i) ^ b.charAt(i);
+		return diff == 0;
+	}
+}
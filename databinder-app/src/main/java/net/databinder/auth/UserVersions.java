@@ -0,0 +1,57 @@
+package net.databinder.auth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+
+/**
+ * Version counters for users of an application, incremented when a user entity changes
+ * so that sessions can tell their {@link net.databinder.auth.data.DataPrincipal}
+ * snapshots are out of date. Users share a fixed number of counters by username hash;
+ * a change to one user may needlessly invalidate snapshots of a few others, but memory
+ * use does not grow with the number of users. Counters are kept per application and
+ * per JVM, so changes made by other cluster members are not seen.
+ */
+public class UserVersions {
+	private static final int STRIPES = 1024;
+
+	private static final MetaDataKey<UserVersions> VERSIONS_KEY = new MetaDataKey<UserVersions>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+	/** @return versions of the current application */
+	public static UserVersions get() {
+		return get(Application.get());
+	}
+
+	/** @return versions of the given application, created on first use */
+	public static UserVersions get(Application app) {
+		UserVersions versions = app.getMetaData(VERSIONS_KEY);
+		if (versions == null)
+			synchronized (app) {
+				versions = app.getMetaData(VERSIONS_KEY);
+				if (versions == null)
+					app.setMetaData(VERSIONS_KEY, versions = new UserVersions());
+			}
+		return versions;
+	}
+
+	private static int stripe(String username) {
+		int h = username == null ? 0 : username.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return (h ^ (h >>> 7) ^ (h >>> 4)) & (STRIPES - 1);
+	}
+
+	/** @return current version for the username */
+	public long getVersion(String username) {
+		return versions.get(stripe(username));
+	}
+
+	/** Records a change to the user with the given username. */
+	public void changed(String username) {
+		versions.incrementAndGet(stripe(username));
+	}
+}
@@ -1,23 +1,30 @@
 package net.databinder.auth.components.ao;
 
 import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
 
 import net.databinder.auth.components.DataUserStatusPanelBase;
 import net.databinder.auth.components.UserAdminPageBase;
 import net.databinder.auth.data.ao.DataUserEntity;
 import net.databinder.auth.data.ao.UserHelper;
+import net.databinder.ao.Databinder;
 import net.databinder.components.ao.DataForm;
-import net.databinder.models.ao.EntityListModel;
 import net.databinder.models.ao.EntityModel;
+import net.databinder.models.ao.EntityProvider;
+import net.java.ao.Query;
 
+import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.authorization.strategies.role.Roles;
 import org.apache.wicket.markup.html.form.Button;
 import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.IModel;
 
 /**
- * User administration page. Lists all users, allows editing usernames, passwords, and roles.
+ * User administration page. Lists users a page at a time, allows editing usernames, passwords, and roles.
  * Must have Role.ADMIN to view. Replaceable String resources: <pre>
  * data.auth.user_admin
  * data.auth.user_add
@@ -50,6 +57,7 @@ public class UserAdminPage<T extends DataUserEntity<K>, K extends Serializable>
 					map.put("roleString", ((Roles)map.remove("roles")).toString());
 				}
 				super.onSubmit();
+				clearUserCount();
 			}
 		};
 	}
@@ -65,7 +73,13 @@ public class UserAdminPage<T extends DataUserEntity<K>, K extends Serializable>
 
 	@Override
 	protected Button deleteButton(String id) {
-		return form.new DeleteButton(id);
+		return form.new DeleteButton(id) {
+			@Override
+			protected void afterSubmit() {
+				super.afterSubmit();
+				clearUserCount();
+			}
+		};
 	}
 
 	@Override
@@ -73,9 +87,33 @@ public class UserAdminPage<T extends DataUserEntity<K>, K extends Serializable>
 		return new DataUserStatusPanel(id);
 	}
 
+	/** Pages users ordered by username, matching the search as a username prefix. */
 	@Override
-	protected EntityListModel<T> userList(Class<T> userClass) {
-		return new EntityListModel<T>(userClass);
+	@SuppressWarnings("unchecked")
+	protected IDataProvider<T> userProvider(final Class<T> userClass, final IModel<String> search) {
+		return new EntityProvider(userClass) {
+			private Query query() {
+				String prefix = search.getObject();
+				return prefix == null ? Query.select() : Query.select().where("username LIKE ?", prefix + "%");
+			}
+			@Override
+			public Iterator iterator(int first, int count) {
+				try {
+					return Arrays.asList(Databinder.getEntityManager().find(userClass,
+							query().order("username").offset(first).limit(count))).iterator();
+				} catch (SQLException e) {
+					throw new WicketRuntimeException(e);
+				}
+			}
+			@Override
+			public int size() {
+				try {
+					return Databinder.getEntityManager().count(userClass, query());
+				} catch (SQLException e) {
+					throw new WicketRuntimeException(e);
+				}
+			}
+		};
 	}
 
 }
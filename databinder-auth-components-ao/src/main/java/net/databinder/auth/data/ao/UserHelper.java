@@ -1,10 +1,10 @@
 package net.databinder.auth.data.ao;
 
 import java.security.MessageDigest;
-import java.util.Arrays;
 
 import net.databinder.auth.AuthApplication;
 import net.databinder.auth.data.DataPassword;
+import net.databinder.auth.data.RoleRegistry;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.authorization.strategies.role.Roles;
@@ -16,6 +16,9 @@ import org.apache.wicket.authorization.strategies.role.Roles;
  */
 public class UserHelper {
 	UserBase user;
+	/** Role string last parsed, and bits of its registered roles. */
+	private String parsedRoleString;
+	private long roleBits;
 	
 	public UserHelper(UserBase user) {
 		this.user = user;
@@ -32,7 +35,7 @@ public class UserHelper {
 				user.setPasswordHash(getHash(password));
 			}
 			public boolean matches(String password) {
-				return Arrays.equals(getHash(password), user.getPasswordHash());
+				return MessageDigest.isEqual(getHash(password), user.getPasswordHash());
 			}
 			public void update(MessageDigest digest) {
 				digest.update(user.getPasswordHash());
@@ -54,8 +57,20 @@ public class UserHelper {
 		user.setRoleString(roles.toString());
 	}
 	
+	/**
+	 * Checks registered roles against bits parsed once per role string, and parses the
+	 * string only for roles not in the application's RoleRegistry.
+	 */
 	public boolean hasRole(String role) {
-		return getRoles().contains(role);
+		RoleRegistry registry = RoleRegistry.get();
+		if (!registry.contains(role))
+			return getRoles().contains(role);
+		String roleString = user.getRoleString();
+		if (roleString == null || !roleString.equals(parsedRoleString)) {
+			roleBits = registry.parse(roleString);
+			parsedRoleString = roleString;
+		}
+		return registry.hasRole(roleBits, role);
 	}
 	
 	public void update(MessageDigest digest) {
@@ -1,21 +1,24 @@
 package net.databinder.auth.components.hib;
 
-import java.util.List;
-
 import net.databinder.auth.AuthSession;
 import net.databinder.auth.components.DataUserStatusPanelBase;
 import net.databinder.auth.components.UserAdminPageBase;
 import net.databinder.auth.data.DataUser;
 import net.databinder.components.hib.DataForm;
 import net.databinder.hib.Databinder;
-import net.databinder.models.hib.HibernateListModel;
+import net.databinder.models.hib.CriteriaBuildAndSort;
+import net.databinder.models.hib.SortableHibernateProvider;
 
 import org.apache.wicket.markup.html.form.Button;
 import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.IModel;
+import org.hibernate.Criteria;
+import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Restrictions;
 
 /**
- * User administration page. Lists all users, allows editing usernames, passwords, and roles.
+ * User administration page. Lists users a page at a time, allows editing usernames, passwords, and roles.
  * Must have Role.ADMIN to view. Replaceable String resources: <pre>
  * data.auth.user_admin
  * data.auth.user_add
@@ -32,7 +35,13 @@ public class UserAdminPage<T extends DataUser> extends UserAdminPageBase<T> {
 	
 	@Override
 	protected Form<T> adminForm(String id, Class<T> userClass) {
-		return form = new DataForm<T>(id, userClass);
+		return form = new DataForm<T>(id, userClass) {
+			@Override
+			protected void onSubmit() {
+				super.onSubmit();
+				clearUserCount();
+			}
+		};
 	}
 	
 	@Override
@@ -43,6 +52,7 @@ public class UserAdminPage<T extends DataUser> extends UserAdminPageBase<T> {
 				Databinder.getHibernateSession().delete(getUserForm().getModelObject());
 				Databinder.getHibernateSession().getTransaction().commit();
 				form.clearPersistentObject();
+				clearUserCount();
 			}
 			@Override
 			public boolean isEnabled() {
@@ -58,9 +68,21 @@ public class UserAdminPage<T extends DataUser> extends UserAdminPageBase<T> {
 		return new DataUserStatusPanel(id);
 	}
 	
+	/**
+	 * Pages users ordered by username, matching the search as a case sensitive prefix
+	 * so that an index on the username column can be used.
+	 */
 	@Override
-	protected IModel<List<T>> userList(Class<T> userClass) {
-		return new HibernateListModel<T>(userClass);
+	protected IDataProvider<T> userProvider(Class<T> userClass, final IModel<String> search) {
+		return new SortableHibernateProvider<T>(userClass, new CriteriaBuildAndSort("username", true, true) {
+			@Override
+			public void buildUnordered(Criteria criteria) {
+				super.buildUnordered(criteria);
+				String prefix = search.getObject();
+				if (prefix != null)
+					criteria.add(Restrictions.like("username", prefix, MatchMode.START));
+			}
+		}).setWrapWithPropertyModel(false);
 	}
 
 }
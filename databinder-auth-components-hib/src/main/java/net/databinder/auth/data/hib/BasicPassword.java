@@ -8,17 +8,20 @@ import javax.persistence.Embeddable;
 
 import net.databinder.auth.AuthApplication;
 import net.databinder.auth.data.DataPassword;
+import net.databinder.auth.data.PasswordHasher;
+import net.databinder.auth.data.RehashablePassword;
 
 import org.apache.wicket.Application;
-import org.apache.wicket.util.crypt.Base64;
 
 /**
  * Simple, optional implementation of {@link DataPassword}. Maps as an embedded
- * property to the single field "passwordHash".
+ * property to the single field "passwordHash", hashed by the application's
+ * PasswordHasher. Columns created for earlier versions hold only 28 characters and
+ * must be widened before switching to a hasher with longer output, such as PBKDF2.
  * @author Nathan Hamblen
  */
 @Embeddable
-public class BasicPassword implements DataPassword, Serializable {
+public class BasicPassword implements RehashablePassword, Serializable {
 	private String passwordHash;
 	
 	public BasicPassword() { }
@@ -28,16 +31,18 @@ public class BasicPassword implements DataPassword, Serializable {
 	}
 	
 	public void change(String password) {
-		MessageDigest md = ((AuthApplication)Application.get()).getDigest();
-		byte[] hash = md.digest(password.getBytes());
-		passwordHash = new String(Base64.encodeBase64(hash));
+		passwordHash = getHasher().hash(password);
+	}
+
+	private static PasswordHasher getHasher() {
+		return ((AuthApplication<?>)Application.get()).getPasswordHasher();
 	}
 	
 	public void update(MessageDigest md) {
 		md.update(passwordHash.getBytes());
 	}
 	
-	@Column(length = 28, nullable = false)
+	@Column(length = 128, nullable = false)
 	private String getPasswordHash() {
 		return passwordHash;
 	}
@@ -48,7 +53,10 @@ public class BasicPassword implements DataPassword, Serializable {
 	}
 	
 	public boolean matches(String password) {
-		return passwordHash != null &&
-			passwordHash.equals(new BasicPassword(password).getPasswordHash());
+		return passwordHash != null && getHasher().matches(password, passwordHash);
+	}
+
+	public boolean needsRehash() {
+		return passwordHash != null && getHasher().needsRehash(passwordHash);
 	}
 }
@@ -3,6 +3,7 @@ package net.databinder.auth;
 import java.security.MessageDigest;
 
 import net.databinder.auth.data.DataUser;
+import net.databinder.auth.data.PasswordHasher;
 
 import org.apache.wicket.markup.html.WebPage;
 
@@ -33,6 +34,12 @@ public interface AuthApplication<T extends DataUser> {
 	
 	/** @return application-salted hashing digest */
 	public MessageDigest getDigest();
+
+	/**
+	 * @return hasher for stored passwords
+	 * @see net.databinder.auth.data.VersionedPasswordHasher
+	 */
+	public PasswordHasher getPasswordHasher();
 	
 	/**
 	 * Get the restricted token for a user, passing an appropriate location parameter. 
@@ -0,0 +1,355 @@
+package net.databinder.auth.components;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.crypt.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RSA keys for {@link RSAPasswordTextField}, held per application. By default keys are
+ * generated on a background thread, starting when the service is created, and replaced on
+ * a schedule; the next key is generated well before it is needed. Alternatively keys can
+ * be read from a keystore file shared by every node of a cluster, so that a form rendered
+ * on one node can be posted to another. The keystore is read again when it changes, and
+ * its newest key entry is used for new forms. In both cases a key that has been replaced
+ * still decrypts for a grace period, so forms rendered before a rotation can be submitted.
+ * <pre>
+ * RSAKeyService.set(this, RSAKeyService.fromKeyStore(new File("/etc/app/rsa.jks"), password));
+ * </pre>
+ */
+public class RSAKeyService {
+	private static final Logger log = LoggerFactory.getLogger(RSAKeyService.class);
+
+	/** Defaults: 1024 bit keys, as RSA.js is configured for; daily rotation; two hour grace. */
+	public static final int DEFAULT_KEY_SIZE = 1024;
+	public static final long DEFAULT_ROTATION = 24L * 60 * 60 * 1000, DEFAULT_GRACE = 2L * 60 * 60 * 1000;
+	/** Interval between checks for a changed keystore file. */
+	public static final long KEYSTORE_CHECK = 60L * 1000;
+
+	private static final MetaDataKey<RSAKeyService> SERVICE_KEY = new MetaDataKey<RSAKeyService>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/** A key pair with a stable identifier, derived from its modulus. */
+	public static class Key {
+		private final String id;
+		private final KeyPair pair;
+		/** Time after which the key no longer decrypts. */
+		private volatile long expires = Long.MAX_VALUE;
+
+		Key(KeyPair pair) {
+			this.pair = pair;
+			try {
+				byte[] hash = MessageDigest.getInstance("SHA").digest(getPublic().getModulus().toByteArray());
+				id = new BigInteger(1, hash).toString(16).substring(0, 8);
+			} catch (GeneralSecurityException e) {
+				throw new WicketRuntimeException(e);
+			}
+		}
+		/** @return short identifier of the key, the same on every node */
+		public String getId() {
+			return id;
+		}
+		public RSAPublicKey getPublic() {
+			return (RSAPublicKey) pair.getPublic();
+		}
+		boolean isValid() {
+			return System.currentTimeMillis() < expires;
+		}
+	}
+
+	private final int keySize;
+	private final long grace;
+	private final File keyStoreFile;
+	private final char[] keyStorePassword;
+	private long keyStoreModified;
+
+	/** Current key first, then replaced keys within their grace period. */
+	private volatile List<Key> keys = Collections.emptyList();
+	private Future<Key> next;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RSAKeyService");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("RSA");
+			} catch (GeneralSecurityException e) {
+				throw new WicketRuntimeException("Can't find RSA provider", e);
+			}
+		}
+	};
+
+	/** Generates keys with default size, rotation, and grace period. */
+	public RSAKeyService() {
+		this(DEFAULT_KEY_SIZE, DEFAULT_ROTATION, DEFAULT_GRACE);
+	}
+
+	/**
+	 * Generates keys in the background, the first immediately.
+	 * @param keySize RSA key size in bits
+	 * @param rotation milliseconds between key replacements
+	 * @param grace milliseconds a replaced key continues to decrypt
+	 */
+	public RSAKeyService(int keySize, long rotation, long grace) {
+		this.keySize = keySize;
+		this.grace = grace;
+		keyStoreFile = null;
+		keyStorePassword = null;
+		synchronized (this) {
+			next = executor.submit(new Callable<Key>() {
+				public Key call() throws Exception {
+					return generate();
+				}
+			});
+		}
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				rotate();
+			}
+		}, rotation, rotation, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads keys from a keystore, now and whenever the file changes.
+	 * @param file keystore file in the default keystore format, with RSA key entries
+	 * @param password password of the keystore and its key entries
+	 * @param grace milliseconds a key removed from the keystore continues to decrypt
+	 */
+	public RSAKeyService(File file, char[] password, long grace) {
+		this.keySize = 0;
+		this.grace = grace;
+		keyStoreFile = file;
+		keyStorePassword = password.clone();
+		load();
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (keyStoreFile.lastModified() != keyStoreModified)
+					try {
+						load();
+					} catch (RuntimeException e) {
+						log.error("Unable to reload RSA keys from " + keyStoreFile, e);
+					}
+			}
+		}, KEYSTORE_CHECK, KEYSTORE_CHECK, TimeUnit.MILLISECONDS);
+	}
+
+	/** @return service reading keys from the keystore, with the default grace period */
+	public static RSAKeyService fromKeyStore(File file, char[] password) {
+		return new RSAKeyService(file, password, DEFAULT_GRACE);
+	}
+
+	/** @return service of the current application */
+	public static RSAKeyService get() {
+		return get(Application.get());
+	}
+
+	/** @return service of the given application, created with default settings on first use */
+	public static RSAKeyService get(Application app) {
+		RSAKeyService service = app.getMetaData(SERVICE_KEY);
+		if (service == null)
+			synchronized (app) {
+				service = app.getMetaData(SERVICE_KEY);
+				if (service == null)
+					app.setMetaData(SERVICE_KEY, service = new RSAKeyService());
+			}
+		return service;
+	}
+
+	/** Replaces the service of the given application, shutting down any previous one. */
+	public static void set(Application app, RSAKeyService service) {
+		RSAKeyService previous;
+		synchronized (app) {
+			previous = app.getMetaData(SERVICE_KEY);
+			app.setMetaData(SERVICE_KEY, service);
+		}
+		if (previous != null && previous != service)
+			previous.shutdown();
+	}
+
+	/**
+	 * Shuts down the service of the given application, if it has one. Called by
+	 * DataApplicationBase when the application is destroyed.
+	 */
+	public static void shutdown(Application app) {
+		RSAKeyService service = app.getMetaData(SERVICE_KEY);
+		if (service != null)
+			service.shutdown();
+	}
+
+	/** @return key for new forms; waits only if the first key is not yet generated */
+	public Key getCurrentKey() {
+		List<Key> current = keys;
+		if (current.isEmpty())
+			return awaitFirst();
+		return current.get(0);
+	}
+
+	private synchronized Key awaitFirst() {
+		if (keys.isEmpty())
+			try {
+				keys = Collections.singletonList(next.get());
+				next = null;
+			} catch (InterruptedException e) {
+				throw new WicketRuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new WicketRuntimeException("Unable to generate RSA key", e.getCause());
+			}
+		return keys.get(0);
+	}
+
+	/** @return key with the given id if it is still valid, or null */
+	public Key getKey(String id) {
+		for (Key key : keys)
+			if (key.getId().equals(id))
+				return key.isValid() ? key : null;
+		return null;
+	}
+
+	/**
+	 * @param key key the data was encrypted with
+	 * @param data encrypted data
+	 * @return decrypted data
+	 */
+	public byte[] decrypt(Key key, byte[] data) throws GeneralSecurityException {
+		Cipher rsa = ciphers.get();
+		rsa.init(Cipher.DECRYPT_MODE, key.pair.getPrivate());
+		return rsa.doFinal(data);
+	}
+
+	/** @return random Base64 challenge for a form field */
+	public String newChallenge() {
+		long value;
+		synchronized (random) {
+			value = random.nextLong();
+		}
+		return new String(Base64.encodeBase64(BigInteger.valueOf(value).toByteArray()));
+	}
+
+	/** Stops background generation or keystore checks. */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private Key generate() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(keySize, random);
+		return new Key(generator.genKeyPair());
+	}
+
+	/** Swaps in the pre-generated key and starts generating its successor. */
+	private synchronized void rotate() {
+		try {
+			Key key = next == null ? generate() : next.get();
+			setCurrent(key, keys);
+		} catch (Exception e) {
+			log.error("Unable to generate RSA key; keeping current key", e);
+		}
+		next = executor.submit(new Callable<Key>() {
+			public Key call() throws Exception {
+				return generate();
+			}
+		});
+	}
+
+	/** Makes key current, retiring others not in keep. */
+	private synchronized void setCurrent(Key key, List<Key> retire, Key... keep) {
+		long now = System.currentTimeMillis();
+		List<Key> updated = new ArrayList<Key>();
+		updated.add(key);
+		for (Key k : keep)
+			if (k != key)
+				updated.add(k);
+		for (Key old : retire) {
+			if (old == key || updated.contains(old))
+				continue;
+			if (old.expires == Long.MAX_VALUE)
+				old.expires = now + grace;
+			if (old.isValid())
+				updated.add(old);
+		}
+		keys = Collections.unmodifiableList(updated);
+	}
+
+	/** Reads key entries from the keystore; the most recently created is current. */
+	private synchronized void load() {
+		try {
+			long modified = keyStoreFile.lastModified();
+			KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+			InputStream in = new FileInputStream(keyStoreFile);
+			try {
+				store.load(in, keyStorePassword);
+			} finally {
+				in.close();
+			}
+			List<Key> loaded = new ArrayList<Key>();
+			Key newest = null;
+			Date newestDate = null;
+			for (Enumeration<String> aliases = store.aliases(); aliases.hasMoreElements(); ) {
+				String alias = aliases.nextElement();
+				if (!store.isKeyEntry(alias))
+					continue;
+				java.security.Key priv = store.getKey(alias, keyStorePassword);
+				if (!"RSA".equals(priv.getAlgorithm()) || store.getCertificate(alias) == null)
+					continue;
+				Key key = new Key(new KeyPair(store.getCertificate(alias).getPublicKey(), (java.security.PrivateKey) priv));
+				for (Key existing : keys)
+					if (existing.getId().equals(key.getId()))
+						key = existing;
+				key.expires = Long.MAX_VALUE;
+				loaded.add(key);
+				Date created = store.getCreationDate(alias);
+				if (newest == null || (created != null && (newestDate == null || created.after(newestDate)))) {
+					newest = key;
+					newestDate = created;
+				}
+			}
+			if (newest == null)
+				throw new WicketRuntimeException("No RSA key entries in " + keyStoreFile);
+			setCurrent(newest, keys, loaded.toArray(new Key[loaded.size()]));
+			keyStoreModified = modified;
+		} catch (IOException e) {
+			throw new WicketRuntimeException("Unable to read keystore " + keyStoreFile, e);
+		} catch (GeneralSecurityException e) {
+			throw new WicketRuntimeException("Unable to read keystore " + keyStoreFile, e);
+		}
+	}
+}
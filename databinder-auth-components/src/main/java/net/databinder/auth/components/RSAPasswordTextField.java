@@ -18,20 +18,12 @@
  */
 package net.databinder.auth.components;
 
-import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.interfaces.RSAPublicKey;
 
-import javax.crypto.Cipher;
-
 import net.databinder.auth.valid.EqualPasswordConvertedInputValidator;
 
 import org.apache.wicket.ResourceReference;
-import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.behavior.AttributeAppender;
 import org.apache.wicket.markup.MarkupStream;
 import org.apache.wicket.markup.html.IHeaderContributor;
@@ -43,7 +35,6 @@ import org.apache.wicket.model.AbstractReadOnlyModel;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.util.convert.ConversionException;
-import org.apache.wicket.util.crypt.Base64;
 
 /**
  * Note: if equal password validation is need, use EqualPasswordConvertedInputValidator.
@@ -60,16 +51,9 @@ public class RSAPasswordTextField extends PasswordTextField implements IHeaderCo
 			RSAPasswordTextField.class, "BigInt.js");
 
 	private String challenge;
+	/** Id of the key last sent to the client, to decrypt with after a rotation. */
+	private String keyId;
 	
-	/** 1024 bit RSA key, generated on first access. */
-	private static KeyPair keypair;
-	static {
-		try {
-			keypair = KeyPairGenerator.getInstance("RSA").genKeyPair();
-		} catch (NoSuchAlgorithmException e) {
-			throw new WicketRuntimeException("Can't find RSA provider", e);
-		}
-	}
 	public RSAPasswordTextField(String id, Form form) {
 		super(id);
 		init(form);
@@ -110,8 +94,12 @@ public class RSAPasswordTextField extends PasswordTextField implements IHeaderCo
 			}
 		}, ""));
 		
-		challenge = new String(Base64.encodeBase64(
-				BigInteger.valueOf(new SecureRandom().nextLong()).toByteArray()));
+		challenge = getKeyService().newChallenge();
+	}
+	
+	/** @return key service of the application, override to use another */
+	protected RSAKeyService getKeyService() {
+		return RSAKeyService.get();
 	}
 	
 	@Override
@@ -119,10 +107,12 @@ public class RSAPasswordTextField extends PasswordTextField implements IHeaderCo
 		String enc = (String) super.convertValue(value);
 		if (enc == null)
 			return null;
+		RSAKeyService service = getKeyService();
+		RSAKeyService.Key key = keyId == null ? null : service.getKey(keyId);
+		if (key == null)
+			throw new ConversionException("expired or unknown key").setResourceKey("RSAPasswordTextField.failed.challenge");
 		try {
-			Cipher rsa = Cipher.getInstance("RSA");
-			rsa.init(Cipher.DECRYPT_MODE, keypair.getPrivate());
-			String dec = new String(rsa.doFinal(hex2data(enc)));
+			String dec = new String(service.decrypt(key, hex2data(enc)));
 			
 			String[] toks = dec.split("\\|", 2);
 			if (toks.length != 2 || !toks[0].equals(challenge))
@@ -139,17 +129,21 @@ public class RSAPasswordTextField extends PasswordTextField implements IHeaderCo
 		response.renderJavascriptReference(BARRETT_JS);
 		response.renderJavascriptReference(RSA_JS);
 
-        RSAPublicKey pub= (RSAPublicKey)keypair.getPublic();
+		RSAKeyService.Key key = getKeyService().getCurrentKey();
+		keyId = key.getId();
+		RSAPublicKey pub = key.getPublic();
 		StringBuilder keyBuf = new StringBuilder();
 
-		// the key is unique per app instance, send once
+		// the key is shared by all fields until rotated, send once per key
 		keyBuf
-			.append("setMaxDigits(131);\nvar key= new RSAKeyPair('")
+			.append("setMaxDigits(")
+			.append(pub.getModulus().bitLength() / 8 + 3)
+			.append(");\nvar key= new RSAKeyPair('")
 			.append(pub.getPublicExponent().toString(16))
 			.append("', '', '")
 			.append(pub.getModulus().toString(16))
 			.append("');");
-		response.renderJavascript(keyBuf.toString(), "rsa_key");
+		response.renderJavascript(keyBuf.toString(), "rsa_key_" + keyId);
 		
 		// the challenge is unique per component instance, send for every component
 		StringBuilder chalBuf = new StringBuilder();
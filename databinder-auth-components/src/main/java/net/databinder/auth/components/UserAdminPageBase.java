@@ -2,6 +2,7 @@ package net.databinder.auth.components;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
@@ -10,7 +11,7 @@ import net.databinder.auth.AuthSession;
 import net.databinder.auth.data.DataUser;
 import net.databinder.auth.valid.EqualPasswordConvertedInputValidator;
 import net.databinder.components.DataStyleLink;
-import net.databinder.components.ModelSourceListPanel;
+import net.databinder.components.ModelSourceLink;
 import net.databinder.components.NullPlug;
 import net.databinder.components.UnbindLink;
 import net.databinder.models.BindingModel;
@@ -18,6 +19,10 @@ import net.databinder.models.BindingModel;
 import org.apache.wicket.Component;
 import org.apache.wicket.authorization.strategies.role.Roles;
 import org.apache.wicket.authorization.strategies.role.annotations.AuthorizeInstantiation;
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortState;
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortStateLocator;
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.OrderByLink;
+import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Button;
@@ -26,18 +31,26 @@ import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.RequiredTextField;
 import org.apache.wicket.markup.html.form.SimpleFormComponentLabel;
 import org.apache.wicket.markup.html.form.TextField;
+import org.apache.wicket.markup.html.navigation.paging.PagingNavigator;
 import org.apache.wicket.markup.html.panel.FeedbackPanel;
+import org.apache.wicket.markup.repeater.Item;
+import org.apache.wicket.markup.repeater.data.DataView;
+import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.AbstractReadOnlyModel;
 import org.apache.wicket.model.IChainingModel;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.model.PropertyModel;
 import org.apache.wicket.model.ResourceModel;
 
 /**
- * User administration page. Lists all users, allows editing usernames, passwords, and roles.
+ * User administration page. Lists users a page at a time, searchable by username, and
+ * allows editing usernames, passwords, and roles. Only users on the visible page are
+ * loaded, and the user count is kept for getUserCountCacheMillis() per search.
  * Must have Role.ADMIN to view. Replaceable String resources: <pre>
  * data.auth.user_admin
  * data.auth.user_add
+ * data.auth.user_search
  * data.auth.username
  * data.auth.password
  * data.auth.passwordConfirm
@@ -49,6 +62,10 @@ import org.apache.wicket.model.ResourceModel;
 @AuthorizeInstantiation(Roles.ADMIN)
 public abstract class UserAdminPageBase<T extends DataUser> extends WebPage {
 	protected Form<T> form;
+	/** Username prefix to list, or null for all users. */
+	private final IModel<String> userSearch = new Model<String>();
+	private CountCachingProvider userProvider;
+	private DataView<T> users;
 	protected Form<T> getUserForm() {
 		return form;
 	}
@@ -108,7 +125,38 @@ public abstract class UserAdminPageBase<T extends DataUser> extends WebPage {
 		add(new UnbindLink<T>("add", form, getBindingModel())
 			.add(new Label("text", new ResourceModel("data.auth.user_add", "Add new user"))));
 				
-		add(new ModelSourceListPanel<T>("users", form, "username", userList(userClass)));
+		Form<Void> searchForm = new Form<Void>("userSearch") {
+			@Override
+			protected void onSubmit() {
+				users.setCurrentPage(0);
+			}
+		};
+		add(searchForm);
+		TextField<String> search = new TextField<String>("search", userSearch);
+		search.setLabel(new ResourceModel("data.auth.user_search", "Search"));
+		searchForm.add(new SimpleFormComponentLabel("search-label", search));
+		searchForm.add(search);
+
+		userProvider = new CountCachingProvider(userProvider(userClass, userSearch));
+		add(new OrderByLink("sort", "username", userProvider) {
+			@Override
+			public boolean isVisible() {
+				return userProvider.isSortable();
+			}
+		}.add(new Label("text", new ResourceModel("data.auth.username", "Username"))));
+		add(users = new DataView<T>("users", userProvider, getUsersPerPage()) {
+			@Override
+			protected void populateItem(Item<T> item) {
+				item.add(new ModelSourceLink<T>("link", form, item.getModel())
+					.add(new Label("title", new PropertyModel<String>(item.getModel(), "username"))));
+			}
+		});
+		add(new PagingNavigator("navigator", users) {
+			@Override
+			public boolean isVisible() {
+				return users.getPageCount() > 1;
+			}
+		});
 	}
 	
 	protected T getUser() {
@@ -135,7 +183,29 @@ public abstract class UserAdminPageBase<T extends DataUser> extends WebPage {
 	
 	protected abstract DataUserStatusPanelBase statusPanel(String id);
 
-	protected abstract IModel<List<T>> userList(Class<T> userClass);
+	/**
+	 * Provides users to list a page at a time. Implementations should load only the
+	 * requested page, and may implement ISortStateLocator to allow sorting by username.
+	 * @param userClass user entity class
+	 * @param search username prefix to match; its object is null to list all users
+	 * @return provider of users matching the search
+	 */
+	protected abstract IDataProvider<T> userProvider(Class<T> userClass, IModel<String> search);
+
+	/** @return users listed per page, 50 by default */
+	protected int getUsersPerPage() {
+		return 50;
+	}
+
+	/** @return milliseconds to keep the user count for a search, 30 seconds by default */
+	protected long getUserCountCacheMillis() {
+		return 30000;
+	}
+
+	/** Discards the cached user count, for example after adding or deleting a user. */
+	protected void clearUserCount() {
+		userProvider.clearCount();
+	}
 	
 	protected Component lowFormSocket(String id) {
 		return new NullPlug(id);
@@ -148,4 +218,56 @@ public abstract class UserAdminPageBase<T extends DataUser> extends WebPage {
 	protected List<String> getRoleChoices() {
 		return Arrays.asList(Roles.USER, Roles.ADMIN);
 	}
+
+	/**
+	 * Keeps the size of a provider for each search, as counting a large user table
+	 * costs more than loading a page of it.
+	 */
+	private class CountCachingProvider implements IDataProvider<T>, ISortStateLocator {
+		private final IDataProvider<T> provider;
+		private final ISortState sortState = new SingleSortState();
+		private String countedSearch;
+		private int count = -1;
+		private long countedAt;
+
+		CountCachingProvider(IDataProvider<T> provider) {
+			this.provider = provider;
+		}
+
+		public Iterator<? extends T> iterator(int first, int count) {
+			return provider.iterator(first, count);
+		}
+
+		public int size() {
+			String search = userSearch.getObject();
+			long now = System.currentTimeMillis();
+			if (count < 0 || now - countedAt > getUserCountCacheMillis()
+					|| (search == null ? countedSearch != null : !search.equals(countedSearch))) {
+				count = provider.size();
+				countedSearch = search;
+				countedAt = now;
+			}
+			return count;
+		}
+
+		public IModel<T> model(T object) {
+			return provider.model(object);
+		}
+
+		void clearCount() {
+			count = -1;
+		}
+
+		boolean isSortable() {
+			return provider instanceof ISortStateLocator;
+		}
+
+		public ISortState getSortState() {
+			return isSortable() ? ((ISortStateLocator) provider).getSortState() : sortState;
+		}
+
+		public void detach() {
+			provider.detach();
+		}
+	}
 }
@@ -0,0 +1,88 @@
+package net.databinder.auth.data;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of a signed in user's name and roles, so that role checks can be
+ * answered without loading the user. Only the roles of the given registry are checked
+ * against the user, and are held as bits; for others, isChecked() is false and the user
+ * itself must be asked. The version identifies the state of the user the snapshot was
+ * taken from.
+ */
+public final class DataPrincipal implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String username;
+	private final RoleRegistry registry;
+	private final long granted;
+	private final long version;
+
+	/**
+	 * @param user user to take snapshot of
+	 * @param registry roles to check against the user
+	 * @param version version of the user's state
+	 */
+	public DataPrincipal(DataUser user, RoleRegistry registry, long version) {
+		this.username = user.getUsername();
+		this.registry = registry;
+		this.granted = registry.bits(user);
+		this.version = version;
+	}
+
+	/**
+	 * @param user user to take snapshot of
+	 * @param roles roles to check against the user
+	 * @param version version of the user's state
+	 */
+	public DataPrincipal(DataUser user, Collection<String> roles, long version) {
+		this(user, new RoleRegistry(roles.toArray(new String[roles.size()])), version);
+	}
+
+	/** @return username of the user */
+	public String getUsername() {
+		return username;
+	}
+
+	/** @return version of the user's state when the snapshot was taken */
+	public long getVersion() {
+		return version;
+	}
+
+	/** @return true if the role was checked when the snapshot was taken */
+	public boolean isChecked(String role) {
+		return registry.contains(role);
+	}
+
+	/** @return true if all the roles were checked when the snapshot was taken */
+	public boolean isChecked(Collection<String> roles) {
+		return registry.containsAll(roles);
+	}
+
+	/** @return true if the role was checked and granted to the user */
+	public boolean hasRole(String role) {
+		return registry.hasRole(granted, role);
+	}
+
+	/** @return true if any of the roles was checked and granted to the user */
+	public boolean hasAnyRole(Collection<String> roles) {
+		return registry.hasAnyRole(granted, roles);
+	}
+
+	/** @return bits of the granted roles, by position in the registry */
+	public long getRoleBits() {
+		return granted;
+	}
+
+	/** @return checked roles granted to the user */
+	public Set<String> getRoles() {
+		Set<String> roles = new HashSet<String>();
+		for (String role : registry.getRoles())
+			if (registry.hasRole(granted, role))
+				roles.add(role);
+		return Collections.unmodifiableSet(roles);
+	}
+}
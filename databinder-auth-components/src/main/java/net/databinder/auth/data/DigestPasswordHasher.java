@@ -0,0 +1,100 @@
+package net.databinder.auth.data;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.crypt.Base64;
+
+/**
+ * Application-salted message digest of the password, Base64 encoded: the original
+ * Databinder password format. Fast, so suited to tokens more than to password storage;
+ * prefer {@link Pbkdf2PasswordHasher} for new passwords. Digests are kept per thread
+ * rather than looked up for every hash.
+ */
+public class DigestPasswordHasher extends PasswordHasher {
+	private final String algorithm;
+	private final byte[] salt;
+	private final MessageDigest salted;
+
+	private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return getInstance();
+		}
+	};
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[digests.get().getDigestLength()];
+		}
+	};
+
+	/**
+	 * Hashes with SHA-1, as Databinder always has.
+	 * @param salt application salt
+	 */
+	public DigestPasswordHasher(byte[] salt) {
+		this(salt, "SHA");
+	}
+
+	/**
+	 * @param salt application salt
+	 * @param algorithm MessageDigest algorithm
+	 */
+	public DigestPasswordHasher(byte[] salt, String algorithm) {
+		this.algorithm = algorithm;
+		this.salt = salt.clone();
+		salted = getInstance();
+		salted.update(salt);
+	}
+
+	private MessageDigest getInstance() {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new WicketRuntimeException(algorithm + " Hash algorithm not found.", e);
+		}
+	}
+
+	/** @return new digest already updated with the salt, copied from a prototype */
+	public MessageDigest newDigest() {
+		try {
+			return (MessageDigest) salted.clone();
+		} catch (CloneNotSupportedException e) {
+			MessageDigest digest = getInstance();
+			digest.update(salt);
+			return digest;
+		}
+	}
+
+	/** Password bytes are in the platform encoding, as in earlier versions. */
+	@Override
+	public String hash(String password) {
+		MessageDigest digest = digests.get();
+		digest.reset();
+		digest.update(salt);
+		return new String(Base64.encodeBase64(digest.digest(password.getBytes())));
+	}
+
+	@Override
+	public boolean matches(String password, String stored) {
+		MessageDigest digest = digests.get();
+		byte[] buffer = buffers.get();
+		digest.reset();
+		digest.update(salt);
+		digest.update(password.getBytes());
+		try {
+			return matchesBase64(buffer, digest.digest(buffer, 0, buffer.length), stored);
+		} catch (DigestException e) {
+			throw new WicketRuntimeException(e);
+		}
+	}
+
+	/** @return true for any hash not in a "$" prefixed format */
+	@Override
+	public boolean recognizes(String stored) {
+		return !stored.startsWith("$");
+	}
+}
@@ -0,0 +1,61 @@
+package net.databinder.auth.data;
+
+/**
+ * Hashes passwords for storage and checks passwords against stored hashes. Each
+ * implementation recognizes its own stored format, so that hashes of different
+ * formats or strengths can coexist while users are migrated to the current one.
+ * Implementations must be thread safe.
+ * @see VersionedPasswordHasher
+ * @see net.databinder.auth.AuthApplication#getPasswordHasher()
+ */
+public abstract class PasswordHasher {
+	private static final char[] BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	/** @return encoded hash of the password, for storage */
+	public abstract String hash(String password);
+
+	/** @return true if the password matches the stored hash */
+	public abstract boolean matches(String password, String stored);
+
+	/** @return true if the stored hash is in this hasher's format */
+	public abstract boolean recognizes(String stored);
+
+	/**
+	 * @return true if the stored hash should be replaced by a new hash of the same
+	 * password, for example because it is weaker than this hasher's current setting
+	 */
+	public boolean needsRehash(String stored) {
+		return !recognizes(stored);
+	}
+
+	/** Compares the first length bytes of two arrays in time independent of their contents. */
+	protected static boolean constantEquals(byte[] a, byte[] b, int length) {
+		if (a.length < length || b.length != length)
+			return false;
+		int diff = 0;
+		for (int i = 0; i < length; i++)
+			diff |= a[i] ^ b[i];
+		return diff == 0;
+	}
+
+	/**
+	 * Compares the first length bytes of hash against standard padded Base64 text, without
+	 * encoding the hash and in time independent of their contents.
+	 */
+	protected static boolean matchesBase64(byte[] hash, int length, String encoded) {
+		if (encoded.length() != (length + 2) / 3 * 4)
+			return false;
+		int diff = 0;
+		for (int i = 0, c = 0; i < length; i += 3, c += 4) {
+			int b = (hash[i] & 0xff) << 16
+				| (i + 1 < length ? (hash[i + 1] & 0xff) << 8 : 0)
+				| (i + 2 < length ? hash[i + 2] & 0xff : 0);
+			diff |= encoded.charAt(c) ^ BASE64[b >>> 18 & 63];
+			diff |= encoded.charAt(c + 1) ^ BASE64[b >>> 12 & 63];
+			diff |= encoded.charAt(c + 2) ^ (i + 1 < length ? BASE64[b >>> 6 & 63] : '=');
+			diff |= encoded.charAt(c + 3) ^ (i + 2 < length ? BASE64[b & 63] : '=');
+		}
+		return diff == 0;
+	}
+}
@@ -0,0 +1,137 @@
+package net.databinder.auth.data;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.crypt.Base64;
+
+/**
+ * PBKDF2 with HMAC-SHA256 and a random salt per password. The iteration count is the
+ * cost parameter: each doubling doubles the work of checking a password, for the
+ * application and for anyone attacking stolen hashes. Hashes are stored as
+ * <tt>$pbkdf2-sha256$iterations$salt$hash</tt>, so the count can be raised later;
+ * hashes with fewer iterations than configured report needsRehash().
+ */
+public class Pbkdf2PasswordHasher extends PasswordHasher {
+	static final String PREFIX = "$pbkdf2-sha256$";
+	private static final String ALGORITHM = "HmacSHA256", CHARACTER_ENCODING = "UTF-8";
+	private static final int SALT_BYTES = 16, HASH_BYTES = 32;
+	/** Index of the single output block, appended to the salt. */
+	private static final byte[] BLOCK_INDEX = { 0, 0, 0, 1 };
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final int iterations;
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new WicketRuntimeException(e);
+			}
+		}
+	};
+	/** Per thread buffers for the running block and the current iteration. */
+	private final ThreadLocal<byte[][]> buffers = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[HASH_BYTES], new byte[HASH_BYTES] };
+		}
+	};
+
+	/**
+	 * @param iterations cost of each hash; should be at least 10000
+	 */
+	public Pbkdf2PasswordHasher(int iterations) {
+		if (iterations < 1)
+			throw new IllegalArgumentException("Iterations must be positive");
+		this.iterations = iterations;
+	}
+
+	/** @return iterations of new hashes */
+	public int getIterations() {
+		return iterations;
+	}
+
+	@Override
+	public String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		synchronized (random) {
+			random.nextBytes(salt);
+		}
+		byte[] hash = derive(password, salt, iterations).clone();
+		return PREFIX + iterations + "$" + Base64.encodeBase64URLSafeString(salt)
+			+ "$" + Base64.encodeBase64URLSafeString(hash);
+	}
+
+	@Override
+	public boolean matches(String password, String stored) {
+		String[] parts = parse(stored);
+		if (parts == null)
+			return false;
+		byte[] expected = Base64.decodeBase64(parts[2]);
+		return expected.length == HASH_BYTES && constantEquals(
+				derive(password, Base64.decodeBase64(parts[1]), Integer.parseInt(parts[0])), expected, HASH_BYTES);
+	}
+
+	@Override
+	public boolean recognizes(String stored) {
+		return parse(stored) != null;
+	}
+
+	@Override
+	public boolean needsRehash(String stored) {
+		String[] parts = parse(stored);
+		return parts == null || Integer.parseInt(parts[0]) < iterations;
+	}
+
+	/** @return iterations, salt, and hash text, or null if not in this format */
+	private static String[] parse(String stored) {
+		if (!stored.startsWith(PREFIX))
+			return null;
+		String[] parts = stored.substring(PREFIX.length()).split("\\$");
+		if (parts.length != 3 || parts[0].length() == 0 || parts[0].length() > 9)
+			return null;
+		for (int i = 0; i < parts[0].length(); i++)
+			if (!Character.isDigit(parts[0].charAt(i)))
+				return null;
+		return parts;
+	}
+
+	/**
+	 * Derives the single block of PBKDF2 output into a per thread buffer.
+	 * @return buffer holding derived key, valid until the next call on this thread
+	 */
+	private byte[] derive(String password, byte[] salt, int iterations) {
+		Mac mac = macs.get();
+		byte[][] bufs = buffers.get();
+		byte[] result = bufs[0], block = bufs[1];
+		try {
+			byte[] key = password.getBytes(CHARACTER_ENCODING);
+			// HMAC pads keys with zeros, so an empty password is equivalent to one zero byte
+			mac.init(new SecretKeySpec(key.length == 0 ? new byte[1] : key, ALGORITHM));
+			mac.update(salt);
+			mac.update(BLOCK_INDEX);
+			mac.doFinal(block, 0);
+			System.arraycopy(block, 0, result, 0, HASH_BYTES);
+			for (int i = 1; i < iterations; i++) {
+				mac.update(block);
+				mac.doFinal(block, 0);
+				for (int j = 0; j < HASH_BYTES; j++)
+					result[j] ^= block[j];
+			}
+			return result;
+		} catch (UnsupportedEncodingException e) {
+			throw new WicketRuntimeException(e);
+		} catch (GeneralSecurityException e) {
+			throw new WicketRuntimeException(e);
+		}
+	}
+}
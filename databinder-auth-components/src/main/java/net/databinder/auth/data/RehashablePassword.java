@@ -0,0 +1,10 @@
+package net.databinder.auth.data;
+
+/**
+ * Optional extension of {@link DataPassword} for passwords stored with a
+ * {@link PasswordHasher}, whose hashes can be upgraded when a user signs in.
+ */
+public interface RehashablePassword extends DataPassword {
+	/** @return true if the stored hash is outdated and should be replaced by change() */
+	boolean needsRehash();
+}
@@ -0,0 +1,11 @@
+package net.databinder.auth.data;
+
+/**
+ * Optional extension of {@link DataUser} for users that store their roles as bits of the
+ * application's {@link RoleRegistry}, for example in a long column alongside any role
+ * collection. Implementations can answer hasRole() with RoleRegistry.hasRole(bits, role).
+ */
+public interface RoleBitsUser extends DataUser {
+	/** @return bits of the user's roles, by position in the application's RoleRegistry */
+	long getRoleBits();
+}
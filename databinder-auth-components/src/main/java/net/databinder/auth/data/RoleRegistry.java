@@ -0,0 +1,165 @@
+package net.databinder.auth.data;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.authorization.strategies.role.Roles;
+
+/**
+ * Numbers the roles of an application, so that a user's roles can be held as bits of a
+ * long and role checks answered with bitwise operations. Up to 64 roles may be registered.
+ * A role's bit is its position in the registry, so roles stored as bits in the database
+ * (see {@link RoleBitsUser}) must keep their positions: add new roles only at the end.
+ * One registry is kept per application, set at start-up.
+ */
+public final class RoleRegistry implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** Maximum number of roles, one per bit. */
+	public static final int MAX_ROLES = 64;
+
+	private static final MetaDataKey<RoleRegistry> REGISTRY_KEY = new MetaDataKey<RoleRegistry>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final List<String> roles;
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+	private final long all;
+
+	/**
+	 * @param roles role names, in the order of their bits
+	 */
+	public RoleRegistry(String... roles) {
+		if (roles.length > MAX_ROLES)
+			throw new IllegalArgumentException("No more than " + MAX_ROLES + " roles may be registered");
+		this.roles = Collections.unmodifiableList(Arrays.asList(roles.clone()));
+		for (int i = 0; i < roles.length; i++)
+			if (indexes.put(roles[i], i) != null)
+				throw new IllegalArgumentException("Role registered twice: " + roles[i]);
+		all = roles.length == MAX_ROLES ? -1L : (1L << roles.length) - 1;
+	}
+
+	/** @return registry of the current application */
+	public static RoleRegistry get() {
+		return get(Application.get());
+	}
+
+	/** @return registry of the given application; Roles.USER and Roles.ADMIN if none was set */
+	public static RoleRegistry get(Application app) {
+		RoleRegistry registry = app.getMetaData(REGISTRY_KEY);
+		if (registry == null)
+			synchronized (app) {
+				registry = app.getMetaData(REGISTRY_KEY);
+				if (registry == null)
+					app.setMetaData(REGISTRY_KEY, registry = new RoleRegistry(Roles.USER, Roles.ADMIN));
+			}
+		return registry;
+	}
+
+	/** Sets the registry of the given application; call at start-up. */
+	public static void set(Application app, RoleRegistry registry) {
+		synchronized (app) {
+			app.setMetaData(REGISTRY_KEY, registry);
+		}
+	}
+
+	/** @return registered roles, in order of their bits */
+	public List<String> getRoles() {
+		return roles;
+	}
+
+	/** @return bit position of the role, or -1 if not registered */
+	public int indexOf(String role) {
+		Integer index = indexes.get(role);
+		return index == null ? -1 : index;
+	}
+
+	/** @return true if the role is registered */
+	public boolean contains(String role) {
+		return indexes.containsKey(role);
+	}
+
+	/** @return true if all the roles are registered */
+	public boolean containsAll(Collection<String> roles) {
+		for (String role : roles)
+			if (!indexes.containsKey(role))
+				return false;
+		return true;
+	}
+
+	/** @return bits of all registered roles */
+	public long getAll() {
+		return all;
+	}
+
+	/** @return bits of the registered roles among those given; others are ignored */
+	public long mask(Collection<String> roles) {
+		long mask = 0;
+		for (String role : roles) {
+			Integer index = indexes.get(role);
+			if (index != null)
+				mask |= 1L << index;
+		}
+		return mask;
+	}
+
+	/** @return true if the role is registered and its bit is set */
+	public boolean hasRole(long bits, String role) {
+		Integer index = indexes.get(role);
+		return index != null && (bits & (1L << index)) != 0;
+	}
+
+	/** @return true if the bit of any of the given registered roles is set */
+	public boolean hasAnyRole(long bits, Collection<String> roles) {
+		return (bits & mask(roles)) != 0;
+	}
+
+	/**
+	 * Bits of the user's registered roles, read from the user if it is a RoleBitsUser
+	 * and otherwise found by asking it for each role.
+	 * @return bits of the user's roles
+	 */
+	public long bits(DataUser user) {
+		if (user instanceof RoleBitsUser)
+			return ((RoleBitsUser) user).getRoleBits() & all;
+		long bits = 0;
+		for (int i = 0; i < roles.size(); i++)
+			if (user.hasRole(roles.get(i)))
+				bits |= 1L << i;
+		return bits;
+	}
+
+	/**
+	 * @param roleString comma separated role names, as in the Roles class; may be null
+	 * @return bits of the registered roles in the string
+	 */
+	public long parse(String roleString) {
+		long bits = 0;
+		if (roleString != null)
+			for (String role : roleString.split(",")) {
+				Integer index = indexes.get(role.trim());
+				if (index != null)
+					bits |= 1L << index;
+			}
+		return bits;
+	}
+
+	/** @return comma separated names of the roles whose bits are set */
+	public String format(long bits) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < roles.size(); i++)
+			if ((bits & (1L << i)) != 0) {
+				if (buf.length() > 0)
+					buf.append(',');
+				buf.append(roles.get(i));
+			}
+		return buf.toString();
+	}
+}
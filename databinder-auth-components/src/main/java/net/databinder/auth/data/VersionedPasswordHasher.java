@@ -0,0 +1,59 @@
+package net.databinder.auth.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hashes new passwords with a current hasher while still accepting hashes of earlier
+ * formats. Stored hashes not in the current format, or weaker than its setting, report
+ * needsRehash() so that they can be replaced when the user next signs in.
+ * <pre>
+ * protected PasswordHasher newPasswordHasher() {
+ *   return new VersionedPasswordHasher(new Pbkdf2PasswordHasher(20000), getDigestHasher());
+ * }
+ * </pre>
+ */
+public class VersionedPasswordHasher extends PasswordHasher {
+	private final PasswordHasher current;
+	private final List<PasswordHasher> accepted;
+
+	/**
+	 * @param current hasher for new passwords
+	 * @param previous hashers of formats still accepted, checked in order
+	 */
+	public VersionedPasswordHasher(PasswordHasher current, PasswordHasher... previous) {
+		this.current = current;
+		this.accepted = Arrays.asList(previous);
+	}
+
+	@Override
+	public String hash(String password) {
+		return current.hash(password);
+	}
+
+	@Override
+	public boolean matches(String password, String stored) {
+		PasswordHasher hasher = find(stored);
+		return hasher != null && hasher.matches(password, stored);
+	}
+
+	@Override
+	public boolean recognizes(String stored) {
+		return find(stored) != null;
+	}
+
+	@Override
+	public boolean needsRehash(String stored) {
+		return current.needsRehash(stored);
+	}
+
+	/** @return hasher for the stored format, or null if none */
+	private PasswordHasher find(String stored) {
+		if (current.recognizes(stored))
+			return current;
+		for (PasswordHasher hasher : accepted)
+			if (hasher.recognizes(stored))
+				return hasher;
+		return null;
+	}
+}
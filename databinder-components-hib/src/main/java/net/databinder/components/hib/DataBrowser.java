@@ -20,10 +20,13 @@
 package net.databinder.components.hib;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import net.databinder.hib.Databinder;
 
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.markup.html.IHeaderResponse;
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.markup.html.basic.Label;
@@ -51,6 +54,10 @@ public class DataBrowser<T> extends WebPage {
   private static final ResourceReference CSS =
     new PackageResourceReference(DataBrowser.class, "DataBrowser.css");
 
+	private static final MetaDataKey<List<String>> ENTITY_NAMES_KEY = new MetaDataKey<List<String>>() {
+		private static final long serialVersionUID = 1L;
+	};
+
 	public DataBrowser(boolean allowAccess) {
 		if (allowAccess) {
 			add(new QueryPanel("queryPanel"));
@@ -61,8 +68,7 @@ public class DataBrowser<T> extends WebPage {
 				@SuppressWarnings("unchecked")
 				@Override
 				protected List<T> load() {
-					return new ArrayList<T>(
-							Databinder.getHibernateSessionFactory().getAllClassMetadata().keySet());
+					return (List<T>) (List<?>) getEntityNames();
 				}
 			}) {
         private static final long serialVersionUID = DataBrowser.serialVersionUID;
@@ -76,6 +82,28 @@ public class DataBrowser<T> extends WebPage {
 		} else setResponsePage(AccessDeniedPage.class);
 	}
 
+	/**
+	 * Entity names are read from the default session factory once and kept for the
+	 * lifetime of the application.
+	 * @return sorted names of the mapped entities
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<String> getEntityNames() {
+		Application app = Application.get();
+		List<String> names = app.getMetaData(ENTITY_NAMES_KEY);
+		if (names == null)
+			synchronized (app) {
+				names = app.getMetaData(ENTITY_NAMES_KEY);
+				if (names == null) {
+					names = new ArrayList<String>(
+							Databinder.getHibernateSessionFactory().getAllClassMetadata().keySet());
+					Collections.sort(names);
+					app.setMetaData(ENTITY_NAMES_KEY, names = Collections.unmodifiableList(names));
+				}
+			}
+		return names;
+	}
+
   @Override
   public void renderHead(IHeaderResponse response)
   {
@@ -18,8 +18,10 @@
  */
 package net.databinder.components.hib;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
+import net.databinder.models.Models;
 import net.databinder.models.hib.HibernateObjectModel;
 
 import org.apache.wicket.markup.repeater.RefreshingView;
@@ -36,6 +38,9 @@ import org.apache.wicket.model.IModel;
 public abstract class IterableEntityView<T> extends RefreshingView<T> {
   private static final long serialVersionUID = 1L;
 
+	/** Controls sharing of item models for the same entity within a request. */
+	private boolean shareModels = false;
+
 	/**
 	 * Contruct with externally bound model whose object must be Iterable.
 	 * @param id
@@ -59,13 +64,32 @@ public abstract class IterableEntityView<T> extends RefreshingView<T> {
 	}
 
 	/**
-	 * Wraps o in a HibernateObjectModel inside a BoundCompoundPropertyModel. Override
+	 * When enabled, items for the same entity are given the same model instance for the
+	 * remainder of the request, as with PropertyDataProvider.setShareModels().
+	 * @param shareModels true to share item models within a request
+	 * @return this, for chaining
+	 */
+	public IterableEntityView<T> setShareModels(boolean shareModels) {
+		this.shareModels = shareModels;
+		return this;
+	}
+
+	/**
+	 * Wraps o in a HibernateObjectModel inside a BoundCompoundPropertyModel, or returns
+	 * the model already created for o in this request if models are shared. Override
 	 * if the compound property model is not desired.
 	 * @param o object to be wrapped
 	 * @return detachable model wrapping object
 	 */
 	protected IModel<T> model(T o) {
-		return new CompoundPropertyModel<T>(new HibernateObjectModel<T>(o));
+		Object entityKey = shareModels ? HibernateObjectModel.getIdentityKey(o, null) : null;
+		if (entityKey == null)
+			return new CompoundPropertyModel<T>(new HibernateObjectModel<T>(o));
+		Object key = Arrays.asList(entityKey, true);
+		IModel<T> shared = Models.getShared(key);
+		if (shared != null)
+			return shared;
+		return Models.putShared(key, new CompoundPropertyModel<T>(new HibernateObjectModel<T>(o)));
 	}
 
 	private class ModelIterator implements Iterator<IModel<T>>
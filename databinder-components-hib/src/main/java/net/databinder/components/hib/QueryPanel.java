@@ -23,6 +23,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.databinder.hib.Databinder;
 import net.databinder.models.hib.HibernateObjectModel;
@@ -49,8 +52,11 @@ import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.model.PropertyModel;
 import org.apache.wicket.util.string.Strings;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.QueryException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.metadata.ClassMetadata;
@@ -75,10 +81,25 @@ import org.hibernate.type.Type;
  * </pre>
  * the columns in the result table will be the available properties of a
  * JobModel
+ * <p>
+ * Rows are counted with a count query derived from the query where possible, and
+ * fetched one page at a time. No more than getMaxResults() rows are counted or paged
+ * through, so that the panel may be used against large tables. If the count query
+ * cannot be parsed, rows are counted by scrolling through the query instead; if it fails
+ * in the database, the current transaction is rolled back and a new one begun first, as
+ * some databases refuse further statements in a failed transaction.
  */
 public class QueryPanel extends Panel {
 	private static final long serialVersionUID = 1L;
 
+	public static final int DEFAULT_MAX_RESULTS = 10000;
+
+	private static final Pattern KEYWORD = Pattern.compile("'(?:[^']|'')*'|[()]|\\b(from|order\\s+by|group\\s+by|having)\\b");
+	private static final Pattern AGGREGATE = Pattern.compile("\\b(count|sum|avg|min|max)\\s*\\(");
+	private static final Pattern FETCH = Pattern.compile("\\bjoin\\s+fetch\\b", Pattern.CASE_INSENSITIVE);
+
+	private int maxResults = DEFAULT_MAX_RESULTS;
+
 	/**
 	 * Bean used to store the query
 	 */
@@ -158,8 +179,30 @@ public class QueryPanel extends Panel {
 
 				public int size() {
 					Session sess = Databinder.getHibernateSession();
-					Query query = sess.createQuery(getQuery());
-					return query.list().size();
+					String countQuery = getCountQuery(getQuery());
+					if (countQuery != null)
+						try {
+							Number count = (Number) sess.createQuery(countQuery).uniqueResult();
+							return (int) Math.min(count.longValue(), maxResults);
+						} catch (QueryException e) {
+							// the derived query does not parse; count rows instead
+						} catch (HibernateException e) {
+							// failed in the database, which may have aborted the transaction
+							if (sess.getTransaction().isActive()) {
+								sess.getTransaction().rollback();
+								sess.beginTransaction();
+							}
+						}
+					ScrollableResults results = sess.createQuery(getQuery())
+						.setReadOnly(true).setMaxResults(maxResults).scroll(ScrollMode.FORWARD_ONLY);
+					try {
+						int count = 0;
+						while (results.next())
+							count++;
+						return count;
+					} finally {
+						results.close();
+					}
 				}
 
 				public String getQuery() {
@@ -176,8 +219,10 @@ public class QueryPanel extends Panel {
 					try {
 						Query q = sess.createQuery(getQuery());
 						q.setFirstResult(first);
-						q.setMaxResults(count);
-						return q.iterate();
+						q.setMaxResults(Math.min(count, maxResults - first));
+						q.setFetchSize(count);
+						q.setReadOnly(true);
+						return q.list().iterator();
 					} finally {
 						float nanoTime = ((System.nanoTime()-start) / 1000) / 1000.0f;
 						setExecutionInfo("query executed in "+nanoTime+" ms: "+getQuery());
@@ -249,6 +294,67 @@ public class QueryPanel extends Panel {
 		}
 	}
 
+	/**
+	 * Derives a query counting the rows of an HQL query. The select clause is replaced
+	 * with count(*), or count(distinct ...) for a single distinct expression; a final order
+	 * by is dropped, and fetch joins become plain joins, which return the same rows.
+	 * @param hql query entered
+	 * @return count query, or null if the query has a group by, having, or aggregate
+	 * select, or a select this method cannot count
+	 */
+	protected String getCountQuery(String hql) {
+		String q = hql.trim();
+		String lower = q.toLowerCase(Locale.ENGLISH);
+		int from = -1, order = -1, depth = 0;
+		Matcher m = KEYWORD.matcher(lower);
+		while (m.find()) {
+			String token = m.group();
+			if (token.equals("("))
+				depth++;
+			else if (token.equals(")"))
+				depth--;
+			else if (depth == 0 && m.group(1) != null) {
+				if (token.startsWith("group") || token.equals("having"))
+					return null;
+				if (token.equals("from") && from < 0)
+					from = m.start();
+				else if (token.startsWith("order"))
+					order = m.start();
+			}
+		}
+		if (from < 0)
+			return null;
+		String select = "count(*)";
+		if (lower.startsWith("select")) {
+			String projection = q.substring("select".length(), from).trim();
+			if (AGGREGATE.matcher(projection.toLowerCase(Locale.ENGLISH)).find())
+				return null;
+			if (projection.toLowerCase(Locale.ENGLISH).startsWith("distinct")) {
+				projection = projection.substring("distinct".length()).trim();
+				if (projection.contains(","))
+					return null;
+				select = "count(distinct " + projection + ")";
+			}
+		} else if (from > 0)
+			return null;
+		String body = order > from ? q.substring(from, order) : q.substring(from);
+		return "select " + select + " " + FETCH.matcher(body.trim()).replaceAll("join");
+	}
+
+	/** @return most rows counted or paged through */
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * @param maxResults most rows to count or page through
+	 * @return this, for chaining
+	 */
+	public QueryPanel setMaxResults(int maxResults) {
+		this.maxResults = maxResults;
+		return this;
+	}
+
 	private static class QueryBean implements Serializable {
 		private static final long serialVersionUID = 1L;
 		private String query;
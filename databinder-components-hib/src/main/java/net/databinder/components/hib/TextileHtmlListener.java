@@ -0,0 +1,127 @@
+package net.databinder.components.hib;
+
+import java.beans.Introspector;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jtextile.JTextile;
+import net.databinder.components.TextileHtml;
+import net.databinder.components.TextileLabel;
+import net.databinder.hib.EventListenerArrays;
+
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PreInsertEvent;
+import org.hibernate.event.PreInsertEventListener;
+import org.hibernate.event.PreUpdateEvent;
+import org.hibernate.event.PreUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Stores the JTextile output of entity properties in properties annotated with
+ * {@link TextileHtml}, so that TextileLabel can render it without formatting the source
+ * on every read. Output is recomputed before each insert, and before updates that change
+ * the source or whose stored output is from an older TextileLabel.FORMAT_VERSION.
+ * Register with a configuration before building its session factory:
+ * <pre>
+ * protected void configureHibernate(AnnotationConfiguration config) {
+ *   super.configureHibernate(config);
+ *   TextileHtmlListener.register(config);
+ * }
+ * </pre>
+ * Rows written before the listener was registered, or before a formatter version change,
+ * are rendered from their source until they are next updated.
+ */
+public class TextileHtmlListener implements PreInsertEventListener, PreUpdateEventListener {
+	private static final long serialVersionUID = 1L;
+
+	/** Pairs of stored output and source property indexes, by entity name. */
+	private final ConcurrentMap<String, int[][]> bindings = new ConcurrentHashMap<String, int[][]>();
+
+	/**
+	 * Adds a Textile listener to the configuration, retaining existing listeners.
+	 * @param config configuration to add listener to
+	 */
+	public static void register(Configuration config) {
+		TextileHtmlListener listener = new TextileHtmlListener();
+		EventListeners listeners = config.getEventListeners();
+		listeners.setPreInsertEventListeners(EventListenerArrays.append(listeners.getPreInsertEventListeners(), listener));
+		listeners.setPreUpdateEventListeners(EventListenerArrays.append(listeners.getPreUpdateEventListeners(), listener));
+	}
+
+	public boolean onPreInsert(PreInsertEvent event) {
+		for (int[] binding : getBindings(event.getPersister()))
+			update(event.getEntity(), event.getState(), binding, event.getPersister(), event.getSession().getEntityMode());
+		return false;
+	}
+
+	public boolean onPreUpdate(PreUpdateEvent event) {
+		Object[] state = event.getState(), oldState = event.getOldState();
+		for (int[] binding : getBindings(event.getPersister())) {
+			int html = binding[0], source = binding[1];
+			boolean current = oldState != null && equal(state[source], oldState[source])
+				&& TextileLabel.unstamp((String) state[html]) != null;
+			if (!current)
+				update(event.getEntity(), state, binding, event.getPersister(), event.getSession().getEntityMode());
+		}
+		return false;
+	}
+
+	/** Sets stamped output on the entity and in the state to be written. */
+	private void update(Object entity, Object[] state, int[] binding, EntityPersister persister, EntityMode mode) {
+		String html = null;
+		if (state[binding[1]] != null)
+			try {
+				html = TextileLabel.stamp(JTextile.textile(state[binding[1]].toString()));
+			} catch (Exception e) {
+				throw new HibernateException("Unable to format Textile for " + persister.getEntityName(), e);
+			}
+		persister.setPropertyValue(entity, binding[0], html, mode);
+		state[binding[0]] = html;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/** @return annotated property pairs of the persister's entity, inspected once per entity */
+	private int[][] getBindings(EntityPersister persister) {
+		int[][] found = bindings.get(persister.getEntityName());
+		if (found == null) {
+			List<int[]> list = new ArrayList<int[]>();
+			Class<?> mapped = persister.getMappedClass(EntityMode.POJO);
+			for (Class<?> c = mapped; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields())
+					if (field.isAnnotationPresent(TextileHtml.class))
+						list.add(binding(persister, field.getName(), field.getAnnotation(TextileHtml.class)));
+				for (Method method : c.getDeclaredMethods())
+					if (method.isAnnotationPresent(TextileHtml.class))
+						list.add(binding(persister, propertyName(method), method.getAnnotation(TextileHtml.class)));
+			}
+			found = list.toArray(new int[list.size()][]);
+			bindings.putIfAbsent(persister.getEntityName(), found);
+		}
+		return found;
+	}
+
+	private static int[] binding(EntityPersister persister, String html, TextileHtml annotation) {
+		return new int[] { persister.getEntityMetamodel().getPropertyIndex(html),
+				persister.getEntityMetamodel().getPropertyIndex(annotation.value()) };
+	}
+
+	/** @return property name for a getter */
+	private static String propertyName(Method getter) {
+		String name = getter.getName();
+		if (name.startsWith("get"))
+			return Introspector.decapitalize(name.substring(3));
+		if (name.startsWith("is"))
+			return Introspector.decapitalize(name.substring(2));
+		return name;
+	}
+}
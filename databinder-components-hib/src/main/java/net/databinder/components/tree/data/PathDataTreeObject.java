@@ -0,0 +1,26 @@
+package net.databinder.components.tree.data;
+
+/**
+ * Optional extension of {@link DataTreeObject} for entities that keep a materialized
+ * path of their ancestors' identifiers in a mapped "path" property, such as
+ * "/1/5/9/" for a node whose parent has id 9. Paths are maintained by
+ * {@link net.databinder.components.tree.hib.DataTreePathListener} and let tree
+ * components load subtrees and ancestors with a constant number of queries.
+ * Rows that existed before the listener was registered must be given paths
+ * separately.
+ *
+ * @param <T>
+ *            the concrete type this tree node is representing
+ */
+public interface PathDataTreeObject<T> extends DataTreeObject<T> {
+
+	/**
+	 * @return identifiers of this node's ancestors from the top level down, each
+	 * followed by a slash and the whole preceded by one; "/" for top level nodes
+	 */
+	public String getPath();
+
+	/** Set by DataTreePathListener; should not normally be called otherwise. */
+	public void setPath(String path);
+
+}
@@ -2,12 +2,16 @@ package net.databinder.components.tree.hib;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeModel;
 
 import net.databinder.components.tree.data.DataTreeObject;
+import net.databinder.components.tree.data.PathDataTreeObject;
+import net.databinder.hib.Databinder;
 import net.databinder.models.hib.CriteriaBuilder;
 import net.databinder.models.hib.HibernateListModel;
 import net.databinder.models.hib.HibernateObjectModel;
@@ -18,12 +22,20 @@ import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.Model;
 import org.hibernate.Criteria;
 import org.hibernate.criterion.Property;
+import org.hibernate.proxy.HibernateProxyHelper;
 
 
 /**
  * An extension of {@link BaseTree} based on node objects being represented by
  * {@link HibernateObjectModel}s. Additionally, it offers some convenience
  * methods.
+ * <p>
+ * Nodes for persistent entities are {@link LazyDataTreeNode}s: only the root level
+ * is loaded on construction, and the children of a node are loaded when it is
+ * expanded, from its children collection or, if the loader has an order property,
+ * with a query on their "parent" property. Override {@link #newLoader(Class)} to
+ * customize how nodes are loaded.
+ * </p>
  *
  * @author Thomas Kappler
  *
@@ -32,31 +44,69 @@ import org.hibernate.criterion.Property;
 public abstract class DataTree<T extends DataTreeObject<T>> extends BaseTree {
   private static final long serialVersionUID = 1L;
 
+	/** Loader for lazy nodes, null if the tree has none. */
+	private DataTreeLoader<T> loader;
+
 	/**
-	 * Construct a tree with a root entity.
+	 * Construct a tree with a root entity. If the root is persistent, its children
+	 * are loaded when first needed.
 	 * @param id Wicket id
 	 * @param rootModel must contain a root of type T
 	 */
+	@SuppressWarnings("unchecked")
 	public DataTree(String id, HibernateObjectModel<T> rootModel) {
 		super(id);
-		DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode(rootModel);
-		populateTree(rootNode, (rootModel.getObject()).getChildren());
+		T root = rootModel.getObject();
+		DefaultMutableTreeNode rootNode;
+		if (Databinder.getHibernateSession().contains(root)) {
+			loader = newLoader((Class<T>) HibernateProxyHelper.getClassWithoutInitializingProxy(root));
+			rootNode = new LazyDataTreeNode<T>(rootModel, rootModel.getIdentifier(), LazyDataTreeNode.UNKNOWN_COUNT, loader);
+		} else {
+			rootNode = new DefaultMutableTreeNode(rootModel);
+			populateTree(rootNode, root.getChildren());
+		}
 		setDefaultModel(Model.of(new DefaultTreeModel(rootNode)));
 	}
 
 	/**
-	 * Construct a rootless tree based on a list of top level nodes.
+	 * Construct a rootless tree based on a list of top level nodes. Children of
+	 * the top level nodes are loaded when first needed.
 	 * @param id
 	 * @param topLevelModel must contain a List<T> of top level children
 	 */
+	@SuppressWarnings("unchecked")
 	public DataTree(String id, HibernateListModel<T> topLevelModel) {
 		super(id);
 		setRootLess(true);
 		DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode(topLevelModel);
-		populateTree(rootNode, topLevelModel.getObject());
+		List<T> topLevel = topLevelModel.getObject();
+		if (!topLevel.isEmpty()) {
+			loader = newLoader(
+					(Class<T>) HibernateProxyHelper.getClassWithoutInitializingProxy(topLevel.get(0)));
+			for (LazyDataTreeNode<T> node : loader.newNodes(topLevel))
+				rootNode.add(node);
+		}
 		setDefaultModel(Model.of(new DefaultTreeModel(rootNode)));
 	}
 
+	/**
+	 * Creates the loader used by this tree's nodes to fetch their children. Called
+	 * during construction. Returns a PathDataTreeLoader if nodeClass implements
+	 * PathDataTreeObject.
+	 * @param nodeClass entity class of the first loaded node
+	 * @return loader for nodeClass
+	 */
+	protected DataTreeLoader<T> newLoader(Class<T> nodeClass) {
+		if (PathDataTreeObject.class.isAssignableFrom(nodeClass))
+			return new PathDataTreeLoader<T>(nodeClass);
+		return new DataTreeLoader<T>(nodeClass);
+	}
+
+	/** @return loader for lazy nodes, or null if the tree has none */
+	public DataTreeLoader<T> getLoader() {
+		return loader;
+	}
+
 	/**
 	 * Convenience criteria builder for fetching top-level entities.
 	 */
@@ -83,7 +133,7 @@ public abstract class DataTree<T extends DataTreeObject<T>> extends BaseTree {
 
 	/**
 	 * Recursively build the tree nodes according to the structure given by the
-	 * beans.
+	 * beans. Used for unsaved roots, whose children can not be queried.
 	 *
 	 * @param parent
 	 *            a tree node serving as parent to the newly created nodes for
@@ -134,7 +184,11 @@ public abstract class DataTree<T extends DataTreeObject<T>> extends BaseTree {
 	 *            to node serving as parent of the new object
 	 * @return the newly created tree node
 	 */
+	@SuppressWarnings("unchecked")
 	public DefaultMutableTreeNode addNewChildNode(DefaultMutableTreeNode parentNode) {
+		// load existing children before the new one may be flushed
+		if (parentNode instanceof LazyDataTreeNode)
+			((LazyDataTreeNode<T>) parentNode).ensureChildrenLoaded();
 		T newObject = createNewObject();
 
 		T parent = getDataTreeNode(parentNode);
@@ -147,6 +201,46 @@ public abstract class DataTree<T extends DataTreeObject<T>> extends BaseTree {
 		return newNode;
 	}
 
+	/**
+	 * Loads all nodes of the tree that have not yet been loaded, with one query per
+	 * level of the hierarchy (per DataTreeLoader.BATCH_SIZE parents), children collections
+	 * included. Call before expanding all nodes.
+	 * @see DataTreeLoader#populateSubtree(DefaultMutableTreeNode)
+	 */
+	public void loadAllNodes() {
+		if (loader != null)
+			loader.populateSubtree(getRootNode());
+	}
+
+	/**
+	 * Deletes a persistent node and its descendants through the tree's loader, or
+	 * through the session if the tree has no loader.
+	 * @param node persistent entity to delete
+	 * @see DataTreeLoader#deleteSubtree(DataTreeObject)
+	 */
+	public void deleteSubtree(T node) {
+		if (loader != null)
+			loader.deleteSubtree(node);
+		else
+			Databinder.getHibernateSession().delete(node);
+	}
+
+	/**
+	 * Loads the ancestors of a persistent node through the tree's loader, e.g. for a
+	 * breadcrumb trail.
+	 * @param node persistent entity
+	 * @return ancestors from the top level down to the node's parent
+	 * @see DataTreeLoader#loadAncestors(DataTreeObject)
+	 */
+	public List<T> loadAncestors(T node) {
+		if (loader != null)
+			return loader.loadAncestors(node);
+		LinkedList<T> ancestors = new LinkedList<T>();
+		for (T parent = node.getParent(); parent != null; parent = parent.getParent())
+			ancestors.addFirst(parent);
+		return ancestors;
+	}
+
 	/**
 	 * Repaint the tree when something has changed. It possibly does too much,
 	 * but you're safe that changes do show after you call it.
@@ -75,7 +75,10 @@ public class DataTreeDeleteButton<T extends DataTreeObject<T>> extends AjaxButto
 
 		Session session = Databinder.getHibernateSession();
 		if (session.contains(selected)) {
-			session.delete(selected);
+			if (deleteOnlyLeafs)
+				session.delete(selected);
+			else
+				tree.deleteSubtree(selected);
 			session.getTransaction().commit();
 		}
 
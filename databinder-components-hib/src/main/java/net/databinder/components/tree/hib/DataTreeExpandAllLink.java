@@ -6,7 +6,8 @@ import org.apache.wicket.ajax.markup.html.AjaxLink;
 
 
 /**
- * Expand all tree nodes.
+ * Expand all tree nodes. Nodes not yet loaded are loaded in one query per tree level
+ * before expanding.
  *
  * @author Thomas Kappler
  */
@@ -22,6 +23,7 @@ public class DataTreeExpandAllLink extends AjaxLink<Void> {
 
 	@Override
 	public void onClick(AjaxRequestTarget target) {
+		tree.loadAllNodes();
 		tree.getTreeState().expandAll();
 		tree.updateTree(target);
 	}
@@ -0,0 +1,251 @@
+package net.databinder.components.tree.hib;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import net.databinder.components.tree.data.DataTreeObject;
+import net.databinder.hib.Databinder;
+import net.databinder.models.hib.HibernateObjectModel;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ * Loads the nodes of a {@link DataTree} on demand. Child counts are loaded in bulk for
+ * each set of siblings so that leaf status is known without loading the next level.
+ * Whole subtrees can be loaded level by level for expanding all nodes. Children keep
+ * the order of their parent's getChildren() collection, which is fetched with its
+ * parent in batches, unless an order property is set, in which case they are queried
+ * on the "parent" property in that order without initializing the collections.
+ *
+ * @param <T> see {@link DataTree}
+ */
+public class DataTreeLoader<T extends DataTreeObject<T>> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** Maximum number of ids bound to a single IN restriction. */
+	protected static final int BATCH_SIZE = 500;
+
+	private Class<T> nodeClass;
+	/** Property to order queried children by, or null for the order of getChildren() */
+	private String orderProperty;
+
+	/**
+	 * @param nodeClass entity class declaring the "parent" property
+	 */
+	public DataTreeLoader(Class<T> nodeClass) {
+		this.nodeClass = nodeClass;
+	}
+
+	/** @return entity class of tree nodes */
+	public Class<T> getNodeClass() {
+		return nodeClass;
+	}
+
+	/** @return property children are ordered by, or null for the order of getChildren() */
+	public String getOrderProperty() {
+		return orderProperty;
+	}
+
+	/**
+	 * Orders children by a property, such as "id", rather than by their parent's
+	 * getChildren() collection, so that they can be queried without initializing it.
+	 * @param orderProperty property to order by, or null for collection order
+	 * @return this, for chaining
+	 */
+	public DataTreeLoader<T> setOrderProperty(String orderProperty) {
+		this.orderProperty = orderProperty;
+		return this;
+	}
+
+	/**
+	 * Loads the children of the given parent, from its children collection or, if an
+	 * order property is set, with a single query.
+	 * @param parentId identifier of the parent entity
+	 * @return children of the parent, in child order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> loadChildren(Serializable parentId) {
+		if (orderProperty == null)
+			return new ArrayList<T>(((T) getSession().load(nodeClass, parentId)).getChildren());
+		Criteria criteria = getSession().createCriteria(nodeClass)
+			.add(Restrictions.eq("parent.id", parentId));
+		orderChildren(criteria);
+		return criteria.list();
+	}
+
+	/**
+	 * Counts the children of each of the given parents, with one query per BATCH_SIZE parents.
+	 * @param parentIds identifiers of parent entities
+	 * @return map of parent identifiers to child counts; parents without children are absent
+	 */
+	public Map<Serializable, Integer> countChildren(List<Serializable> parentIds) {
+		Map<Serializable, Integer> counts = new HashMap<Serializable, Integer>();
+		Session sess = getSession();
+		for (int i = 0; i < parentIds.size(); i += BATCH_SIZE) {
+			List<?> rows = sess.createQuery("select n.parent.id, count(*) from " + nodeClass.getName() +
+					" n where n.parent.id in (:ids) group by n.parent.id")
+				.setParameterList("ids", parentIds.subList(i, Math.min(i + BATCH_SIZE, parentIds.size())))
+				.list();
+			for (Object row : rows) {
+				Object[] r = (Object[]) row;
+				counts.put((Serializable) r[0], ((Number) r[1]).intValue());
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Loads children of the node and adds them to it as unloaded nodes whose
+	 * child counts are already known.
+	 * @param node node of a persistent entity
+	 */
+	public void populate(LazyDataTreeNode<T> node) {
+		for (LazyDataTreeNode<T> child : newNodes(loadChildren(node.getEntityId())))
+			node.add(child);
+	}
+
+	/**
+	 * Loads every node below the given node that is not yet loaded. Instead of one query
+	 * per parent, children of all unloaded nodes on the same level are queried together,
+	 * so the number of queries depends on the depth of the tree (and BATCH_SIZE) rather
+	 * than its number of nodes. Without an order property, the level's parents are queried
+	 * with their children collections fetched, keeping collection order.
+	 * @param node root of the subtree to load
+	 */
+	@SuppressWarnings("unchecked")
+	public void populateSubtree(DefaultMutableTreeNode node) {
+		List<LazyDataTreeNode<T>> level = new ArrayList<LazyDataTreeNode<T>>();
+		collectUnloaded(node, level);
+		Session sess = getSession();
+		while (!level.isEmpty()) {
+			Map<Serializable, LazyDataTreeNode<T>> parents = new HashMap<Serializable, LazyDataTreeNode<T>>();
+			for (LazyDataTreeNode<T> parent : level) {
+				if (parent.getExpectedChildCount() != 0)
+					parents.put(parent.getEntityId(), parent);
+				parent.setChildrenLoaded();
+			}
+			List<Serializable> ids = new ArrayList<Serializable>(parents.keySet());
+			Map<Serializable, List<T>> children = new HashMap<Serializable, List<T>>();
+			for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+				List<Serializable> batch = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+				if (orderProperty == null)
+					for (T parent : (List<T>) sess.createQuery("from " + nodeClass.getName() +
+							" n left join fetch n.children where n.id in (:ids)").setParameterList("ids", batch).list())
+						children.put(sess.getIdentifier(parent), new ArrayList<T>(parent.getChildren()));
+				else {
+					Criteria criteria = sess.createCriteria(nodeClass).add(Restrictions.in("parent.id", batch));
+					orderChildren(criteria);
+					for (T child : (List<T>) criteria.list())
+						addSibling(children, sess.getIdentifier(child.getParent()), child);
+				}
+			}
+			List<LazyDataTreeNode<T>> next = new ArrayList<LazyDataTreeNode<T>>();
+			for (Map.Entry<Serializable, List<T>> e : children.entrySet())
+				for (T child : e.getValue()) {
+					LazyDataTreeNode<T> childNode = newNode(child, sess.getIdentifier(child), LazyDataTreeNode.UNKNOWN_COUNT);
+					parents.get(e.getKey()).add(childNode);
+					next.add(childNode);
+				}
+			level = next;
+		}
+	}
+
+	/** Adds child to the list of siblings under parentId, creating it if needed. */
+	protected static <T> void addSibling(Map<Serializable, List<T>> children, Serializable parentId, T child) {
+		List<T> siblings = children.get(parentId);
+		if (siblings == null)
+			children.put(parentId, siblings = new ArrayList<T>());
+		siblings.add(child);
+	}
+
+	/** Adds unloaded lazy nodes at or below node to the list, without loading any. */
+	@SuppressWarnings("unchecked")
+	protected void collectUnloaded(DefaultMutableTreeNode node, List<LazyDataTreeNode<T>> unloaded) {
+		if (node instanceof LazyDataTreeNode && !((LazyDataTreeNode<T>) node).isChildrenLoaded())
+			unloaded.add((LazyDataTreeNode<T>) node);
+		else
+			for (int i = 0; i < node.getChildCount(); i++)
+				collectUnloaded((DefaultMutableTreeNode) node.getChildAt(i), unloaded);
+	}
+
+	/**
+	 * Creates a node for a top level entity, or other entity whose child count
+	 * is not yet known.
+	 * @param entity persistent entity
+	 * @return unloaded node for the entity
+	 */
+	public LazyDataTreeNode<T> newNode(T entity) {
+		return newNode(entity, getSession().getIdentifier(entity), LazyDataTreeNode.UNKNOWN_COUNT);
+	}
+
+	/**
+	 * Creates unloaded nodes for sibling entities, with bulk-loaded child counts.
+	 * @param entities persistent entities
+	 * @return unloaded nodes for the entities
+	 */
+	public List<LazyDataTreeNode<T>> newNodes(List<T> entities) {
+		Session sess = getSession();
+		List<Serializable> ids = new ArrayList<Serializable>(entities.size());
+		for (T entity : entities)
+			ids.add(sess.getIdentifier(entity));
+		Map<Serializable, Integer> counts = entities.isEmpty() ?
+				new HashMap<Serializable, Integer>() : countChildren(ids);
+		List<LazyDataTreeNode<T>> nodes = new ArrayList<LazyDataTreeNode<T>>(entities.size());
+		for (int i = 0; i < entities.size(); i++) {
+			Integer count = counts.get(ids.get(i));
+			nodes.add(newNode(entities.get(i), ids.get(i), count == null ? 0 : count));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Deletes a node and its descendants. Deletes the node through the session by default,
+	 * leaving deletion of its children to the mapping's cascade settings.
+	 * @param node persistent entity to delete
+	 */
+	public void deleteSubtree(T node) {
+		getSession().delete(node);
+	}
+
+	/**
+	 * Loads the ancestors of a node, e.g. for a breadcrumb trail. Walks the node's
+	 * parents by default, initializing each in turn.
+	 * @param node persistent entity
+	 * @return ancestors from the top level down to the node's parent
+	 */
+	public List<T> loadAncestors(T node) {
+		LinkedList<T> ancestors = new LinkedList<T>();
+		for (T parent = node.getParent(); parent != null; parent = parent.getParent())
+			ancestors.addFirst(parent);
+		return ancestors;
+	}
+
+	/** Constructs a node; override to use a LazyDataTreeNode subclass. */
+	protected LazyDataTreeNode<T> newNode(T entity, Serializable id, int childCount) {
+		return new LazyDataTreeNode<T>(new HibernateObjectModel<T>(entity), id, childCount, this);
+	}
+
+	/**
+	 * Applies ordering to children queries: the order property, if set. Without one,
+	 * children are read from their fetched collections instead.
+	 * @param criteria children criteria
+	 */
+	protected void orderChildren(Criteria criteria) {
+		if (orderProperty != null)
+			criteria.addOrder(Order.asc(orderProperty));
+	}
+
+	/** @return Hibernate session for the default factory */
+	protected Session getSession() {
+		return Databinder.getHibernateSession();
+	}
+}
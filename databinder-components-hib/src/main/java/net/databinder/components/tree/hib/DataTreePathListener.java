@@ -0,0 +1,128 @@
+package net.databinder.components.tree.hib;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+
+import net.databinder.components.tree.data.DataTreeObject;
+import net.databinder.components.tree.data.PathDataTreeObject;
+import net.databinder.hib.EventListenerArrays;
+
+import org.hibernate.Session;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.event.PreInsertEvent;
+import org.hibernate.event.PreInsertEventListener;
+import org.hibernate.event.PreUpdateEvent;
+import org.hibernate.event.PreUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Keeps the "path" property of {@link PathDataTreeObject} entities in sync with their
+ * parents. The path is computed from the parent chain before each insert and update;
+ * when a node is moved, the paths of its descendants are rewritten with one bulk update.
+ * Register with a configuration before building its session factory:
+ * <pre>
+ * protected void configureHibernate(AnnotationConfiguration config) {
+ *   super.configureHibernate(config);
+ *   DataTreePathListener.register(config);
+ * }
+ * </pre>
+ * Because the descendant update is a bulk operation, descendants already loaded in the
+ * session that moved a node keep their previous path in memory.
+ */
+public class DataTreePathListener implements PreInsertEventListener, PreUpdateEventListener, PostUpdateEventListener {
+	private static final long serialVersionUID = 1L;
+
+	/** Name of the mapped path property. */
+	public static final String PATH_PROPERTY = "path";
+
+	/** Escape character for the LIKE patterns built by {@link #startsWith(String)}. */
+	public static final char LIKE_ESCAPE = '!';
+
+	/**
+	 * @param prefix path prefix, such as "/1/5/"
+	 * @return LIKE pattern matching paths that start with prefix, with the wildcards and
+	 * escape character in identifiers escaped by LIKE_ESCAPE
+	 */
+	public static String startsWith(String prefix) {
+		StringBuilder pattern = new StringBuilder(prefix.length() + 1);
+		for (int i = 0; i < prefix.length(); i++) {
+			char c = prefix.charAt(i);
+			if (c == '%' || c == '_' || c == LIKE_ESCAPE)
+				pattern.append(LIKE_ESCAPE);
+			pattern.append(c);
+		}
+		return pattern.append('%').toString();
+	}
+
+	/**
+	 * Adds a path listener to the configuration, retaining existing listeners.
+	 * @param config configuration to add listener to
+	 */
+	public static void register(Configuration config) {
+		DataTreePathListener listener = new DataTreePathListener();
+		EventListeners listeners = config.getEventListeners();
+		listeners.setPreInsertEventListeners(EventListenerArrays.append(listeners.getPreInsertEventListeners(), listener));
+		listeners.setPreUpdateEventListeners(EventListenerArrays.append(listeners.getPreUpdateEventListeners(), listener));
+		listeners.setPostUpdateEventListeners(EventListenerArrays.append(listeners.getPostUpdateEventListeners(), listener));
+	}
+
+	public boolean onPreInsert(PreInsertEvent event) {
+		if (event.getEntity() instanceof PathDataTreeObject)
+			updatePath((PathDataTreeObject<?>) event.getEntity(), event.getState(), event.getPersister(), event.getSession());
+		return false;
+	}
+
+	public boolean onPreUpdate(PreUpdateEvent event) {
+		if (event.getEntity() instanceof PathDataTreeObject)
+			updatePath((PathDataTreeObject<?>) event.getEntity(), event.getState(), event.getPersister(), event.getSession());
+		return false;
+	}
+
+	/** Rewrites descendant paths if the updated node's path changed. */
+	public void onPostUpdate(PostUpdateEvent event) {
+		if (!(event.getEntity() instanceof PathDataTreeObject) || event.getOldState() == null)
+			return;
+		int index = event.getPersister().getEntityMetamodel().getPropertyIndex(PATH_PROPERTY);
+		Object oldPath = event.getOldState()[index], newPath = event.getState()[index];
+		if (oldPath == null || oldPath.equals(newPath))
+			return;
+		String oldPrefix = oldPath + String.valueOf(event.getId()) + "/",
+			newPrefix = newPath + String.valueOf(event.getId()) + "/";
+		// a separate session on the same connection, as the event session is flushing
+		Session sess = event.getSession().getSessionFactory().openSession(event.getSession().connection());
+		try {
+			sess.createQuery("update " + event.getPersister().getRootEntityName() + " set " + PATH_PROPERTY +
+					" = concat(:newPrefix, substring(" + PATH_PROPERTY + ", :start)) where " + PATH_PROPERTY + " like :oldPrefix escape '" + LIKE_ESCAPE + "'")
+				.setString("newPrefix", newPrefix)
+				.setInteger("start", oldPrefix.length() + 1)
+				.setString("oldPrefix", startsWith(oldPrefix))
+				.executeUpdate();
+		} finally {
+			sess.close();
+		}
+	}
+
+	/** Sets the path on the entity and in the state to be written. */
+	private void updatePath(PathDataTreeObject<?> node, Object[] state, EntityPersister persister, EventSource session) {
+		String path = buildPath(node, session);
+		node.setPath(path);
+		state[persister.getEntityMetamodel().getPropertyIndex(PATH_PROPERTY)] = path;
+	}
+
+	/**
+	 * @return path of ancestor identifiers for node, walking its parents
+	 */
+	public static String buildPath(DataTreeObject<?> node, Session session) {
+		LinkedList<Serializable> ids = new LinkedList<Serializable>();
+		for (Object parent = node.getParent(); parent != null; parent = ((DataTreeObject<?>) parent).getParent())
+			ids.addFirst(session.getIdentifier(parent));
+		StringBuilder path = new StringBuilder("/");
+		for (Serializable id : ids)
+			path.append(id).append('/');
+		return path.toString();
+	}
+}
@@ -0,0 +1,115 @@
+package net.databinder.components.tree.hib;
+
+import java.io.Serializable;
+import java.util.Enumeration;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
+
+import net.databinder.components.tree.data.DataTreeObject;
+import net.databinder.models.hib.HibernateObjectModel;
+
+/**
+ * Tree node for a persistent {@link DataTreeObject} whose children are loaded by a
+ * {@link DataTreeLoader} only when they are first needed, normally when the node is
+ * expanded. If the number of children is known in advance, leaf status is reported
+ * without loading them.
+ *
+ * @param <T> see {@link DataTree}
+ */
+public class LazyDataTreeNode<T extends DataTreeObject<T>> extends DefaultMutableTreeNode {
+	private static final long serialVersionUID = 1L;
+
+	/** Child count value for nodes whose number of children is not known. */
+	public static final int UNKNOWN_COUNT = -1;
+
+	private Serializable entityId;
+	private int childCount;
+	private boolean childrenLoaded;
+	private DataTreeLoader<T> loader;
+
+	/**
+	 * @param model model of the persistent entity
+	 * @param entityId identifier of the entity
+	 * @param childCount number of children, or UNKNOWN_COUNT
+	 * @param loader loader for children of this node
+	 */
+	public LazyDataTreeNode(HibernateObjectModel<T> model, Serializable entityId, int childCount, DataTreeLoader<T> loader) {
+		super(model);
+		this.entityId = entityId;
+		this.childCount = childCount;
+		this.loader = loader;
+	}
+
+	/** @return identifier of the entity represented by this node */
+	public Serializable getEntityId() {
+		return entityId;
+	}
+
+	/** @return number of children known before loading them, or UNKNOWN_COUNT */
+	public int getExpectedChildCount() {
+		return childCount;
+	}
+
+	/** @return true if children have been loaded into this node */
+	public boolean isChildrenLoaded() {
+		return childrenLoaded;
+	}
+
+	/**
+	 * Marks children as loaded, for loaders that populate nodes in bulk.
+	 * @see DataTreeLoader
+	 */
+	public void setChildrenLoaded() {
+		childrenLoaded = true;
+	}
+
+	/** Loads children through the loader if they have not already been loaded. */
+	public void ensureChildrenLoaded() {
+		if (!childrenLoaded) {
+			childrenLoaded = true;
+			if (childCount != 0)
+				loader.populate(this);
+		}
+	}
+
+	/** @return true if the node has no children, without loading them if their count is known */
+	@Override
+	public boolean isLeaf() {
+		if (!childrenLoaded && childCount != UNKNOWN_COUNT)
+			return childCount == 0;
+		return super.isLeaf();
+	}
+
+	@Override
+	public int getChildCount() {
+		ensureChildrenLoaded();
+		return super.getChildCount();
+	}
+
+	@Override
+	public TreeNode getChildAt(int index) {
+		ensureChildrenLoaded();
+		return super.getChildAt(index);
+	}
+
+	@Override
+	public int getIndex(TreeNode node) {
+		ensureChildrenLoaded();
+		return super.getIndex(node);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Enumeration children() {
+		ensureChildrenLoaded();
+		return super.children();
+	}
+
+	@Override
+	public void insert(MutableTreeNode newChild, int childIndex) {
+		ensureChildrenLoaded();
+		super.insert(newChild, childIndex);
+	}
+}
@@ -0,0 +1,217 @@
+package net.databinder.components.tree.hib;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import net.databinder.components.tree.data.DataTreeObject;
+import net.databinder.components.tree.data.PathDataTreeObject;
+
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Disjunction;
+import org.hibernate.criterion.LikeExpression;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.CollectionMetadata;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.NullableType;
+import org.hibernate.type.Type;
+
+/**
+ * Loader for {@link PathDataTreeObject} entities that uses their materialized paths
+ * to load and delete whole subtrees with a constant number of queries, and ancestors with
+ * one. Used by {@link DataTree} when the node class implements
+ * PathDataTreeObject.
+ *
+ * @param <T> see {@link DataTree}; must also implement PathDataTreeObject
+ * @see DataTreePathListener
+ */
+public class PathDataTreeLoader<T extends DataTreeObject<T>> extends DataTreeLoader<T> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param nodeClass entity class implementing PathDataTreeObject
+	 */
+	public PathDataTreeLoader(Class<T> nodeClass) {
+		super(nodeClass);
+	}
+
+	/**
+	 * Loads every node below the given node that is not yet loaded, with two queries per
+	 * BATCH_SIZE unloaded nodes regardless of the depth of the tree. Without an order
+	 * property, the nodes and their descendants are queried with their children
+	 * collections fetched, keeping collection order.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void populateSubtree(DefaultMutableTreeNode node) {
+		List<LazyDataTreeNode<T>> unloaded = new ArrayList<LazyDataTreeNode<T>>();
+		collectUnloaded(node, unloaded);
+		Session sess = getSession();
+		for (int i = 0; i < unloaded.size(); i += BATCH_SIZE) {
+			List<LazyDataTreeNode<T>> batch = unloaded.subList(i, Math.min(i + BATCH_SIZE, unloaded.size()));
+			List<Serializable> ids = new ArrayList<Serializable>(batch.size());
+			for (LazyDataTreeNode<T> n : batch)
+				ids.add(n.getEntityId());
+			List<String> prefixes = new ArrayList<String>(batch.size());
+			for (Object row : sess.createQuery("select n.id, n.path from " + getNodeClass().getName() +
+					" n where n.id in (:ids)").setParameterList("ids", ids).list()) {
+				Object[] r = (Object[]) row;
+				prefixes.add(r[1] + String.valueOf(r[0]) + "/");
+			}
+
+			Map<Serializable, List<T>> children = new HashMap<Serializable, List<T>>();
+			if (getOrderProperty() == null) {
+				StringBuilder hql = new StringBuilder("from ").append(getNodeClass().getName())
+					.append(" n left join fetch n.children where n.id in (:ids)");
+				for (int j = 0; j < prefixes.size(); j++)
+					hql.append(" or n.").append(DataTreePathListener.PATH_PROPERTY).append(" like :p").append(j)
+						.append(" escape '").append(DataTreePathListener.LIKE_ESCAPE).append('\'');
+				Query query = sess.createQuery(hql.toString()).setParameterList("ids", ids);
+				for (int j = 0; j < prefixes.size(); j++)
+					query.setString("p" + j, DataTreePathListener.startsWith(prefixes.get(j)));
+				for (T n : (List<T>) query.list())
+					children.put(sess.getIdentifier(n), new ArrayList<T>(n.getChildren()));
+			} else {
+				Disjunction matches = Restrictions.disjunction();
+				for (String prefix : prefixes)
+					matches.add(new PathStartsWith(prefix));
+				Criteria criteria = sess.createCriteria(getNodeClass()).add(matches);
+				orderChildren(criteria);
+				for (T child : (List<T>) criteria.list())
+					addSibling(children, sess.getIdentifier(child.getParent()), child);
+			}
+			LinkedList<LazyDataTreeNode<T>> queue = new LinkedList<LazyDataTreeNode<T>>(batch);
+			while (!queue.isEmpty()) {
+				LazyDataTreeNode<T> parent = queue.removeFirst();
+				parent.setChildrenLoaded();
+				List<T> siblings = children.get(parent.getEntityId());
+				if (siblings != null)
+					for (T child : siblings) {
+						LazyDataTreeNode<T> childNode = newNode(child, sess.getIdentifier(child), LazyDataTreeNode.UNKNOWN_COUNT);
+						parent.add(childNode);
+						queue.add(childNode);
+					}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the node and all its descendants with bulk deletes, deepest level first so
+	 * that parent references are never left dangling: one query to find the descendants
+	 * and one delete per level. The node and any loaded descendants are evicted from the
+	 * session first. Bulk deletes bypass the session, so cascades mapped on the
+	 * descendants are not applied. If children are not mapped as an inverse one-to-many
+	 * collection, as with a join table, the node is deleted through the session instead.
+	 */
+	@Override
+	public void deleteSubtree(T node) {
+		if (!isBulkDeletable()) {
+			super.deleteSubtree(node);
+			return;
+		}
+		Session sess = getSession();
+		Serializable nodeId = sess.getIdentifier(node);
+		String prefix = ((PathDataTreeObject<?>) node).getPath() + String.valueOf(nodeId) + "/";
+		TreeMap<Integer, List<Serializable>> levels = new TreeMap<Integer, List<Serializable>>(Collections.reverseOrder());
+		levels.put(0, new ArrayList<Serializable>(Collections.singletonList(nodeId)));
+		for (Object row : sess.createQuery("select n.id, n.path from " + getNodeClass().getName() +
+				" n where n.path like :prefix escape '" + DataTreePathListener.LIKE_ESCAPE + "'")
+				.setString("prefix", DataTreePathListener.startsWith(prefix)).list()) {
+			Object[] r = (Object[]) row;
+			Integer depth = depth((String) r[1]);
+			List<Serializable> ids = levels.get(depth);
+			if (ids == null)
+				levels.put(depth, ids = new ArrayList<Serializable>());
+			ids.add((Serializable) r[0]);
+		}
+		sess.flush();
+		EntityPersister persister = ((SessionImplementor) sess).getFactory().getEntityPersister(getNodeClass().getName());
+		PersistenceContext context = ((SessionImplementor) sess).getPersistenceContext();
+		for (List<Serializable> ids : levels.values())
+			for (Serializable id : ids) {
+				Object loaded = context.getEntity(new EntityKey(id, persister, sess.getEntityMode()));
+				if (loaded != null)
+					sess.evict(loaded);
+			}
+		for (List<Serializable> ids : levels.values())
+			for (int i = 0; i < ids.size(); i += BATCH_SIZE)
+				sess.createQuery("delete from " + getNodeClass().getName() + " where id in (:ids)")
+					.setParameterList("ids", ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())))
+					.executeUpdate();
+	}
+
+	/**
+	 * Loads the ancestors of a node with a single query on the identifiers in its path,
+	 * e.g. for a breadcrumb trail. Ancestors deleted since the path was read are omitted.
+	 * @param node persistent entity
+	 * @return ancestors from the top level down to the node's parent
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<T> loadAncestors(T node) {
+		Session sess = getSession();
+		Type idType = sess.getSessionFactory().getClassMetadata(getNodeClass()).getIdentifierType();
+		if (!(idType instanceof NullableType))
+			return super.loadAncestors(node);
+		List<Object> ids = new ArrayList<Object>();
+		for (String id : ((PathDataTreeObject<?>) node).getPath().split("/"))
+			if (id.length() > 0)
+				ids.add(((NullableType) idType).fromStringValue(id));
+		if (ids.isEmpty())
+			return new ArrayList<T>();
+		Map<Serializable, T> byId = new HashMap<Serializable, T>();
+		for (T ancestor : (List<T>) sess.createCriteria(getNodeClass()).add(Restrictions.in("id", ids)).list())
+			byId.put(sess.getIdentifier(ancestor), ancestor);
+		List<T> ancestors = new ArrayList<T>(ids.size());
+		for (Object id : ids)
+			if (byId.containsKey(id))
+				ancestors.add(byId.get(id));
+		return ancestors;
+	}
+
+	/** Path criterion escaping LIKE wildcards that occur in identifiers. */
+	private static class PathStartsWith extends LikeExpression {
+		private static final long serialVersionUID = 1L;
+		PathStartsWith(String prefix) {
+			super(DataTreePathListener.PATH_PROPERTY, DataTreePathListener.startsWith(prefix),
+					DataTreePathListener.LIKE_ESCAPE, false);
+		}
+	}
+
+	/** @return number of ancestors in a path such as "/1/5/" */
+	private static int depth(String path) {
+		int depth = 0;
+		for (int i = 1; i < path.length(); i++)
+			if (path.charAt(i) == '/')
+				depth++;
+		return depth;
+	}
+
+	/**
+	 * @return true if the children collection of the node class is an inverse one-to-many,
+	 * so that deleting child rows leaves no join table rows behind
+	 */
+	protected boolean isBulkDeletable() {
+		SessionFactory factory = getSession().getSessionFactory();
+		for (Class<?> c = getNodeClass(); c != null; c = c.getSuperclass()) {
+			CollectionMetadata children = factory.getCollectionMetadata(c.getName() + ".children");
+			if (children instanceof CollectionPersister)
+				return ((CollectionPersister) children).isOneToMany() && ((CollectionPersister) children).isInverse();
+		}
+		return false;
+	}
+}
@@ -120,6 +120,134 @@ public class JTextile
 		private static final int ENT_NOQUOTES = 2;
 		private static final int ENT_QUOTES = 3;
 
+		//  patterns are compiled once here rather than on every call to textile()
+
+		private static final Pattern AMPERSAND = Pattern.compile("&(?![#a-zA-Z0-9]+;)");
+		//  only splits at a newline between slashes (the PHP delimiters), so the text is trimmed as a whole
+		private static final Pattern LINE_SPLIT = Pattern.compile("/\n/");
+		private static final Pattern NEWLINE = Pattern.compile("\n");
+
+		private static final Pattern NO_TEXTILE = Pattern.compile("(^|\\s)==(.*?)==([^\\w]{0,2})");
+		private static final Pattern IMAGE = Pattern.compile("!([^!\\s\\(=]+?)\\s?(\\(([^\\)]+?)\\))?!");
+		private static final Pattern IMAGE_LINK = Pattern.compile("(<img.+ \\/>):(\\S+)");
+		private static final Pattern HYPERLINK = Pattern.compile("\"([^\"\\(]+)\\s?(\\(([^\\)]+)\\))?\":(\\S+?)([^\\w\\s\\/;]|[1-9]*?)(\\s|$)");
+
+		private static final Pattern ITALIC = Pattern.compile("(^|\\s)__(.*?)__([^\\w\\s]{0,2})");
+		private static final Pattern EMPHASIS = Pattern.compile("(^|\\s)_(.*?)_([^\\w\\s]{0,2})");
+		private static final Pattern SUPERSCRIPT = Pattern.compile("\\^(.*?)\\^");
+		private static final Pattern TRAILING_QUOTE = Pattern.compile("\"$");
+
+		private static final Pattern HTML_TAG = Pattern.compile("<.[^<]*>");
+		private static final Pattern HTML_TAG_RELUCTANT = Pattern.compile("<.[^<]*?>");
+		private static final Pattern CODE_OPEN = Pattern.compile("<(code|pre|kbd)>");
+		private static final Pattern CODE_CLOSE = Pattern.compile("</(code|pre|kbd)>");
+		private static final Pattern NOTEXTILE_OPEN = Pattern.compile("<notextile>");
+		private static final Pattern NOTEXTILE_CLOSE = Pattern.compile("</notextile>");
+
+		private static final Pattern FORCED_BREAK = Pattern.compile("(\\S)(_*)([:punct:]*) *\\n([^#*\\s])");
+		private static final Pattern LIST_ITEM = Pattern.compile("\\t<li");
+		private static final Pattern LIST_START = Pattern.compile("^(\\t<li)(o|u)");
+		private static final Pattern ORDERED_ITEM = Pattern.compile("\\t<lio");
+		private static final Pattern UNORDERED_ITEM = Pattern.compile("\\t<liu");
+		private static final Pattern WHOLE_LINE = Pattern.compile("^(.*)$");
+
+		private static final Pattern NOTEXTILE_TAG = Pattern.compile("<\\/?notextile>");
+		private static final Pattern LIST_TAG = Pattern.compile("<(\\/?)li(u|o)>");
+
+		//# arrange qtag delineators and replacements in an array
+		private static final String[] srcTags = {"\\*\\*","\\*","\\?\\?","-","\\+","~","@"};
+		private static final String[] replaceTags = {"b","strong","cite","del","ins","sub","code"};
+
+		private static final Pattern[] qtag_search = new Pattern[srcTags.length];
+		private static final String[] qtag_replace = new String[srcTags.length];
+		static
+		{
+			for(int i = 0; i < srcTags.length; i++)
+			{
+				//qtag_search[i] = Pattern.compile("(^|\\s|>)" + srcTags[i] + "\\b(.+?)\\b([^\\w\\s]*?)" + srcTags[i] + "([^\\w\\s]{0,2})(\\s|$)");
+				//qtag_replace[i] = "$1<" + replaceTags[i] + ">$2$3</" + replaceTags[i] + ">$4$5";
+				qtag_search[i] = Pattern.compile("(^|\\s|>)" + srcTags[i] + "([^ ])(.+?)?([^\\w\\s]*?)([^ ])" + srcTags[i] + "([^\\w\\s]{0,2})(\\s|$)");
+				qtag_replace[i] = "$1<" + replaceTags[i] + ">$2$3$4$5</" + replaceTags[i] + ">$6$7";
+			}
+		}
+
+		private static final Pattern[] glyph_search = compile(new String[] {
+//				"([^\\s[{<])?\\'([dmst]\\b|ll\\b|ve\\b|\\s|$)",  // escape [
+				"([^\\s\\[{<])?\\'([dmst]\\b|ll\\b|ve\\b|\\s|$)",  // single closing
+				"\\'", // single opening
+//				"([^\\s[{])?\"(\\s|$)", // escape [
+				"([^\\s\\[{])?\"(\\s|$)", // # double closing
+				"\"", // double opening
+				"\\b( )?\\.{3}", // # ellipsis
+				"\\b([A-Z][A-Z0-9]{2,})\\b(\\(([^\\)]+)\\))", // # 3+ uppercase acronym
+				"(^|[^\"][>\\s])([A-Z][A-Z0-9 ]{2,})([^<a-z0-9]|$)", // # 3+ uppercase caps
+				"\\s?--\\s?", // # em dash
+				"\\s-\\s", // # en dash
+				"(\\d+)-(\\d+)", // # en dash
+				"(\\d+) ?x ?(\\d+)", //# dimension sign
+				"\\b ?(\\((tm|TM)\\))", // trademark
+				"\\b ?(\\([rR]\\))", // # registered
+				"\\b ?(\\([cC]\\))" // # registered
+		});
+
+		private static final String[] glyph_replace = {
+				"$1&#8217;$2",              //# single closing
+				"&#8216;",                //# single opening
+				"$1&#8221;$2",              //# double closing
+				"&#8220;",                //# double opening
+				"$1&#8230;",              //# ellipsis
+				"<acronym title=\"$2\">$1</acronym>", //# 3+ uppercase acronym
+				//"$1<span class=\"caps\">$2</span>$3", //# 3+ uppercase caps
+				"$1$2$3", //# 3+ uppercase caps
+				"&#8212;",                //# em dash
+				" &#8211; ",              //# en dash
+				"$1&#8211;$2",              //# en dash
+				"$1&#215;$2",             //# dimension sign
+				"&#8482;",                //# trademark
+				"&#174;",               //# registered
+				"&#169;"                //# copyright
+		};
+
+		private static final Pattern[] block_find = compile(new String[] {
+				"^\\s?\\*\\s(.*)",            //# bulleted list *
+				"^\\s?#\\s(.*)",              //# numeric list #
+				"^bq\\. (.*)",                //# blockquote bq.
+				"^bq\\((\\S+?)\\). (.*)",                //# blockquote bq(cite-url).
+				"^h(\\d)\\(([\\w]+)\\)\\.\\s(.*)",  //# header hn(class).  w/ css class
+				"^h(\\d)\\. (.*)",            //# plain header hn.
+				"^p\\(([[:alnum:]]+)\\)\\.\\s(.*)",   //# para p(class).  w/ css class
+				"^p\\. (.*)",                 //# plain paragraph
+				"^([^\\t ]+.*)"               //# remaining plain paragraph
+		});
+
+		/*
+		 String[]  block_find = {
+		 "/^\\s?\\*\\s(.*)/",                         //                      # bulleted list *
+		 "/^\\s?#\\s(.*)/",                       //                         # numeric list #
+		 "/^bq\\. (.*)/",                         //                        # blockquote bq.
+		 "/^h(\\d)\\(([[:alnum:]]+)\\)\\.\\s(.*)/", //  # header hn(class).  w/ css class
+		 "/^h(\\d)\\. (.*)/",                     //                         # plain header hn.
+		 "/^p\\(([[:alnum:]]+)\\)\\.\\s(.*)/",      //         # para p(class).  w/ css class
+		 "/^p\\. (.*)/i",                       //                          # plain paragraph
+		 "/^([^\\t ]+.*)/i"                     //                          # remaining plain paragraph
+		 };
+		 */
+		private static final String[] block_replace = {
+//				"\t<liu>$1</liu>$2",
+//				"\t<lio>$1</lio>$2",
+				"\t<liu>$1</liu>",
+				"\t<lio>$1</lio>",
+				"\t<blockquote>$1</blockquote>",
+				"\t<blockquote cite=\"$1\">$2</blockquote>",
+				"\t<h$1 class=\"$2\">$3</h$1>$4",
+//				"\t<h$1>$2</h$1>$3",
+				"\t<h$1>$2</h$1>",
+				"\t<p class=\"$1\">$2</p>$3",
+				"\t<p>$1</p>",
+//				"\t<p>$1</p>$2"
+				"\t<p>$1</p>"
+		};
+
 
 
 		public JTextile()
@@ -129,178 +257,131 @@ public class JTextile
 
 		public static String textile(String text) throws Exception
 		{
+			//  scratch buffer shared by every replacement step below
+			StringBuffer buf = new StringBuffer(text.length() + text.length() / 4 + 16);
 
 			//$text = stripslashes($text);
 
 			//# turn any incoming ampersands into a dummy character for now.
 			//#  This uses a negative lookahead for alphanumerics followed by a semicolon,
 			//#  implying an incoming html entity, to be skipped
-			text = preg_replace("&(?![#a-zA-Z0-9]+;)","x%x%",text);
+			text = preg_replace(AMPERSAND,"x%x%",text,buf);
 
 			//# unentify angle brackets and ampersands
-			text = replace(text,"&gt;", ">");
-			text = replace(text,"&lt;", "<");
-			text = replace(text,"&amp;", "&");
+			text = replace(text,"&gt;", ">",buf);
+			text = replace(text,"&lt;", "<",buf);
+			text = replace(text,"&amp;", "&",buf);
 
 
 			//# zap carriage returns
-			text = replace(text,"\r\n", "\n");
+			text = replace(text,"\r\n", "\n",buf);
 
 
 			//# zap tabs
-			text = replace(text,"\t", "" );
+			text = replace(text,"\t", "",buf);
 
 			//  trim each line
-			StringBuffer splitBuffer = new StringBuffer();
-
-			String[] sList = text.split("/\n/");
+			String[] sList = LINE_SPLIT.split(text);
+			buf.setLength(0);
 			for(int i = 0; i < sList.length; i++)
 			{
-				splitBuffer.append(sList[i].trim());
-				splitBuffer.append("\n");
+				buf.append(sList[i].trim());
+				buf.append("\n");
 			}
 
-			text = splitBuffer.toString();
+			text = buf.toString();
 
 			//### Find and replace quick tags
 
 			//# double equal signs mean <notextile>
-			text = preg_replace("(^|\\s)==(.*?)==([^\\w]{0,2})","$1<notextile>$2</notextile>$3$4",text);
+			text = preg_replace(NO_TEXTILE,"$1<notextile>$2</notextile>$3$4",text,buf);
 
 			//# image qtag
-			text = preg_replace("!([^!\\s\\(=]+?)\\s?(\\(([^\\)]+?)\\))?!","<img src=\"$1\" alt=\"$3\" />",text);
+			text = preg_replace(IMAGE,"<img src=\"$1\" alt=\"$3\" />",text,buf);
 
 			//# image with hyperlink
-			text = preg_replace("(<img.+ \\/>):(\\S+)","<a href=\"$2\">$1</a>",text);
+			text = preg_replace(IMAGE_LINK,"<a href=\"$2\">$1</a>",text,buf);
 
 			//# hyperlink qtag
-			text = preg_replace("\"([^\"\\(]+)\\s?(\\(([^\\)]+)\\))?\":(\\S+?)([^\\w\\s\\/;]|[1-9]*?)(\\s|$)","<a href=\"$4\" title=\"$3\">$1</a>$5$6",text);
-
-			//# arrange qtag delineators and replacements in an array
-			String[] srcTags = {"\\*\\*","\\*","\\?\\?","-","\\+","~","@"};
-			String[] replaceTags = {"b","strong","cite","del","ins","sub","code"};
+			text = preg_replace(HYPERLINK,"<a href=\"$4\" title=\"$3\">$1</a>$5$6",text,buf);
 
 			//# loop through the array, replacing qtags with html
-			for(int i = 0; i < srcTags.length; i++)
-			{
-				//text = preg_replace("(^|\\s|>)" + srcTags[i] + "\\b(.+?)\\b([^\\w\\s]*?)" + srcTags[i] + "([^\\w\\s]{0,2})(\\s|$)","$1<" + replaceTags[i] + ">$2$3</" + replaceTags[i] + ">$4$5",text);
-				text = preg_replace("(^|\\s|>)" + srcTags[i] + "([^ ])(.+?)?([^\\w\\s]*?)([^ ])" + srcTags[i] + "([^\\w\\s]{0,2})(\\s|$)","$1<" + replaceTags[i] + ">$2$3$4$5</" + replaceTags[i] + ">$6$7",text);
-			}
+			text = preg_replace(qtag_search,qtag_replace,text,buf);
 
 			//# some weird bs with underscores and \b word boundaries,
 			//#  so we'll do those on their own
 
-			text = preg_replace("(^|\\s)__(.*?)__([^\\w\\s]{0,2})","$1<i>$2</i>$3",text);
+			text = preg_replace(ITALIC,"$1<i>$2</i>$3",text,buf);
 
-			text = preg_replace("(^|\\s)_(.*?)_([^\\w\\s]{0,2})","$1<em>$2</em>$3",text);
+			text = preg_replace(EMPHASIS,"$1<em>$2</em>$3",text,buf);
 
-			text = preg_replace("\\^(.*?)\\^","<sup>$1</sup>",text);
+			text = preg_replace(SUPERSCRIPT,"<sup>$1</sup>",text,buf);
 
 			// ### Find and replace typographic chars and special tags
 
 			//# small problem with double quotes at the end of a string
 
-			text = preg_replace("\"$","\" ",text);
+			text = preg_replace(TRAILING_QUOTE,"\" ",text,buf);
 
 			//# NB: all these will wreak havoc inside <html> tags
 
-			String[] glyph_search = {
-//					"([^\\s[{<])?\\'([dmst]\\b|ll\\b|ve\\b|\\s|$)",  // escape [
-					"([^\\s\\[{<])?\\'([dmst]\\b|ll\\b|ve\\b|\\s|$)",  // single closing
-					"\\'", // single opening
-//					"([^\\s[{])?\"(\\s|$)", // escape [
-					"([^\\s\\[{])?\"(\\s|$)", // # double closing
-					"\"", // double opening
-					"\\b( )?\\.{3}", // # ellipsis
-					"\\b([A-Z][A-Z0-9]{2,})\\b(\\(([^\\)]+)\\))", // # 3+ uppercase acronym
-					"(^|[^\"][>\\s])([A-Z][A-Z0-9 ]{2,})([^<a-z0-9]|$)", // # 3+ uppercase caps
-					"\\s?--\\s?", // # em dash
-					"\\s-\\s", // # en dash
-					"(\\d+)-(\\d+)", // # en dash
-					"(\\d+) ?x ?(\\d+)", //# dimension sign
-					"\\b ?(\\((tm|TM)\\))", // trademark
-					"\\b ?(\\([rR]\\))", // # registered
-					"\\b ?(\\([cC]\\))" // # registered
-			};
-
-
-			String[] glyph_replace = {
-					"$1&#8217;$2",              //# single closing
-					"&#8216;",                //# single opening
-					"$1&#8221;$2",              //# double closing
-					"&#8220;",                //# double opening
-					"$1&#8230;",              //# ellipsis
-					"<acronym title=\"$2\">$1</acronym>", //# 3+ uppercase acronym
-					//"$1<span class=\"caps\">$2</span>$3", //# 3+ uppercase caps
-					"$1$2$3", //# 3+ uppercase caps
-					"&#8212;",                //# em dash
-					" &#8211; ",              //# en dash
-					"$1&#8211;$2",              //# en dash
-					"$1&#215;$2",             //# dimension sign
-					"&#8482;",                //# trademark
-					"&#174;",               //# registered
-					"&#169;"                //# copyright
-			};
-
-
-
-
 			//    # set toggle for turning off replacements between <code> or <pre>
 			boolean codepre = false;
 			boolean notextile = false;
 
 			//# if there is no html, do a simple search and replace
 
-			if(!preg_match("<.[^<]*>",text))
+			if(!preg_match(HTML_TAG,text))
 			{
-				text = preg_replace(glyph_search,glyph_replace,text);
+				text = preg_replace(glyph_search,glyph_replace,text,buf);
 			}
 			else
 			{
 
-				StringBuffer out = new StringBuffer();
+				StringBuilder out = new StringBuilder(text.length());
 				//# else split the text into an array at <.*>
 				//$text = preg_split("/(<.*>)/U",$text,-1,PREG_SPLIT_DELIM_CAPTURE);
-				String[] textSplit = preg_split("<.[^<]*>",text);
+				String[] textSplit = preg_split(HTML_TAG,text);
 				for(int i = 0; i < textSplit.length; i++)
 				{
+					String lower = textSplit[i].toLowerCase();
 
 					//  # matches are off if we're between <code>, <pre> etc.
-					if(preg_match("<(code|pre|kbd)>",textSplit[i].toLowerCase()))
+					if(preg_match(CODE_OPEN,lower))
 					{
 						codepre = true;
 					}
-					if(preg_match("<notextile>",textSplit[i].toLowerCase()))
+					if(preg_match(NOTEXTILE_OPEN,lower))
 					{
 						codepre = true;
 						notextile = true;
 					}
-					else if(preg_match("</(code|pre|kbd)>",textSplit[i].toLowerCase()))
+					else if(preg_match(CODE_CLOSE,lower))
 					{
 						codepre = false;
 					}
-					else if(preg_match("</notextile>",textSplit[i].toLowerCase()))
+					else if(preg_match(NOTEXTILE_CLOSE,lower))
 					{
 						codepre = false;
 						notextile = false;
 					}
 
-					if(!preg_match("<.[^<]*?>",textSplit[i]) && codepre == false)
+					if(!preg_match(HTML_TAG_RELUCTANT,textSplit[i]) && codepre == false)
 					{
-						textSplit[i] = preg_replace(glyph_search,glyph_replace,textSplit[i]);
+						textSplit[i] = preg_replace(glyph_search,glyph_replace,textSplit[i],buf);
 					}
 
 					//# convert htmlspecial if between <code>
 					if (codepre == true && notextile == false){
-						textSplit[i] = htmlspecialchars(textSplit[i],ENT_NOQUOTES);
-						textSplit[i] = replace(textSplit[i],"&lt;pre&gt;","<pre>");
-						textSplit[i] = replace(textSplit[i],"&lt;code&gt;","<code>");
-						textSplit[i] = replace(textSplit[i],"&lt;notextile&gt;","<notextile>");
+						textSplit[i] = htmlspecialchars(textSplit[i],ENT_NOQUOTES,buf);
+						textSplit[i] = replace(textSplit[i],"&lt;pre&gt;","<pre>",buf);
+						textSplit[i] = replace(textSplit[i],"&lt;code&gt;","<code>",buf);
+						textSplit[i] = replace(textSplit[i],"&lt;notextile&gt;","<notextile>",buf);
 					}
 
 					if(notextile == true)
 					{
-						textSplit[i] = replace(textSplit[i],"\n","({)(})");
+						textSplit[i] = replace(textSplit[i],"\n","({)(})",buf);
 					}
 
 					//# each line gets pushed to a new array
@@ -323,57 +404,16 @@ public class JTextile
 			//text = preg_replace("(\\S)(_*)([:punct:]*) *\\n([^#*\\s])", "$1$2$3<br />$4", text);
 
 
-			text = preg_replace("(\\S)(_*)([:punct:]*) *\\n([^#*\\s])", "$1$2$3<br />$4", text);
+			text = preg_replace(FORCED_BREAK, "$1$2$3<br />$4", text,buf);
 
 
 			//# might be a problem with lists
-			text = replace(text,"l><br />", "l>\n");
+			text = replace(text,"l><br />", "l>\n",buf);
 
 			boolean pre = false;
 
 
-			String[] block_find = {
-					"^\\s?\\*\\s(.*)",            //# bulleted list *
-					"^\\s?#\\s(.*)",              //# numeric list #
-					"^bq\\. (.*)",                //# blockquote bq.
-					"^bq\\((\\S+?)\\). (.*)",                //# blockquote bq(cite-url).
-					"^h(\\d)\\(([\\w]+)\\)\\.\\s(.*)",  //# header hn(class).  w/ css class
-					"^h(\\d)\\. (.*)",            //# plain header hn.
-					"^p\\(([[:alnum:]]+)\\)\\.\\s(.*)",   //# para p(class).  w/ css class
-					"^p\\. (.*)",                 //# plain paragraph
-					"^([^\\t ]+.*)"               //# remaining plain paragraph
-			};
-
-			/*
-			 String[]  block_find = {
-			 "/^\\s?\\*\\s(.*)/",                         //                      # bulleted list *
-			 "/^\\s?#\\s(.*)/",                       //                         # numeric list #
-			 "/^bq\\. (.*)/",                         //                        # blockquote bq.
-			 "/^h(\\d)\\(([[:alnum:]]+)\\)\\.\\s(.*)/", //  # header hn(class).  w/ css class
-			 "/^h(\\d)\\. (.*)/",                     //                         # plain header hn.
-			 "/^p\\(([[:alnum:]]+)\\)\\.\\s(.*)/",      //         # para p(class).  w/ css class
-			 "/^p\\. (.*)/i",                       //                          # plain paragraph
-			 "/^([^\\t ]+.*)/i"                     //                          # remaining plain paragraph
-			 };
-			 */
-			String[] block_replace = {
-//					"\t<liu>$1</liu>$2",
-//					"\t<lio>$1</lio>$2",
-					"\t<liu>$1</liu>",
-					"\t<lio>$1</lio>",
-					"\t<blockquote>$1</blockquote>",
-					"\t<blockquote cite=\"$1\">$2</blockquote>",
-					"\t<h$1 class=\"$2\">$3</h$1>$4",
-//					"\t<h$1>$2</h$1>$3",
-					"\t<h$1>$2</h$1>",
-					"\t<p class=\"$1\">$2</p>$3",
-					"\t<p>$1</p>",
-//					"\t<p>$1</p>$2"
-					"\t<p>$1</p>"
-			};
-
-
-			StringBuffer blockBuffer = new StringBuffer();
+			StringBuilder blockBuffer = new StringBuilder(text.length() * 2);
 
 			String list = "";
 
@@ -382,7 +422,7 @@ public class JTextile
 
 
 			//# split the text into an array by newlines
-			String[] bList = text.split("\n");
+			String[] bList = NEWLINE.split(text);
 			for(int i = 0; i <= bList.length; i++)
 			{
 				String line = " ";
@@ -398,13 +438,13 @@ public class JTextile
 				//# deal with block replacements first, then see if we're in a list
 				if (!pre)
 				{
-					line = preg_replace(block_find,block_replace,line);
+					line = preg_replace(block_find,block_replace,line,buf);
 				}
 
 				//# kill any br tags that slipped in earlier
 				if (pre == true)
 				{
-					line = replace(line,"<br />","\n");
+					line = replace(line,"<br />","\n",buf);
 				}
 
 				//# matches back on after </pre>
@@ -414,15 +454,15 @@ public class JTextile
 				}
 
 				//# at the beginning of a list, $line switches to a value
-				if (list.length() == 0 && preg_match("\\t<li",line))
+				if (list.length() == 0 && preg_match(LIST_ITEM,line))
 				{
-					line = preg_replace("^(\\t<li)(o|u)","\n<$2l>\n$1$2",line);
+					line = preg_replace(LIST_START,"\n<$2l>\n$1$2",line,buf);
 					list = line.substring(2,3);
 				}
 				//# at the end of a list, $line switches to empty
-				else if (list.length() > 0 && !preg_match("\\t<li" + list,line))
+				else if (list.length() > 0 && !preg_match(listItem(list),line))
 				{
-					line = preg_replace("^(.*)$","</" + list + "l>\n$1",line);
+					line = preg_replace(WHOLE_LINE,"</" + list + "l>\n$1",line,buf);
 					list = "";
 				}
 				// push each line to a new array once it's processed
@@ -435,19 +475,19 @@ public class JTextile
 
 
 			//#clean up <notextile>
-			text = preg_replace("<\\/?notextile>", "",text);
+			text = preg_replace(NOTEXTILE_TAG, "",text,buf);
 
 			//#clean up <notextile>
-			text = replace(text,"({)(})", "\n");
+			text = replace(text,"({)(})", "\n",buf);
 
 			//# clean up liu and lio
-			text = preg_replace("<(\\/?)li(u|o)>", "<$1li>",text);
+			text = preg_replace(LIST_TAG, "<$1li>",text,buf);
 
 			//# turn the temp char back to an ampersand entity
-			text = replace(text,"x%x%","&#38;");
+			text = replace(text,"x%x%","&#38;",buf);
 
 			//# Newline linebreaks, just for markup tidiness
-			text = replace(text,"<br />","<br />\n");
+			text = replace(text,"<br />","<br />\n",buf);
 
 			return text;
 		}
@@ -460,11 +500,12 @@ public class JTextile
 		 * @param source      The string to start with
 		 * @param searchFor   The string we are looking for
 		 * @param replaceWith The replacement
+		 * @param buf         Scratch buffer, cleared before use
 		 *
-		 * @return  The reformatted string
+		 * @return  The reformatted string, or source itself if searchFor does not occur
 		 *
 		 */
-		private static String replace ( String source , String searchFor , String replaceWith )
+		private static String replace ( String source , String searchFor , String replaceWith , StringBuffer buf )
 		{
 			if (source == null || "".equals(source)) {
 				return source;
@@ -479,64 +520,102 @@ public class JTextile
 			}
 
 			int s = 0;
-			int e = 0;
-			StringBuffer result = new StringBuffer();
+			int e = source.indexOf(searchFor);
+			if (e < 0) {
+				return source;
+			}
+			buf.setLength(0);
 
-			while ((e = source.indexOf(searchFor, s)) >= 0)
+			do
 			{
-				result.append(source.substring(s, e));
-				result.append(replaceWith);
+				buf.append(source, s, e);
+				buf.append(replaceWith);
 				s = e + searchFor.length();
 			}
-			result.append(source.substring(s));
-			return result.toString();
+			while ((e = source.indexOf(searchFor, s)) >= 0);
+			buf.append(source, s, source.length());
+			return buf.toString();
 
 		}
 
-		private static String htmlspecialchars(String text, int mode)
+		private static String htmlspecialchars(String text, int mode, StringBuffer buf)
 		{
-			text = replace(text,"&", "&amp;");
+			text = replace(text,"&", "&amp;",buf);
 			if (mode != ENT_NOQUOTES)
-				text = replace(text,"\"", "&quot;");
+				text = replace(text,"\"", "&quot;",buf);
 			if (mode == ENT_QUOTES)
-				text = replace(text,"'", "&#039;");
-			text = replace(text,"<", "&lt;");
-			text = replace(text,">", "&gt;");
+				text = replace(text,"'", "&#039;",buf);
+			text = replace(text,"<", "&lt;",buf);
+			text = replace(text,">", "&gt;",buf);
 			return text ;
 		}
 
-		private static String preg_replace(String pattern,String replace,String text) throws Exception
+		private static Pattern[] compile(String[] patterns)
+		{
+			Pattern[] compiled = new Pattern[patterns.length];
+			for(int i = 0; i < patterns.length; i++)
+			{
+				compiled[i] = Pattern.compile(patterns[i]);
+			}
+			return compiled;
+		}
+
+		/** list is always "o" or "u", as inserted by block_replace */
+		private static Pattern listItem(String list)
+		{
+			if ("o".equals(list))
+				return ORDERED_ITEM;
+			if ("u".equals(list))
+				return UNORDERED_ITEM;
+			return Pattern.compile("\\t<li" + list);
+		}
+
+		/**
+		 * Equivalent to pattern.matcher(text).replaceAll(replace), building the result
+		 * in buf instead of a new buffer.
+		 */
+		private static String preg_replace(Pattern pattern,String replace,String text,StringBuffer buf) throws Exception
 		{
 
 //			gnu.regexp.RE r = new gnu.regexp.RE(pattern);
 //			return r.substituteAll(text,replace);
-			return Pattern.compile(pattern).matcher(text).replaceAll(replace);
+			Matcher m = pattern.matcher(text);
+			if (!m.find())
+				return text;
+			buf.setLength(0);
+			do
+			{
+				m.appendReplacement(buf, replace);
+			}
+			while (m.find());
+			m.appendTail(buf);
+			return buf.toString();
 		}
 
-		private static String preg_replace(String[] pattern,String[] replace,String text) throws Exception
+		private static String preg_replace(Pattern[] pattern,String[] replace,String text,StringBuffer buf) throws Exception
 		{
 			for(int i = 0; i < pattern.length; i++)
 			{
-				text = preg_replace(pattern[i],replace[i],text);
+				text = preg_replace(pattern[i],replace[i],text,buf);
 			}
 			return text;
 		}
 
-		private static boolean preg_match(String pattern,String text) throws Exception
+		private static boolean preg_match(Pattern pattern,String text) throws Exception
 		{
 //			gnu.regexp.RE r = new gnu.regexp.RE(pattern);
 //			return r.getMatch(text) != null;
-			return Pattern.compile(pattern).matcher(text).find();
+			return pattern.matcher(text).find();
 		}
 
-		private static String[] preg_split(String pattern,String text) throws Exception
+		private static String[] preg_split(Pattern pattern,String text) throws Exception
 		{
 			int startAt = 0;
 			ArrayList<String> tempList = new ArrayList<String>();
 
 //			gnu.regexp.RE r = new gnu.regexp.RE(pattern);
 
-			Matcher m = Pattern.compile(pattern).matcher(text);
+			Matcher m = pattern.matcher(text);
 			m.find();
 //			gnu.regexp.REMatch match = r.getMatch(text);
 
@@ -551,14 +630,7 @@ public class JTextile
 			tempList.add(text.substring(startAt));
 
 			//  copy out our templist to an array of strings which is what we return
-			String[] ret = new String[tempList.size()];
-
-			for(int i = 0; i < ret.length; i++)
-			{
-				ret[i] = tempList.get(i);
-			}
-
-			return ret;
+			return tempList.toArray(new String[tempList.size()]);
 		}
 
 	}
\ No newline at end of file
@@ -16,8 +16,8 @@ import org.apache.wicket.model.IModel;
 public class FontFormattedRenderedLabel extends RenderedLabel {
   private static final long serialVersionUID = 1L;
 
-  private Font italicFont = getFont().deriveFont(Font.ITALIC);
-	private Font boldFont = getFont().deriveFont(Font.BOLD);
+  private Font italicFont = RenderedFontCache.deriveFont(getFont(), Font.ITALIC);
+	private Font boldFont = RenderedFontCache.deriveFont(getFont(), Font.BOLD);
 
 	public FontFormattedRenderedLabel(String id) {
 		super(id);
@@ -67,6 +67,13 @@ public class FontFormattedRenderedLabel extends RenderedLabel {
 			super.setState(label);
 		}
 
+		@Override
+		protected void appendRenderState(StringBuilder state) {
+			super.appendRenderState(state);
+			appendFont(state, boldFont);
+			appendFont(state, italicFont);
+		}
+
 		@Override
 		void attributeBold(AttributedString string, int start, int end) {
 			string.addAttribute(TextAttribute.FONT, boldFont, start, end);
@@ -4,9 +4,10 @@ import java.awt.font.TextAttribute;
 import java.text.AttributedCharacterIterator;
 import java.text.AttributedString;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import net.databinder.components.RenderedLabel.RenderedTextImageResource;
 
@@ -23,66 +24,205 @@ import org.apache.wicket.util.string.Strings;
 public abstract class FormattedRenderedTextImageResource extends RenderedTextImageResource {
   private static final long serialVersionUID = 1L;
 
-  //matches links patters like `[foo]: http://example.com/  "Optional Title Here"`
-  private static Pattern footnoteLinks = Pattern.compile("^ *\\[.+\\]\\:\\s.+\n", Pattern.MULTILINE);
+	/** Maximum number of parsed strings retained. */
+	private static final int PARSE_CACHE_SIZE = 256;
 
-	// matches single newlines that do not have two spaces before them
-	private static Pattern strayNewlines = Pattern.compile("(?<!(  )|\n)\n(?!\n)");
+	enum Style {BOLD, ITALIC, LINK};
 
-	// group 1: either beginning of string or not a \
-	// group 2: beginning format element, to be expelled
-	// group 3: reluuctantly matched string inside formatters
-	// group 4: ending format element, to be expelled
-	private static Pattern boldFormat = Pattern.compile("(\\A|[^\\\\])(_{2}|\\*{2})(.+?)(\\2)", Pattern.DOTALL);
-	private static Pattern italicFormat = Pattern.compile("(\\A|[^\\\\])(\\*|_)(.+?)(\\2)", Pattern.DOTALL);
-    private static Pattern linkFormat = Pattern.compile("(\\A|[^\\\\])(\\[)(.+?)(\\](\\(|\\[).+?(\\)|\\]))", Pattern.DOTALL);
+	static class Range{
+		final Style style;
+		final int start;
+		int end;
+		Range(Style style, int start) {
+			this.style = style;
+			this.start = start;
+		}
+	}
 
-	// matches a slash used for escaping, to be expelled
-	private static Pattern escapedCharacter = Pattern.compile("(\\\\)[^\\\\]");
+	/** Plain text with style ranges, as parsed from formatted text; not modified once parsed. */
+	static class ParsedText {
+		final String text;
+		final List<Range> ranges;
+		ParsedText(String text, List<Range> ranges) {
+			this.text = text;
+			this.ranges = ranges;
+		}
+	}
 
-	private enum Style {BOLD, ITALIC, LINK};
+	/** Recently parsed formatted strings, which are typically rendered repeatedly. */
+	private static final Map<String, ParsedText> parseCache = Collections.synchronizedMap(
+			new LinkedHashMap<String, ParsedText>(64, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, ParsedText> eldest) {
+					return size() > PARSE_CACHE_SIZE;
+				}
+			});
 
-	private static class Range{
-		Style style;
-		int start;
-		int end;
+	/** @return parsed text for the formatted string, from the cache if present */
+	static ParsedText parse(String markedtext) {
+		ParsedText parsed = parseCache.get(markedtext);
+		if (parsed == null) {
+			parsed = tokenize(normalize(markedtext));
+			parseCache.put(markedtext, parsed);
+		}
+		return parsed;
 	}
 
-	private static class MutableRangeString {
-		List<Range> ranges = new ArrayList<Range>(10);
-		StringBuilder string;
-		public MutableRangeString(String str) {
-			string = new StringBuilder(str);
+	/**
+	 * Removes footnote link definitions like `[foo]: http://example.com/  "Optional Title Here"`,
+	 * trims, and removes single newlines that do not have two spaces before them.
+	 */
+	static String normalize(String in) {
+		StringBuilder kept = new StringBuilder(in.length());
+		for (int i = 0; i < in.length(); ) {
+			int eol = in.indexOf('\n', i);
+			int next = eol < 0 ? in.length() : eol + 1;
+			if (eol < 0 || !isFootnote(in, i, eol))
+				kept.append(in, i, next);
+			i = next;
 		}
-		void expell(int start, int end) {
-			string.delete(start, end);
-			for(Range r : ranges) {
-				if (r.end > start) {
-					r.end = r.end + start - end;
-					if (r.start > start)
-						r.start = r.start + start - end;
+		int start = 0, end = kept.length();
+		while (start < end && kept.charAt(start) <= ' ') start++;
+		while (end > start && kept.charAt(end - 1) <= ' ') end--;
+
+		StringBuilder out = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = kept.charAt(i);
+			if (c == '\n' && kept.charAt(i - 1) != '\n' && kept.charAt(i + 1) != '\n'
+					&& !(i - start >= 2 && kept.charAt(i - 1) == ' ' && kept.charAt(i - 2) == ' '))
+				continue;
+			out.append(c);
+		}
+		return out.toString();
+	}
+
+	/** @return true if the line from start to eol is a footnote link definition */
+	private static boolean isFootnote(String in, int start, int eol) {
+		int i = start;
+		while (i < eol && in.charAt(i) == ' ') i++;
+		if (i == eol || in.charAt(i) != '[')
+			return false;
+		for (int close = in.indexOf("]:", i + 2); close >= 0 && close + 3 < eol; close = in.indexOf("]:", close + 1))
+			if (Character.isWhitespace(in.charAt(close + 2)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Converts **bold** __bold__ *italic* _italic_ [link](url) [link][ref] and escaped
+	 * characters to plain text and style ranges in one pass. Closing markers are located
+	 * by forward searches that never overlap for one style and marker, and a failed search
+	 * ends the search for that style and marker, so parsing is linear in the length of the text.
+	 */
+	static ParsedText tokenize(String in) {
+		final int n = in.length();
+		StringBuilder out = new StringBuilder(n);
+		List<Range> ranges = new ArrayList<Range>();
+		Range bold = null, italic = null, link = null;
+		int boldClose = -1, italicClose = -1, linkClose = -1, linkEnd = -1;
+		// indexed by marker: 0 for * and 1 for _
+		boolean[] boldExhausted = new boolean[2], italicExhausted = new boolean[2];
+		boolean linkExhausted = false;
+
+		for (int i = 0; i < n; ) {
+			char c = in.charAt(i);
+			if (i == boldClose) {
+				bold.end = out.length();
+				bold = null;
+				i += 2;
+			} else if (i == italicClose) {
+				italic.end = out.length();
+				italic = null;
+				i++;
+			} else if (i == linkClose) {
+				link.end = out.length();
+				link = null;
+				i = linkEnd;
+			} else if (c == '\\' && i + 1 < n && in.charAt(i + 1) != '\\') {
+				out.append(in.charAt(i + 1));
+				i += 2;
+			} else if ((c == '*' || c == '_') && i + 1 < n && in.charAt(i + 1) == c) {
+				int marker = c == '*' ? 0 : 1;
+				int close = bold != null || boldExhausted[marker] ? -1 : find(in, i + 3, c, true);
+				if (close >= 0) {
+					ranges.add(bold = new Range(Style.BOLD, out.length()));
+					boldClose = close;
+				} else {
+					boldExhausted[marker] |= bold == null;
+					out.append(c).append(c);
 				}
+				i += 2;
+			} else if (c == '*' || c == '_') {
+				int marker = c == '*' ? 0 : 1;
+				int close = italic != null || italicExhausted[marker] ? -1 : find(in, i + 2, c, false);
+				if (close >= 0) {
+					ranges.add(italic = new Range(Style.ITALIC, out.length()));
+					italicClose = close;
+				} else {
+					italicExhausted[marker] |= italic == null;
+					out.append(c);
+				}
+				i++;
+			} else if (c == '[' && link == null && !linkExhausted) {
+				int close = findLinkTarget(in, i + 2), end = close < 0 ? -1 : findLinkEnd(in, close + 3);
+				if (end >= 0) {
+					ranges.add(link = new Range(Style.LINK, out.length()));
+					linkClose = close;
+					linkEnd = end + 1;
+				} else {
+					linkExhausted = true;
+					out.append(c);
+				}
+				i++;
+			} else {
+				out.append(c);
+				i++;
 			}
 		}
+		return new ParsedText(out.toString(), ranges);
 	}
 
-	/** Apply style markers to ranges matching the given format pattern. */
-	private static void process(MutableRangeString rangeStr, Pattern p, Style style) {
-		int delta = 0;
-		Matcher m = p.matcher(rangeStr.string.toString());
-		while (m.find()) {
-			Range r = new Range();
-			r.style = style;
-			r.start = m.start(3) - delta;
-			r.end = m.end(3) - delta;
-
-			rangeStr.ranges.add(r);
-
-			rangeStr.expell(m.start(2) - delta, m.end(2) - delta);
-			delta += m.end(2) - m.start(2);
-			rangeStr.expell(m.start(4) - delta, m.end(4) - delta);
-			delta += m.end(4) - m.start(4);
+	/**
+	 * @return index of the next unescaped closing marker c (doubled if double) at or after from,
+	 * skipping doubled markers when looking for a single one; -1 if none
+	 */
+	private static int find(String in, int from, char c, boolean isDouble) {
+		for (int j = from; j < in.length(); j++) {
+			char ch = in.charAt(j);
+			if (ch == '\\' && j + 1 < in.length() && in.charAt(j + 1) != '\\')
+				j++;
+			else if (ch == c) {
+				boolean doubled = j + 1 < in.length() && in.charAt(j + 1) == c;
+				if (doubled == isDouble)
+					return j;
+				if (doubled)
+					j++;
+			}
 		}
+		return -1;
+	}
+
+	/** @return index of the next ]( or ][ at or after from, or -1 */
+	private static int findLinkTarget(String in, int from) {
+		for (int j = from; j + 1 < in.length(); j++)
+			if (in.charAt(j) == ']' && (in.charAt(j + 1) == '(' || in.charAt(j + 1) == '['))
+				return j;
+		return -1;
+	}
+
+	/** @return index of the next ) or ] at or after from, or -1 */
+	private static int findLinkEnd(String in, int from) {
+		for (int j = from; j < in.length(); j++)
+			if (in.charAt(j) == ')' || in.charAt(j) == ']')
+				return j;
+		return -1;
+	}
+
+	/** Formatting applies other fonts and attributes to ranges of the text. */
+	@Override
+	protected boolean hasUniformFont() {
+		return false;
 	}
 
 	/** @return string formatted with markdown subset */
@@ -97,27 +237,14 @@ public abstract class FormattedRenderedTextImageResource extends RenderedTextIma
 		if (Strings.isEmpty(markedtext))
 			return null;
 
-        markedtext = footnoteLinks.matcher(markedtext).replaceAll("");
-		markedtext = strayNewlines.matcher(markedtext.trim()).replaceAll("");
-
-		MutableRangeString rangeStr = new MutableRangeString(markedtext);
-
-		process(rangeStr, boldFormat, Style.BOLD);
-		process(rangeStr, italicFormat, Style.ITALIC);
-		process(rangeStr, linkFormat, Style.LINK);
-
-		int delta = 0;
-		Matcher m = escapedCharacter.matcher(rangeStr.string.toString());
-		while (m.find()) {
-			rangeStr.expell(m.start(1) - delta, m.end(1) - delta);
-			delta++;
-		}
-
-		String text = rangeStr.string.toString();
-		AttributedString attributedText = new AttributedString(text);
-		attributedText.addAttribute(TextAttribute.FONT, font);
+		ParsedText parsed = parse(markedtext);
+		AttributedString attributedText = new AttributedString(parsed.text);
+		if (parsed.text.length() > 0)
+			attributedText.addAttribute(TextAttribute.FONT, font);
 
-		for (Range r : rangeStr.ranges) {
+		for (Range r : parsed.ranges) {
+			if (r.end <= r.start)
+				continue;
 			if (r.style == Style.BOLD)
 				attributeBold(attributedText, r.start, r.end);
 			else if (r.style == Style.ITALIC)
@@ -125,7 +252,7 @@ public abstract class FormattedRenderedTextImageResource extends RenderedTextIma
 			else if (r.style == Style.LINK)
 				attributeLink(attributedText, r.start, r.end);
 		}
-		return splitAtNewlines(attributedText, text);
+		return splitAtNewlines(attributedText, parsed.text);
 	}
 
 	abstract void attributeBold(AttributedString string, int start, int end);
@@ -0,0 +1,48 @@
+package net.databinder.components;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.security.Principal;
+
+/**
+ * Helpers for cache directories that must be private to the user running the
+ * application, as their contents are trusted when read back.
+ */
+public final class PrivateFiles {
+	private PrivateFiles() { }
+
+	/** Makes the file or directory accessible only to its owner, where the runtime allows. */
+	public static void restrict(File file) {
+		try {
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+			file.setExecutable(false, false);
+			if (file.isDirectory())
+				file.setExecutable(true, true);
+		} catch (NoSuchMethodError e) {
+			// Java 5: permissions are left to the directory's creator
+		}
+	}
+
+	/**
+	 * @return true if the file, not following links, is owned by the user running the
+	 * application; false if it is not or that cannot be determined, before Java 7
+	 */
+	public static boolean isOwnedByUser(File file) {
+		try {
+			Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+			Object options = Array.newInstance(linkOption, 1);
+			Array.set(options, 0, linkOption.getField("NOFOLLOW_LINKS").get(null));
+			Object path = File.class.getMethod("toPath").invoke(file);
+			Object owner = Class.forName("java.nio.file.Files").getMethod("getOwner",
+					Class.forName("java.nio.file.Path"), options.getClass()).invoke(null, path, options);
+			String name = (String) Principal.class.getMethod("getName").invoke(owner);
+			// Windows owners are qualified by domain
+			return name.substring(name.lastIndexOf('\\') + 1).equals(System.getProperty("user.name"));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package net.databinder.components;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.LineMetrics;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared cache of derived fonts, line spacing, and text layouts for rendered labels, so
+ * that labels repeated in the same typeface (navigation items, buttons) are shaped only
+ * once. Each cache is bounded and evicts least recently used entries; all methods are
+ * thread safe. Layouts are shared between threads, so callers should synchronize on a
+ * layout while drawing it.
+ * @see RenderedLabel
+ */
+public class RenderedFontCache {
+	/** Context for measuring text, matching that of label images before anti-aliasing is enabled. */
+	public static final FontRenderContext MEASURE_CONTEXT = new FontRenderContext(null, false, false);
+
+	private static final int MAX_FONTS = 256, MAX_LAYOUTS = 2048;
+
+	private static final Map<Object, Font> fonts = lruMap(MAX_FONTS);
+	private static final Map<Font, Spacing> spacings = lruMap(MAX_FONTS);
+	private static final Map<Object, List<TextLayout>> layouts = lruMap(MAX_LAYOUTS);
+
+	private static <K, V> Map<K, V> lruMap(final int max) {
+		return Collections.synchronizedMap(new LinkedHashMap<K, V>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > max;
+			}
+		});
+	}
+
+	/** Integral line height and descent of a font, rounded up as FontMetrics does. */
+	public static class Spacing {
+		public final float lineHeight, descent;
+		Spacing(LineMetrics metrics) {
+			descent = (int) (0.95f + metrics.getDescent());
+			lineHeight = (int) (0.95f + metrics.getAscent()) + (int) (0.95f + metrics.getDescent() + metrics.getLeading());
+		}
+	}
+
+	/**
+	 * @param font base font
+	 * @param style style as in Font.deriveFont(int)
+	 * @return font derived from base in the given style
+	 */
+	public static Font deriveFont(Font font, int style) {
+		Object key = Arrays.asList(font, style);
+		Font derived = fonts.get(key);
+		if (derived == null)
+			fonts.put(key, derived = font.deriveFont(style));
+		return derived;
+	}
+
+	/** @return line spacing of the font in MEASURE_CONTEXT */
+	public static Spacing getSpacing(Font font) {
+		Spacing spacing = spacings.get(font);
+		if (spacing == null)
+			spacings.put(font, spacing = new Spacing(font.getLineMetrics("", MEASURE_CONTEXT)));
+		return spacing;
+	}
+
+	/**
+	 * Lays out a line of text in a single font, wrapping it if maxWidth is given.
+	 * @param line text without newlines, except optionally a trailing one
+	 * @param font font for the whole line
+	 * @param maxWidth wrapping width, or null
+	 * @return unmodifiable list of layouts, one per wrapped line
+	 */
+	public static List<TextLayout> getLayouts(String line, Font font, Integer maxWidth) {
+		Object key = Arrays.asList(line, font, maxWidth);
+		List<TextLayout> result = layouts.get(key);
+		if (result == null) {
+			if (line.length() == 0)
+				return Collections.emptyList();
+			AttributedString attributed = new AttributedString(line);
+			attributed.addAttribute(TextAttribute.FONT, font);
+			if (maxWidth == null)
+				result = Collections.singletonList(new TextLayout(attributed.getIterator(), MEASURE_CONTEXT));
+			else {
+				List<TextLayout> wrapped = new ArrayList<TextLayout>();
+				LineBreakMeasurer breaker = new LineBreakMeasurer(attributed.getIterator(), MEASURE_CONTEXT);
+				TextLayout layout;
+				while (null != (layout = breaker.nextLayout(maxWidth)))
+					wrapped.add(layout);
+				result = Collections.unmodifiableList(wrapped);
+			}
+			layouts.put(key, result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,572 @@
+/*
+ * Databinder: a simple bridge from Wicket to Hibernate
+ * Copyright (C) 2006  Nathan Hamblen nathan@technically.us
+
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.databinder.components;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.databinder.components.RenderedLabel.RenderedTextImageResource;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.SharedResources;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.string.StringValue;
+import org.apache.wicket.util.time.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Application-wide cache of rendered label images, addressed by a digest of their full
+ * render state. Images are held in a memory tier of bounded size with least-recently-used
+ * eviction, optionally backed by a bounded disk tier that survives restarts. Each image is
+ * stored with its format, from which its content type is served. Shared rendered labels
+ * are all served through a single shared resource that looks up images by key, so the
+ * application's shared resources no longer grow with every distinct label; the render
+ * state of recently used labels is retained (also bounded) so that evicted images
+ * can be rendered again.
+ * <p>Images are rendered by a bounded pool of background threads, started when a label's
+ * markup is rendered, so that page rendering only needs to measure the text. Concurrent
+ * renders of the same image, in the background or on request, are collapsed into one.
+ * Idle render threads time out, and the pool is shut down with the application.</p>
+ * <p>The disk tier's directory must be dedicated to the cache and private to the user
+ * running the application, as images are served from it as they are found. It is made
+ * accessible only to its owner where the runtime allows (Java 6 and later), and used only
+ * if it is owned by the user running the application, which can only be determined on
+ * Java 7 and later. Cached files are read only if they are owned by that user as well.</p>
+ * <p>A default cache, in memory only, is created on first use; call set() during
+ * application initialization to configure a different one.</p>
+ * @see RenderedLabel
+ */
+public class RenderedImageCache {
+	private static final Logger log = LoggerFactory.getLogger(RenderedImageCache.class);
+
+	private static final MetaDataKey<RenderedImageCache> CACHE_KEY = new MetaDataKey<RenderedImageCache>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** Name of the single shared resource serving cached images. */
+	static final String SHARED_NAME = "rendered";
+	/** Page parameter carrying the image key. */
+	static final String KEY_PARAMETER = "key";
+	/** Suffix of cached image files, which begin with a line naming their format. */
+	private static final String FILE_SUFFIX = ".img";
+	/** Form of image formats, such as "png" or "svg". */
+	private static final Pattern FORMAT_PATTERN = Pattern.compile("[a-z]{1,8}");
+	/** Form of every image key, a hex SHA-256 digest; anything else is refused. */
+	private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	private final long maxMemoryBytes, maxDiskBytes;
+	private long memoryBytes, diskBytes;
+	private final File directory;
+
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private final LinkedHashMap<String, RenderedTextImageResource> states;
+
+	private final ConcurrentHashMap<String, FutureTask<byte[]>> pending = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+	private int renderThreads = Runtime.getRuntime().availableProcessors(), renderQueueSize = 256;
+	private ThreadPoolExecutor executor;
+
+	private static class Entry {
+		final byte[] data;
+		final long modified;
+		final String format;
+		Entry(byte[] data, long modified, String format) {
+			this.data = data;
+			this.modified = modified;
+			this.format = format;
+		}
+	}
+
+	/**
+	 * @param maxMemoryBytes maximum size of images held in memory
+	 * @param directory private directory for the disk tier, or null for memory only; it is
+	 * created if needed, and not used unless owned by the user running the application
+	 * @param maxDiskBytes maximum size of images held on disk
+	 * @param maxStates maximum number of render states retained for shared labels
+	 */
+	public RenderedImageCache(long maxMemoryBytes, File directory, long maxDiskBytes, final int maxStates) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxDiskBytes = maxDiskBytes;
+		this.states = new LinkedHashMap<String, RenderedTextImageResource>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RenderedTextImageResource> eldest) {
+				return size() > maxStates;
+			}
+		};
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("Unable to create rendered image directory " + directory + "; using memory only");
+			directory = null;
+		}
+		if (directory != null && !PrivateFiles.isOwnedByUser(directory)) {
+			log.warn("Not caching rendered images in " + directory + ": it is not owned by "
+					+ System.getProperty("user.name") + ", or ownership cannot be determined on this runtime;"
+					+ " using memory only");
+			directory = null;
+		}
+		if (directory != null)
+			PrivateFiles.restrict(directory);
+		this.directory = directory;
+		if (directory != null)
+			for (File f : directory.listFiles())
+				diskBytes += f.length();
+	}
+
+	/** Constructs a cache with 4MB in memory and no disk tier. */
+	public RenderedImageCache() {
+		this(4L << 20, null, 0, 10000);
+	}
+
+	/** @return the current application's cache, creating a default one if none is set */
+	public static RenderedImageCache get() {
+		Application app = Application.get();
+		RenderedImageCache cache = app.getMetaData(CACHE_KEY);
+		if (cache == null)
+			synchronized (app) {
+				cache = app.getMetaData(CACHE_KEY);
+				if (cache == null)
+					app.setMetaData(CACHE_KEY, cache = new RenderedImageCache());
+			}
+		return cache;
+	}
+
+	/** Sets the cache used for rendered labels of the given application. */
+	public static void set(Application app, RenderedImageCache cache) {
+		app.setMetaData(CACHE_KEY, cache);
+	}
+
+	/**
+	 * @param state string describing every attribute affecting an image
+	 * @return hex-encoded SHA-256 digest of the state
+	 */
+	public static String digest(String state) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(state.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** @return true if key has the form of a digest(), and so is safe to use as a file name */
+	public static boolean isValidKey(String key) {
+		return key != null && KEY_PATTERN.matcher(key).matches();
+	}
+
+	/**
+	 * @param key image key
+	 * @return image data from memory or disk, or null if not cached or key is not valid
+	 */
+	public byte[] get(String key) {
+		Entry entry = getEntry(key);
+		return entry == null ? null : entry.data;
+	}
+
+	private Entry getEntry(String key) {
+		if (!isValidKey(key))
+			return null;
+		synchronized (memory) {
+			Entry entry = memory.get(key);
+			if (entry != null)
+				return entry;
+		}
+		if (directory == null)
+			return null;
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (!file.isFile())
+			return null;
+		if (!PrivateFiles.isOwnedByUser(file)) {
+			log.warn("Not reading cached image " + file + ": it is not owned by " + System.getProperty("user.name"));
+			return null;
+		}
+		try {
+			byte[] contents = new byte[(int) file.length()];
+			InputStream in = new FileInputStream(file);
+			try {
+				int read = 0;
+				while (read < contents.length) {
+					int n = in.read(contents, read, contents.length - read);
+					if (n < 0) throw new IOException("Unexpected end of " + file);
+					read += n;
+				}
+			} finally {
+				in.close();
+			}
+			int newline = 0;
+			while (newline < contents.length && newline <= 8 && contents[newline] != '\n')
+				newline++;
+			String format = new String(contents, 0, newline, "US-ASCII");
+			if (newline == contents.length || !FORMAT_PATTERN.matcher(format).matches())
+				throw new IOException("No image format in " + file);
+			byte[] data = new byte[contents.length - newline - 1];
+			System.arraycopy(contents, newline + 1, data, 0, data.length);
+			Entry entry = new Entry(data, file.lastModified(), format);
+			putMemory(key, entry);
+			return entry;
+		} catch (IOException e) {
+			log.warn("Unable to read cached image " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores image data in memory and on disk.
+	 * @param key image key
+	 * @param data image data
+	 * @param format image format, as returned by the resource's getFormat(), such as "png"
+	 * @throws IllegalArgumentException if key or format is not valid
+	 */
+	public void put(String key, byte[] data, String format) {
+		if (!isValidKey(key))
+			throw new IllegalArgumentException("Invalid image key: " + key);
+		if (format == null || !FORMAT_PATTERN.matcher(format).matches())
+			throw new IllegalArgumentException("Invalid image format: " + format);
+		long now = System.currentTimeMillis();
+		putMemory(key, new Entry(data, now - now % 1000, format));
+		if (directory == null)
+			return;
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (file.isFile())
+			return;
+		File temp = null;
+		try {
+			temp = File.createTempFile(key, ".tmp", directory);
+			PrivateFiles.restrict(temp);
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write((format + "\n").getBytes("US-ASCII"));
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (temp.renameTo(file))
+				synchronized (this) {
+					diskBytes += file.length();
+					if (diskBytes > maxDiskBytes)
+						pruneDisk();
+				}
+			else
+				temp.delete();
+		} catch (IOException e) {
+			log.warn("Unable to write cached image " + file, e);
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	private void putMemory(String key, Entry entry) {
+		if (entry.data.length > maxMemoryBytes)
+			return;
+		synchronized (memory) {
+			Entry previous = memory.put(key, entry);
+			if (previous != null)
+				memoryBytes -= previous.data.length;
+			memoryBytes += entry.data.length;
+			for (Iterator<Entry> it = memory.values().iterator(); memoryBytes > maxMemoryBytes && it.hasNext(); ) {
+				memoryBytes -= it.next().data.length;
+				it.remove();
+			}
+		}
+	}
+
+	/** Removes the least recently written files until the disk tier is at three quarters of its limit. */
+	private void pruneDisk() {
+		File[] files = directory.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		diskBytes = 0;
+		for (File f : files)
+			diskBytes += f.length();
+		for (int i = 0; i < files.length && diskBytes > maxDiskBytes * 3 / 4; i++) {
+			long length = files[i].length();
+			if (files[i].delete())
+				diskBytes -= length;
+		}
+	}
+
+	/** @return true if the image is in memory or on disk, without reading it */
+	public boolean contains(String key) {
+		if (!isValidKey(key))
+			return false;
+		synchronized (memory) {
+			if (memory.containsKey(key))
+				return true;
+		}
+		return directory != null && new File(directory, key + FILE_SUFFIX).isFile();
+	}
+
+	/**
+	 * Renders and caches the resource's image, or waits for a render of the same image
+	 * that is already in progress. A render still waiting in the background queue is run
+	 * on the calling thread instead of waiting for a pool thread.
+	 * @param resource resource to render
+	 * @return image data, or null if the resource's state changed while rendering
+	 */
+	public byte[] render(RenderedTextImageResource resource) {
+		String key = resource.getCacheKey();
+		FutureTask<byte[]> task = newRenderTask(resource, key);
+		FutureTask<byte[]> existing = pending.putIfAbsent(key, task);
+		if (existing != null)
+			task = existing;
+		// runs a task still queued for the background pool here; does nothing if it has started
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Queues the resource's image for rendering in the background, unless it is cached,
+	 * already being rendered, or the queue is full; it will then be rendered on request.
+	 * @param resource resource to render
+	 */
+	public void renderLater(RenderedTextImageResource resource) {
+		String key = resource.getCacheKey();
+		ThreadPoolExecutor executor = getExecutor();
+		if (executor == null || pending.containsKey(key) || contains(key))
+			return;
+		FutureTask<byte[]> task = newRenderTask(resource, key);
+		if (pending.putIfAbsent(key, task) != null)
+			return;
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			pending.remove(key, task);
+		}
+	}
+
+	private FutureTask<byte[]> newRenderTask(final RenderedTextImageResource resource, final String key) {
+		return new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() {
+				try {
+					byte[] data;
+					String format;
+					synchronized (resource) {
+						// a non-shared label may have changed its state since queueing
+						if (!key.equals(resource.getCacheKey()))
+							return null;
+						data = resource.renderImageData();
+						format = resource.getFormat();
+					}
+					put(key, data, format);
+					return data;
+				} finally {
+					pending.remove(key);
+				}
+			}
+		});
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null && renderThreads > 0) {
+			executor = new ThreadPoolExecutor(renderThreads, renderThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(renderQueueSize), new ThreadFactory() {
+						private int count;
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "RenderedImageCache-" + ++count);
+							t.setDaemon(true);
+							t.setPriority(Thread.NORM_PRIORITY - 1);
+							return t;
+						}
+					});
+			try {
+				executor.allowCoreThreadTimeOut(true);
+			} catch (NoSuchMethodError e) {
+				// Java 5: idle threads remain until shutdown()
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Sets the size of the background render pool; 0 renders images only on request.
+	 * Defaults to the number of processors, with a queue of 256 images.
+	 * @param threads number of render threads
+	 * @param queueSize maximum number of images waiting to be rendered
+	 * @return this, for chaining
+	 */
+	public synchronized RenderedImageCache setRenderThreads(int threads, int queueSize) {
+		shutdown();
+		renderThreads = threads;
+		renderQueueSize = queueSize;
+		return this;
+	}
+
+	/** Stops background render threads, e.g. when the application is destroyed. */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Stops the background render threads of the given application's cache, if it has
+	 * one. Called by DataApplicationBase when the application is destroyed.
+	 */
+	public static void shutdown(Application app) {
+		RenderedImageCache cache = app.getMetaData(CACHE_KEY);
+		if (cache != null)
+			cache.shutdown();
+	}
+
+	/**
+	 * Retains the render state of a shared label so that its image can be rendered
+	 * when requested, and returns the reference for serving it.
+	 * @param resource resource holding the label's render state
+	 * @return shared reference to be used with getParameters()
+	 */
+	public ResourceReference register(RenderedTextImageResource resource) {
+		synchronized (states) {
+			states.put(resource.getCacheKey(), resource);
+		}
+		return getSharedReference();
+	}
+
+	/** @return parameters identifying the image of the resource for the shared reference */
+	public static PageParameters getParameters(RenderedTextImageResource resource) {
+		return new PageParameters().set(KEY_PARAMETER, resource.getCacheKey());
+	}
+
+	/** @return retained render state for key, or null if unknown */
+	RenderedTextImageResource getState(String key) {
+		synchronized (states) {
+			return states.get(key);
+		}
+	}
+
+	/** @return the application's shared reference to the image-serving resource, adding it if needed */
+	static ResourceReference getSharedReference() {
+		SharedResources shared = Application.get().getSharedResources();
+		ResourceReference ref = shared.get(RenderedLabel.class, SHARED_NAME, null, null, null, false);
+		if (ref == null) {
+			shared.add(RenderedLabel.class, SHARED_NAME, null, null, null, new SharedImageResource());
+			ref = shared.get(RenderedLabel.class, SHARED_NAME, null, null, null, false);
+		}
+		return ref;
+	}
+
+	/** @return true if data begins with the PNG signature and header chunk */
+	static boolean isPng(byte[] data) {
+		return data != null && data.length >= 24 && (data[0] & 0xff) == 0x89
+			&& data[1] == 'P' && data[2] == 'N' && data[3] == 'G';
+	}
+
+	/** @return content type of images in the given format */
+	static String getContentType(String format) {
+		return "svg".equals(format) ? "image/svg+xml" : "image/" + format;
+	}
+
+	/**
+	 * Sets a strong entity tag and far-future expiration on a response for an
+	 * image, whose URL changes whenever its content does.
+	 */
+	static void configureCaching(AbstractResource.ResourceResponse response, String key) {
+		response.getHeaders().setHeader("ETag", "\"" + key + "\"");
+		response.setCacheDurationToMaximum();
+		response.setCacheScope(WebResponse.CacheScope.PUBLIC);
+	}
+
+	/**
+	 * Serves images of shared rendered labels by key, from the cache or by rendering
+	 * a retained render state.
+	 */
+	static class SharedImageResource extends AbstractResource {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected ResourceResponse newResourceResponse(Attributes attributes) {
+			ResourceResponse response = new ResourceResponse();
+			StringValue keyValue = attributes.getParameters().get(KEY_PARAMETER);
+			String key = keyValue == null ? null : keyValue.toString();
+			if (!isValidKey(key)) {
+				response.setError(404);
+				return response;
+			}
+			RenderedImageCache cache = get();
+			Entry entry = cache.getEntry(key);
+			if (entry == null) {
+				RenderedTextImageResource res = cache.getState(key);
+				if (res != null) {
+					res.preload();
+					entry = cache.getEntry(key);
+				}
+			}
+			if (entry == null) {
+				response.setError(404);
+				return response;
+			}
+			final byte[] data = entry.data;
+			response.setContentType(getContentType(entry.format));
+			response.setContentLength(data.length);
+			response.setLastModified(Time.millis(entry.modified));
+			configureCaching(response, key);
+			if (response.dataNeedsToBeWritten(attributes))
+				response.setWriteCallback(new WriteCallback() {
+					@Override
+					public void writeData(Attributes attributes) {
+						attributes.getResponse().write(data);
+					}
+				});
+			return response;
+		}
+	}
+}
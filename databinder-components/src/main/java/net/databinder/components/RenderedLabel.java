@@ -1,9 +1,10 @@
 package net.databinder.components;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.font.LineBreakMeasurer;
 import java.awt.font.TextAttribute;
@@ -11,15 +12,11 @@ import java.awt.font.TextLayout;
 import java.awt.image.BufferedImage;
 import java.text.AttributedCharacterIterator;
 import java.text.AttributedString;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import org.apache.wicket.Application;
 import org.apache.wicket.Component;
-import org.apache.wicket.SharedResources;
 import org.apache.wicket.markup.ComponentTag;
 import org.apache.wicket.markup.html.image.Image;
 import org.apache.wicket.markup.html.image.resource.RenderedDynamicImageResource;
@@ -56,14 +53,16 @@ import org.apache.wicket.util.string.Strings;
  * to null for alpha transparency, which will appear gray in outdated browsers. The image's
  * alt attribute will be set to the model text, and width and height attributes will be
  * set appropriately.
- * <p> If told to use a shared image resource, RenderedLabel will add its image
- * to the application's shared resources and reference it from a permanent, unique,
- * browser-chacheable URL. Note that if users might request a shared resource before a
- * page containing it has rendered (after a context reload, for example) you should load
- * that resource using loadSharedResources() as the application is starting up.
+ * <p> Rendered images are kept in the application's {@link RenderedImageCache}, keyed by
+ * their full render state, so that identical labels are rasterized only once across pages,
+ * and across restarts if the cache has a disk tier. If told to use a shared image resource, RenderedLabel will serve its image
+ * through the cache's single shared resource from a permanent, unique, browser-cacheable
+ * URL. Note that if users might request a shared resource before a page containing it has
+ * rendered (after a context reload, for example) and its image is not cached on disk, you
+ * should load that resource using loadSharedResources() as the application is starting up.
  * <p> This class is inspired by, and draws code from, Wicket's DefaultButtonImageResource. </p>
  * @author Nathan Hamblen
- * @see SharedResources
+ * @see RenderedImageCache
  */
 public class RenderedLabel extends Image  {
 	private static final long serialVersionUID = 1L;
@@ -101,10 +100,12 @@ public class RenderedLabel extends Image  {
 
 	/** If true, resource is shared across application with a permanent URL. */
 	private boolean isShared = false;
-	/** Hash of the most recently displayed label attributes. -1 is initial value, 0 for blank labels. */
-	private int labelHash = -1;
+	/** Digest of the most recently displayed render state, null initially. */
+	private String labelHash;
 
 	private ResourceReference resource;
+	/** Resource of a shared label, whose reference serves images by key. */
+	private RenderedTextImageResource sharedResource;
 
 	/**
 	 * Constructor to be used if model is derived from a compound property model.
@@ -156,28 +157,23 @@ public class RenderedLabel extends Image  {
 	@Override
 	protected void onBeforeRender() {
 		super.onBeforeRender();
-		int curHash = getLabelHash();
-		String hash = Integer.toHexString(curHash);
+		RenderedTextImageResource current = newRenderedTextImageResource(isShared);
+		String curHash = current.getCacheKey();
 		if (isShared) {
-			if (labelHash != curHash) {
-				SharedResources shared = getApplication().getSharedResources();
-				resource = shared.get(RenderedLabel.class, hash, null, null, null, false);
-				if (resource == null) {
-					shared.add(RenderedLabel.class, hash, null, null, null, newRenderedTextImageResource(true));
-					resource = shared.get(RenderedLabel.class, hash, null, null, null, false);
-				}
-				setImageResourceReference(resource);
+			if (!curHash.equals(labelHash)) {
+				sharedResource = current;
+				resource = RenderedImageCache.get().register(sharedResource);
+				setImageResourceReference(resource, RenderedImageCache.getParameters(sharedResource));
 			}
 		} else {
 			if (resource == null) {
-			  resource = new SimpleStaticResourceReference(RenderedLabel.class, hash, null, null, null,
-			      newRenderedTextImageResource(false));
+			  resource = new SimpleStaticResourceReference(RenderedLabel.class, curHash, null, null, null, current);
 				setImageResourceReference(resource);
 			}
-			else if (labelHash != curHash)
+			else if (!curHash.equals(labelHash))
 				((RenderedTextImageResource) resource.getResource()).setState(this);
 		}
-		labelHash = getLabelHash();
+		labelHash = curHash;
 	}
 
 	/**
@@ -189,42 +185,67 @@ public class RenderedLabel extends Image  {
 	}
 
 	/**
-	 * Adds image-specific attributes including width, height, and alternate text. A hash is appended
-	 * to the source URL to trigger a reload whenever drawing attributes change.
+	 * Adds image-specific attributes including width, height, and alternate text. The render state
+	 * digest is appended to the source URL to trigger a reload whenever drawing attributes change.
+	 * Inside a {@link RenderedLabelSprite}, the image is instead a transparent placeholder with
+	 * the label's area of the sprite as its background.
 	 */
 	@Override
 	protected void onComponentTag(ComponentTag tag) {
 		super.onComponentTag(tag);
 
+		RenderedLabelSprite sprite = findParent(RenderedLabelSprite.class);
+		Rectangle area = sprite == null ? null : sprite.getPosition(this);
+		if (area != null) {
+			String style = tag.getAttributes().getString("style");
+			tag.put("src", RenderedLabelSprite.BLANK_IMAGE);
+			tag.put("style", "background: url(" + sprite.getSpriteUrl() + ") -" + area.x + "px -" + area.y + "px no-repeat;"
+					+ (style == null ? "" : " " + style));
+			tag.put("width", area.width);
+			tag.put("height", area.height);
+			tag.put("alt", getDefaultModelObjectAsString());
+			return;
+		}
+
 		if (!isShared) {
 			String url = tag.getAttributes().getString("src");
 			url = url + ((url.indexOf("?") >= 0) ? "&" : "?");
-			url = url + "wicket:antiCache=" + Integer.toHexString(labelHash);
+			url = url + "wicket:antiCache=" + labelHash;
 
 			tag.put("src", url);
 		}
-		RenderedTextImageResource res = (RenderedTextImageResource) resource.getResource();
-		res.preload();
+		RenderedTextImageResource res = isShared ? sharedResource : (RenderedTextImageResource) resource.getResource();
+		Dimension size = res.measureSize();
+		RenderedImageCache.get().renderLater(res);
 
-		tag.put("width", res.getWidth() );
-		tag.put("height", res.getHeight() );
+		tag.put("width", size.width);
+		tag.put("height", size.height);
 
 		tag.put("alt", getDefaultModelObjectAsString());
 	}
 
-	protected int getLabelHash() {
-		return getLabelHash(getDefaultModelObjectAsString(), font, color, backgroundColor, maxWidth);
+	/**
+	 * @return digest of this label's full render state, used as its image cache key and
+	 * in its URL; stable across nodes and restarts
+	 * @see RenderedTextImageResource#getCacheKey()
+	 */
+	protected String getLabelHash() {
+		return newRenderedTextImageResource(isShared).getCacheKey();
 	}
 
-	protected static int getLabelHash(String text, Font font, Color color, Color backgroundColor, Integer maxWidth) {
-		if (text == null) return 0;
-
-		int hash= text.hashCode() ^ font.hashCode() ^ color.hashCode();
-		if (backgroundColor != null)
-			hash ^= backgroundColor.hashCode();
-		if (maxWidth != null)
-			hash ^= maxWidth.hashCode();
-		return hash;
+	/**
+	 * @return digest of the render state of a plain RenderedLabel with the given attributes
+	 * (and default anti-aliasing), as it would be cached and shared
+	 */
+	protected static String getLabelHash(String text, Font font, Color color, Color backgroundColor, Integer maxWidth) {
+		RenderedTextImageResource res = new RenderedTextImageResource();
+		res.backgroundColor = backgroundColor == null ? defaultBackgroundColor : backgroundColor;
+		res.color = color == null ? defaultColor : color;
+		res.font = font == null ? defaultFont : font;
+		res.maxWidth = maxWidth;
+		res.text = text;
+		res.antiAliased = true;
+		return res.getCacheKey();
 	}
 
 	/** Restores  compound model resolution that is disabled in  the Image superclass. */
@@ -283,11 +304,9 @@ public class RenderedLabel extends Image  {
 		res.font = font == null ? defaultFont : font;
 		res.maxWidth = maxWidth;
 		res.text = text;
+		res.antiAliased = true;
 
-		String hash = Integer.toHexString(getLabelHash(text, font, color, backgroundColor, maxWidth));
-		SharedResources shared = Application.get().getSharedResources();
-
-		shared.add(RenderedLabel.class, hash, null, null, null, res);
+		RenderedImageCache.get().register(res);
 	}
 
 	/**
@@ -315,13 +334,14 @@ public class RenderedLabel extends Image  {
 		protected Integer maxWidth;
 		protected String text;
 		protected boolean antiAliased;
+		private transient String cacheKey;
 
 		protected RenderedTextImageResource() {
 			super(1, 1,"png");	// tiny default that will resize to fit text
 			setType(BufferedImage.TYPE_INT_ARGB); // allow alpha transparency
 		}
 
-		public void setState(RenderedLabel label) {
+		public synchronized void setState(RenderedLabel label) {
 			backgroundColor = label.getBackgroundColor();
 			color = label.getColor();
 			font = label.getFont();
@@ -331,63 +351,305 @@ public class RenderedLabel extends Image  {
 			invalidate();
 		}
 
-        /**
-         * Renders text into image. Will increase dimensions and return false if needed to accomodate
-         * text. Neither dimension will be decreased, unless the text in blank. Blank text is rendered
-         * as a 1 x 1 pixel square, with prior dimensions discarded.
-         */
+		/** Clears the cache key along with the rendered image. */
 		@Override
-    protected boolean render(final Graphics2D graphics)
-		{
-			final int width = getWidth(), height = getHeight();
+		public synchronized void invalidate() {
+			cacheKey = null;
+			super.invalidate();
+		}
 
-			// draw background if not null, otherwise leave transparent
-			if (backgroundColor != null) {
-				graphics.setColor(backgroundColor);
-				graphics.fillRect(0, 0, width, height);
+		/**
+		 * @return digest of the full render state, identifying this resource's image
+		 * in the {@link RenderedImageCache}
+		 */
+		public synchronized String getCacheKey() {
+			if (cacheKey == null) {
+				StringBuilder state = new StringBuilder(getClass().getName());
+				appendField(state, getFormat());
+				appendRenderState(state);
+				cacheKey = RenderedImageCache.digest(state.toString());
 			}
+			return cacheKey;
+		}
 
-			List<AttributedCharacterIterator> attributedLines = getAttributedLines();
+		/**
+		 * Appends every attribute that affects the rendered image. Subclasses rendering
+		 * with additional attributes must override and append those as well.
+		 * @param state buffer to append to
+		 */
+		protected void appendRenderState(StringBuilder state) {
+			appendField(state, text);
+			appendFont(state, font);
+			appendField(state, color == null ? null : Integer.toHexString(color.getRGB()));
+			appendField(state, backgroundColor == null ? null : Integer.toHexString(backgroundColor.getRGB()));
+			appendField(state, maxWidth);
+			appendField(state, antiAliased);
+		}
 
-			// render as a 1x1 pixel if text is empty
-			if (attributedLines == null) {
-				if (width == 1 && height == 1)
-					return true;
-				setWidth(1);
-				setHeight(1);
-				return false;
+		/**
+		 * Appends a value to the render state, prefixed with its length so that no
+		 * two distinct sequences of values produce the same state.
+		 */
+		protected static void appendField(StringBuilder state, Object value) {
+			if (value == null)
+				state.append("|-");
+			else {
+				String str = value.toString();
+				state.append('|').append(str.length()).append(':').append(str);
+			}
+		}
+
+		/** Appends the attributes identifying a font to the render state. */
+		protected static void appendFont(StringBuilder state, Font f) {
+			if (f == null)
+				appendField(state, null);
+			else {
+				appendField(state, f.getFontName());
+				appendField(state, f.getStyle());
+				appendField(state, f.getSize2D());
+				appendField(state, f.isTransformed() ? f.getTransform() : null);
+			}
+		}
+
+		/**
+		 * Serves the image from the cache when present, otherwise renders and caches it,
+		 * joining any render of the same image already in progress.
+		 */
+		@Override
+		protected byte[] getImageData(Attributes attributes) {
+			RenderedImageCache cache = RenderedImageCache.get();
+			byte[] data = cache.get(getCacheKey());
+			if (data == null)
+				data = cache.render(this);
+			if (data == null) {
+				data = super.getImageData(attributes);
+				cache.put(getCacheKey(), data, getFormat());
+			}
+			setDimensions(data);
+			return data;
+		}
+
+		/** Renders the image without consulting the cache. */
+		byte[] renderImageData() {
+			return super.getImageData(null);
+		}
+
+		/** Sets width and height from image data, if they differ. */
+		private synchronized void setDimensions(byte[] data) {
+			Dimension size = readDimensions(data);
+			if (size == null)
+				return;
+			if (size.width != getWidth())
+				setWidth(size.width);
+			if (size.height != getHeight())
+				setHeight(size.height);
+		}
+
+		/**
+		 * Reads the dimensions of an image produced by this resource, from the header chunk
+		 * of PNG data. Override for resources producing other formats.
+		 * @param data image data, possibly null
+		 * @return dimensions, or null if not known
+		 */
+		protected Dimension readDimensions(byte[] data) {
+			if (!RenderedImageCache.isPng(data))
+				return null;
+			return new Dimension(readInt(data, 16), readInt(data, 20));
+		}
+
+		/**
+		 * Determines the size of the image without rendering it, from the cached image
+		 * if available and otherwise by laying out the text. The layout is retained
+		 * for use by the next render of the same state.
+		 * @return width and height of the image
+		 */
+		public synchronized Dimension measureSize() {
+			String key = getCacheKey();
+			Dimension cached = readDimensions(RenderedImageCache.get().get(key));
+			if (cached != null)
+				return cached;
+			TextMeasure measure = measure();
+			lastMeasure = measure;
+			lastMeasureKey = key;
+			return measure == null ? new Dimension(1, 1) : new Dimension(measure.width, measure.height);
+		}
+
+		private static int readInt(byte[] data, int offset) {
+			return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+				((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		}
+
+		/** Adds a strong entity tag and far-future expiration, as the URL changes with the image. */
+		@Override
+		protected void configureResponse(ResourceResponse response, Attributes attributes) {
+			super.configureResponse(response, attributes);
+			RenderedImageCache.configureCaching(response, getCacheKey());
+		}
+
+		/** Layout measured by the most recent call to render(), consumed by render(Graphics2D). */
+		private transient TextMeasure measured;
+		/** Layout measured for markup by measureSize(), and the state it was measured for. */
+		private transient TextMeasure lastMeasure;
+		private transient String lastMeasureKey;
+
+		/** Lines of text laid out for drawing, with the dimensions they require. */
+		protected static class TextMeasure {
+			public final List<TextLayout> layouts;
+			public final float lineHeight, descent;
+			public final int width, height;
+
+			public TextMeasure(List<TextLayout> layouts, float lineHeight, float descent, float width) {
+				this.layouts = layouts;
+				this.lineHeight = lineHeight;
+				this.descent = descent;
+				this.width = Math.max(1, (int) Math.ceil(width));
+				this.height = Math.max(1, (int) Math.ceil(layouts.size() * lineHeight));
 			}
 
-			graphics.setFont(font);
-			FontMetrics fontMetrics = graphics.getFontMetrics();
+			/** For renderers whose needed size is not derived from the layouts. */
+			public TextMeasure(List<TextLayout> layouts, float lineHeight, float descent, int width, int height) {
+				this.layouts = layouts;
+				this.lineHeight = lineHeight;
+				this.descent = descent;
+				this.width = width;
+				this.height = height;
+			}
+		}
 
-			List<TextLayout> layouts = new LinkedList<TextLayout>();
+		/**
+		 * Lays out the text without any image, wrapping lines at maxWidth if set.
+		 * @return measured layout, or null if text is blank
+		 */
+		protected TextMeasure measure() {
+			if (hasUniformFont())
+				return measureUniform();
+			List<AttributedCharacterIterator> attributedLines = getAttributedLines();
+			if (attributedLines == null)
+				return null;
 
+			List<TextLayout> layouts = new ArrayList<TextLayout>(attributedLines.size());
 			float neededWidth = 0f;
 			for (AttributedCharacterIterator attributedIterator : attributedLines) {
 				if (maxWidth == null) {
-					TextLayout layout = new TextLayout(attributedIterator, graphics.getFontRenderContext());
-					 if (layout.getBounds().getWidth() > neededWidth)
-						 neededWidth = (float) layout.getBounds().getWidth();
+					TextLayout layout = new TextLayout(attributedIterator, RenderedFontCache.MEASURE_CONTEXT);
+					if (layout.getBounds().getWidth() > neededWidth)
+						neededWidth = (float) layout.getBounds().getWidth();
 					layouts.add(layout);
 				}
 				else {
-					LineBreakMeasurer breaker = new LineBreakMeasurer(attributedIterator, graphics.getFontRenderContext());
+					LineBreakMeasurer breaker = new LineBreakMeasurer(attributedIterator, RenderedFontCache.MEASURE_CONTEXT);
 					TextLayout layout ;
 					while (null != (layout = breaker.nextLayout(maxWidth))) {
 						layouts.add(layout);
 						if (layout.getBounds().getWidth() > neededWidth)
-                            neededWidth = Math.min(maxWidth, (float) layout.getBounds().getWidth());
+							neededWidth = Math.min(maxWidth, (float) layout.getBounds().getWidth());
 					}
 				}
 			}
+			RenderedFontCache.Spacing spacing = RenderedFontCache.getSpacing(font);
+			return new TextMeasure(layouts, spacing.lineHeight, spacing.descent, neededWidth);
+		}
 
-			float lineHeight = graphics.getFontMetrics().getHeight(),
-				neededHeight = layouts.size() * lineHeight;
+		/**
+		 * Lays out text in a single font with shared layouts from {@link RenderedFontCache}.
+		 * @return measured layout, or null if text is blank
+		 */
+		private TextMeasure measureUniform() {
+			if (Strings.isEmpty(text))
+				return null;
+			List<TextLayout> layouts = new ArrayList<TextLayout>();
+			float neededWidth = 0f;
+			int last = 0;
+			do {
+				int nl = text.indexOf('\n', last);
+				String line = nl < 0 ? text.substring(last) : text.substring(last, nl + 1);
+				last = nl < 0 ? -1 : nl + 1;
+				for (TextLayout layout : RenderedFontCache.getLayouts(line, font, maxWidth)) {
+					layouts.add(layout);
+					float width = (float) layout.getBounds().getWidth();
+					if (width > neededWidth)
+						neededWidth = maxWidth == null ? width : Math.min(maxWidth, width);
+				}
+			} while (last >= 0);
+			RenderedFontCache.Spacing spacing = RenderedFontCache.getSpacing(font);
+			return new TextMeasure(layouts, spacing.lineHeight, spacing.descent, neededWidth);
+		}
 
-			if (neededWidth > width || neededHeight > height) {
-                setWidth(Math.max((int)Math.ceil(neededWidth), width));
-                setHeight(Math.max((int)Math.ceil(neededHeight), height));
+		/**
+		 * @return true if the whole text is rendered in the resource font, as with the lines
+		 * from getAttributedLines() in this class, allowing layouts to be shared across labels.
+		 * Subclasses that apply other attributes in getAttributedLines() must return false.
+		 */
+		protected boolean hasUniformFont() {
+			return true;
+		}
+
+		/**
+		 * Measures the text and sizes the image to fit before rendering, so that the image
+		 * is allocated and drawn only once.
+		 */
+		@Override
+		protected synchronized byte[] render() {
+			return toImageData(renderBufferedImage());
+		}
+
+		/**
+		 * Renders the image into a buffer of the measured size without encoding it, e.g. for
+		 * composition into a {@link RenderedLabelSprite}.
+		 * @return rendered image
+		 */
+		synchronized BufferedImage renderBufferedImage() {
+			TextMeasure measure = getCacheKey().equals(lastMeasureKey) ? lastMeasure : measure();
+			lastMeasure = null;
+			lastMeasureKey = null;
+			int width = measure == null ? 1 : measure.width, height = measure == null ? 1 : measure.height;
+			if (width != getWidth())
+				setWidth(width);
+			if (height != getHeight())
+				setHeight(height);
+			measured = measure;
+			try {
+				while (true) {
+					BufferedImage image = new BufferedImage(getWidth(), getHeight(), getType());
+					if (render((Graphics2D) image.getGraphics()))
+						return image;
+				}
+			} finally {
+				measured = null;
+			}
+		}
+
+		/**
+		 * Draws the measured text into an image of the measured size. If called without a
+		 * prior measure, or with an image that is too small, will measure and resize the image
+		 * and return false. Blank text is rendered as a 1 x 1 pixel square.
+		 */
+		@Override
+		protected boolean render(final Graphics2D graphics)
+		{
+			final int width = getWidth(), height = getHeight();
+
+			// draw background if not null, otherwise leave transparent
+			if (backgroundColor != null) {
+				graphics.setColor(backgroundColor);
+				graphics.fillRect(0, 0, width, height);
+			}
+
+			TextMeasure measure = measured != null ? measured : measure();
+			measured = null;
+
+			// render as a 1x1 pixel if text is empty
+			if (measure == null) {
+				if (width == 1 && height == 1)
+					return true;
+				setWidth(1);
+				setHeight(1);
+				return false;
+			}
+
+			if (measure.width > width || measure.height > height) {
+				setWidth(Math.max(measure.width, width));
+				setHeight(Math.max(measure.height, height));
 				return false;
 			}
 			// Turn on anti-aliasing
@@ -395,10 +657,13 @@ public class RenderedLabel extends Image  {
 					antiAliased ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
 			graphics.setColor(color);
 
-			float y = lineHeight - fontMetrics.getMaxDescent();
-			for (TextLayout layout : layouts) {
-				layout.draw(graphics, 0f, y);
-				y += lineHeight;
+			float y = measure.lineHeight - measure.descent;
+			for (TextLayout layout : measure.layouts) {
+				// layouts may be shared with other threads
+				synchronized (layout) {
+					layout.draw(graphics, 0f, y);
+				}
+				y += measure.lineHeight;
 			}
 
 			return true;
@@ -414,13 +679,11 @@ public class RenderedLabel extends Image  {
 		}
 
 		static List<AttributedCharacterIterator> splitAtNewlines(AttributedString attr, String plain) {
-			List<AttributedCharacterIterator> lines = new LinkedList<AttributedCharacterIterator>();
-			Pattern nl = Pattern.compile("\n");
-			Matcher m = nl.matcher(plain);
+			List<AttributedCharacterIterator> lines = new ArrayList<AttributedCharacterIterator>();
 			int last = 0;
-			while (m.find()) {
-				lines.add(attr.getIterator(null, last, m.end()));
-				last = m.end();
+			for (int nl = plain.indexOf('\n'); nl >= 0; nl = plain.indexOf('\n', last)) {
+				lines.add(attr.getIterator(null, last, nl + 1));
+				last = nl + 1;
 			}
 			lines.add(attr.getIterator(null, last, plain.length()));
 			return lines;
@@ -428,10 +691,8 @@ public class RenderedLabel extends Image  {
 		}
 
 		/**
-		 * Normally, image rendering is deferred until the resource is requested, but
-		 * this method allows us to render the image when its markup is rendered. This way
-		 * the model will not need to be reattached when we serve the image, and we can
-		 * use the size information in the IMG tag.
+		 * Renders the image immediately, if it is not cached. Labels measure their text
+		 * for markup with measureSize() and queue rendering in the background instead.
 		 */
 		public void preload() {
 			getImageData(null);
@@ -0,0 +1,164 @@
+package net.databinder.components;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.databinder.components.RenderedLabel.RenderedTextImageResource;
+
+import org.apache.wicket.markup.ComponentTag;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.visit.IVisit;
+import org.apache.wicket.util.visit.IVisitor;
+
+/**
+ * Container that combines the images of all rendered labels inside it into a single sprite
+ * image. Labels are stacked vertically in the sprite and each is rendered as a transparent
+ * image with the sprite as its CSS background, so that a page of navigation labels needs
+ * one image request and one PNG encoding instead of one per label. The sprite is identified
+ * by the render states of its labels and cached and served like a shared label image.
+ * <pre>
+ * RenderedLabelSprite nav = new RenderedLabelSprite("nav");
+ * nav.add(new RenderedLabel("home", new Model("Home")));
+ * </pre>
+ * @see RenderedImageCache
+ */
+public class RenderedLabelSprite extends WebMarkupContainer {
+	private static final long serialVersionUID = 1L;
+
+	/** Transparent 1x1 GIF used as the source of sprite members. */
+	static final String BLANK_IMAGE = "data:image/gif;base64,R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7";
+
+	/** Positions of member labels in the sprite, for the current render only. */
+	private transient Map<RenderedLabel, Rectangle> positions;
+	private transient CharSequence spriteUrl;
+
+	public RenderedLabelSprite(String id) {
+		super(id);
+	}
+
+	public RenderedLabelSprite(String id, IModel<?> model) {
+		super(id, model);
+	}
+
+	/** Lays out the sprite before member labels render their tags. */
+	@Override
+	protected void onComponentTag(ComponentTag tag) {
+		super.onComponentTag(tag);
+		layout();
+	}
+
+	private void layout() {
+		final Map<String, RenderedTextImageResource> members = new LinkedHashMap<String, RenderedTextImageResource>();
+		final Map<RenderedLabel, String> labelKeys = new IdentityHashMap<RenderedLabel, String>();
+		visitChildren(RenderedLabel.class, new IVisitor<RenderedLabel, Void>() {
+			public void component(RenderedLabel label, IVisit<Void> visit) {
+				if (!label.isVisibleInHierarchy() || label.findParent(RenderedLabelSprite.class) != RenderedLabelSprite.this)
+					return;
+				RenderedTextImageResource res = label.newRenderedTextImageResource(true);
+				String key = res.getCacheKey();
+				if (!members.containsKey(key))
+					members.put(key, res);
+				labelKeys.put(label, key);
+			}
+		});
+		positions = new IdentityHashMap<RenderedLabel, Rectangle>();
+		if (members.isEmpty())
+			return;
+
+		Map<String, Rectangle> areas = new LinkedHashMap<String, Rectangle>();
+		int y = 0;
+		for (Map.Entry<String, RenderedTextImageResource> member : members.entrySet()) {
+			Dimension size = member.getValue().measureSize();
+			areas.put(member.getKey(), new Rectangle(0, y, size.width, size.height));
+			y += size.height;
+		}
+		for (Map.Entry<RenderedLabel, String> label : labelKeys.entrySet())
+			positions.put(label.getKey(), areas.get(label.getValue()));
+
+		SpriteImageResource sprite = new SpriteImageResource(new ArrayList<RenderedTextImageResource>(members.values()),
+				new ArrayList<Rectangle>(areas.values()));
+		RenderedImageCache cache = RenderedImageCache.get();
+		ResourceReference ref = cache.register(sprite);
+		spriteUrl = urlFor(ref, RenderedImageCache.getParameters(sprite));
+		cache.renderLater(sprite);
+	}
+
+	/**
+	 * @param label member label
+	 * @return area of the label in the sprite, or null if the label is not part of the current sprite
+	 */
+	Rectangle getPosition(RenderedLabel label) {
+		return positions == null ? null : positions.get(label);
+	}
+
+	/** @return URL of the current sprite image */
+	CharSequence getSpriteUrl() {
+		return spriteUrl;
+	}
+
+	@Override
+	protected void onDetach() {
+		positions = null;
+		spriteUrl = null;
+		super.onDetach();
+	}
+
+	/** Renders member images into one image, at areas determined when the sprite was laid out. */
+	static class SpriteImageResource extends RenderedTextImageResource {
+		private static final long serialVersionUID = 1L;
+
+		private final List<RenderedTextImageResource> members;
+		private final List<Rectangle> areas;
+
+		SpriteImageResource(List<RenderedTextImageResource> members, List<Rectangle> areas) {
+			this.members = members;
+			this.areas = areas;
+		}
+
+		/** Identified by the render states of the members, in order. */
+		@Override
+		protected void appendRenderState(StringBuilder state) {
+			for (RenderedTextImageResource member : members)
+				appendField(state, member.getCacheKey());
+		}
+
+		@Override
+		public synchronized Dimension measureSize() {
+			int width = 1, height = 1;
+			for (Rectangle area : areas) {
+				width = Math.max(width, area.width);
+				height = Math.max(height, area.y + area.height);
+			}
+			return new Dimension(width, height);
+		}
+
+		@Override
+		protected synchronized byte[] render() {
+			Dimension size = measureSize();
+			BufferedImage sprite = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D graphics = sprite.createGraphics();
+			try {
+				for (int i = 0; i < members.size(); i++) {
+					Rectangle area = areas.get(i);
+					graphics.drawImage(members.get(i).renderBufferedImage(), area.x, area.y, null);
+				}
+			} finally {
+				graphics.dispose();
+			}
+			if (size.width != getWidth())
+				setWidth(size.width);
+			if (size.height != getHeight())
+				setHeight(size.height);
+			return toImageData(sprite);
+		}
+	}
+}
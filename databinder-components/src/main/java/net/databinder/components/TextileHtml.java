@@ -0,0 +1,28 @@
+package net.databinder.components;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a String property that stores the JTextile output of another property of the
+ * same entity, so that it can be rendered without formatting the source on every read.
+ * The stored value is maintained by net.databinder.components.hib.TextileHtmlListener
+ * when the entity is written, and carries a version stamp so that output of an older
+ * formatter is ignored by {@link TextileLabel}.
+ * <pre>
+ * private String body;
+ * &#64;TextileHtml("body") &#64;Column(length = 65535)
+ * private String bodyHtml;
+ * ...
+ * add(new TextileLabel("body", new PropertyModel(post, "body"), new PropertyModel(post, "bodyHtml")));
+ * </pre>
+ * @see TextileLabel#stamp(String)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface TextileHtml {
+	/** @return name of the property holding Textile source text */
+	String value();
+}
@@ -1,22 +1,39 @@
 package net.databinder.components;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import jtextile.JTextile;
 
+import org.apache.wicket.markup.ComponentTag;
+import org.apache.wicket.markup.MarkupStream;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.util.convert.IConverter;
 import org.apache.wicket.util.convert.converter.AbstractConverter;
 
 /**
- * Filters its model through JTextile before rendering.
+ * Filters its model through JTextile before rendering. If constructed with a model of
+ * previously stored output (see {@link TextileHtml}), that is rendered instead as long
+ * as it was produced by the current formatter version.
  * @see jtextile.JTextile
  * @author Nathan Hamblen
  */
 public class TextileLabel extends Label {
   private static final long serialVersionUID = 1L;
 
+	/**
+	 * Version of the Textile formatter; increment when JTextile's output changes so that
+	 * stored output from the previous version is no longer used.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private static final String STAMP = "<!--textile " + FORMAT_VERSION + "-->";
+
+	private IModel<String> htmlModel;
+
 	/**
 	 * @param id Wicket id
 	 */
@@ -34,6 +51,51 @@ public class TextileLabel extends Label {
 		setEscapeModelStrings(false); // since the contents will be in HTML
 	}
 
+	/**
+	 * @param id Wicket id
+	 * @param model String model of Textile source
+	 * @param htmlModel model of stored output for the source, as produced by stamp()
+	 */
+	public TextileLabel(String id, IModel<?> model, IModel<String> htmlModel) {
+		this(id, model);
+		this.htmlModel = htmlModel;
+	}
+
+	/** Renders stored output if it is current, otherwise converts the model. */
+	@Override
+	public void onComponentTagBody(MarkupStream markupStream, ComponentTag openTag) {
+		String html = htmlModel == null ? null : unstamp(htmlModel.getObject());
+		if (html == null)
+			super.onComponentTagBody(markupStream, openTag);
+		else
+			replaceComponentTagBody(markupStream, openTag, html);
+	}
+
+	@Override
+	protected void onDetach() {
+		if (htmlModel != null)
+			htmlModel.detach();
+		super.onDetach();
+	}
+
+	/**
+	 * @param html JTextile output
+	 * @return output marked with the current FORMAT_VERSION, for storage
+	 */
+	public static String stamp(String html) {
+		return STAMP + html;
+	}
+
+	/**
+	 * @param stored value produced by stamp(), or null
+	 * @return output without its stamp, or null if there is none or it is from another version
+	 */
+	public static String unstamp(String stored) {
+		if (stored == null || !stored.startsWith(STAMP))
+			return null;
+		return stored.substring(STAMP.length());
+	}
+
 	@Override
 	public IConverter getConverter(Class<?> type) {
 		return new TextileConverter();
@@ -41,11 +103,27 @@ public class TextileLabel extends Label {
 
 	/**
 	 * Passes all source objects through JTextile, checks that conversion is String-String.
+	 * Output for recently converted sources is cached, so that text rendered repeatedly
+	 * (comment threads, list pages) is only formatted once.
 	 * @see jtextile.JTextile
 	 */
 	protected static class TextileConverter extends AbstractConverter {
 	  private static final long serialVersionUID = TextileLabel.serialVersionUID;
 
+		/** Sources longer than this are converted every time rather than cached. */
+		private static final int MAX_CACHED_LENGTH = 16 * 1024;
+		private static final int MAX_ENTRIES = 512;
+
+		/** Least recently used output, keyed by source text. */
+		private static final Map<String, String> cache = Collections.synchronizedMap(
+				new LinkedHashMap<String, String>(64, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+						return size() > MAX_ENTRIES;
+					}
+				});
+
 		@Override
 		protected Class<String> getTargetType() {
 			return String.class;
@@ -53,15 +131,26 @@ public class TextileLabel extends Label {
 		@Override
 		public String convertToString(Object source, Locale locale) {
 			if (source instanceof String)
+				return textile((String) source);
+			throw new UnsupportedOperationException("Can only convert Strings to Strings");
+		}
+		public Object convertToObject(String value, Locale locale) {
+			return null;
+		}
+
+		/** @return JTextile output for the source, from the cache if available */
+		protected String textile(String source) {
+			String html = cache.get(source);
+			if (html == null) {
 				try{
-					return JTextile.textile((String) source);
+					html = JTextile.textile(source);
 				} catch (Exception e) {
 					throw new RuntimeException(e);
 				}
-				throw new UnsupportedOperationException("Can only convert Strings to Strings");
-		}
-		public Object convertToObject(String value, Locale locale) {
-			return null;
+				if (source.length() <= MAX_CACHED_LENGTH)
+					cache.put(source, html);
+			}
+			return html;
 		}
 	}
 }
@@ -0,0 +1,143 @@
+package net.databinder.components;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.databinder.components.FormattedRenderedTextImageResource.ParsedText;
+import net.databinder.components.FormattedRenderedTextImageResource.Range;
+
+import org.junit.Test;
+
+/**
+ * Compares the single-pass parser with the regular expression parser it replaced, which
+ * is kept here as the reference for text mixing the * and _ markers.
+ */
+public class FormattedRenderedTextImageResourceTest {
+
+	private static final String[] MIXED = {
+		"file_name.txt is *important*",
+		"call __init and **go**",
+		"*a* and _b_",
+		"_a_ and *b*",
+		"**a** and __b__",
+		"__a__ and **b**",
+		"snake_case *italic* and **bold**",
+		"2 * 3 is _six_",
+		"2 ** 3 is __eight__",
+		"a_b_c and *d*",
+		"*one_ two_ three*",
+		"**bold with _italic_ inside**",
+		"__bold with *italic* inside__",
+		"*italic* __bold__ [link](http://example.com/) _more_",
+		"unclosed * and _ with **bold**",
+		"line one_  \nline *two*",
+	};
+
+	@Test
+	public void mixedMarkers() {
+		for (String in : MIXED)
+			assertEquals(in, legacy(in), current(in));
+	}
+
+	@Test
+	public void italicAfterUnclosedUnderscore() {
+		assertEquals("file_name.txt is important [ITALIC 17-26]", current("file_name.txt is *important*"));
+	}
+
+	@Test
+	public void boldAfterUnclosedDoubleUnderscore() {
+		assertEquals("call __init and go [BOLD 16-18]", current("call __init and **go**"));
+	}
+
+	/** @return text and sorted, non-empty ranges from the single-pass parser */
+	private static String current(String in) {
+		ParsedText parsed = FormattedRenderedTextImageResource.tokenize(
+				FormattedRenderedTextImageResource.normalize(in));
+		List<String> ranges = new ArrayList<String>();
+		for (Range r : parsed.ranges)
+			if (r.end > r.start)
+				ranges.add(r.style + " " + r.start + "-" + r.end);
+		return describe(parsed.text, ranges);
+	}
+
+	private static String describe(String text, List<String> ranges) {
+		Collections.sort(ranges);
+		StringBuilder out = new StringBuilder(text);
+		for (String r : ranges)
+			out.append(" [").append(r).append(']');
+		return out.toString();
+	}
+
+	// the replaced parser, from FormattedRenderedTextImageResource.getAttributedLines()
+
+	private static Pattern footnoteLinks = Pattern.compile("^ *\\[.+\\]\\:\\s.+\n", Pattern.MULTILINE);
+	private static Pattern strayNewlines = Pattern.compile("(?<!(  )|\n)\n(?!\n)");
+	private static Pattern boldFormat = Pattern.compile("(\\A|[^\\\\])(_{2}|\\*{2})(.+?)(\\2)", Pattern.DOTALL);
+	private static Pattern italicFormat = Pattern.compile("(\\A|[^\\\\])(\\*|_)(.+?)(\\2)", Pattern.DOTALL);
+	private static Pattern linkFormat = Pattern.compile("(\\A|[^\\\\])(\\[)(.+?)(\\](\\(|\\[).+?(\\)|\\]))", Pattern.DOTALL);
+	private static Pattern escapedCharacter = Pattern.compile("(\\\\)[^\\\\]");
+
+	private static class LegacyRange {
+		String style;
+		int start, end;
+	}
+
+	private static class MutableRangeString {
+		List<LegacyRange> ranges = new ArrayList<LegacyRange>();
+		StringBuilder string;
+		MutableRangeString(String str) {
+			string = new StringBuilder(str);
+		}
+		void expell(int start, int end) {
+			string.delete(start, end);
+			for (LegacyRange r : ranges) {
+				if (r.end > start) {
+					r.end = r.end + start - end;
+					if (r.start > start)
+						r.start = r.start + start - end;
+				}
+			}
+		}
+	}
+
+	private static void process(MutableRangeString rangeStr, Pattern p, String style) {
+		int delta = 0;
+		Matcher m = p.matcher(rangeStr.string.toString());
+		while (m.find()) {
+			LegacyRange r = new LegacyRange();
+			r.style = style;
+			r.start = m.start(3) - delta;
+			r.end = m.end(3) - delta;
+			rangeStr.ranges.add(r);
+			rangeStr.expell(m.start(2) - delta, m.end(2) - delta);
+			delta += m.end(2) - m.start(2);
+			rangeStr.expell(m.start(4) - delta, m.end(4) - delta);
+			delta += m.end(4) - m.start(4);
+		}
+	}
+
+	private static String legacy(String markedtext) {
+		markedtext = footnoteLinks.matcher(markedtext).replaceAll("");
+		markedtext = strayNewlines.matcher(markedtext.trim()).replaceAll("");
+		MutableRangeString rangeStr = new MutableRangeString(markedtext);
+		process(rangeStr, boldFormat, "BOLD");
+		process(rangeStr, italicFormat, "ITALIC");
+		process(rangeStr, linkFormat, "LINK");
+		int delta = 0;
+		Matcher m = escapedCharacter.matcher(rangeStr.string.toString());
+		while (m.find()) {
+			rangeStr.expell(m.start(1) - delta, m.end(1) - delta);
+			delta++;
+		}
+		List<String> ranges = new ArrayList<String>();
+		for (LegacyRange r : rangeStr.ranges)
+			if (r.end > r.start)
+				ranges.add(r.style + " " + r.start + "-" + r.end);
+		return describe(rangeStr.string.toString(), ranges);
+	}
+}
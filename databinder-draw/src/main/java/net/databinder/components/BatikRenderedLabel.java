@@ -1,31 +1,54 @@
 package net.databinder.components;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.RenderingHints;
+import java.awt.font.TextLayout;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.text.AttributedCharacterIterator;
 import java.text.AttributedString;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.batik.gvt.TextNode;
 import org.apache.batik.gvt.font.AWTGVTFont;
 import org.apache.batik.gvt.font.GVTFont;
 import org.apache.batik.gvt.renderer.StrokingTextPainter;
 import org.apache.batik.gvt.text.TextPaintInfo;
+import org.apache.batik.svggen.SVGGeneratorContext;
+import org.apache.batik.svggen.SVGGraphics2D;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.util.string.Strings;
+import org.w3c.dom.Document;
 
 /**
  * Renders text without font hinting, which can be better for some fonts
  * at larger sizes. The standard Java pipeline does not allow hinting to
- * be disabled; Batik does.
+ * be disabled; Batik does. Can also produce SVG images, with text as outlined
+ * paths, through setVector().
  * @author Nathan Hamblen
  */
 public class BatikRenderedLabel extends RenderedLabel {
+	private boolean vector = false;
+
 	public BatikRenderedLabel(String id) {
 		super(id);
 	}
@@ -41,7 +64,14 @@ public class BatikRenderedLabel extends RenderedLabel {
 
 
 	public static void loadSharedResources(String text, Font font, Color color, Color backgroundColor, Integer maxWidth) {
-		loadSharedResources(new BatikRenderedTextImageResource(), text, font, color, backgroundColor, maxWidth);
+		loadSharedResources(text, font, color, backgroundColor, maxWidth, false);
+	}
+
+	/** Loads a shared resource, in SVG if vector is true. */
+	public static void loadSharedResources(String text, Font font, Color color, Color backgroundColor, Integer maxWidth, boolean vector) {
+		BatikRenderedTextImageResource res = new BatikRenderedTextImageResource();
+		res.setVector(vector);
+		loadSharedResources(res, text, font, color, backgroundColor, maxWidth);
 	}
 
 	@Override
@@ -52,51 +82,114 @@ public class BatikRenderedLabel extends RenderedLabel {
 		return res;
 	}
 
-	
+	public boolean isVector() {
+		return vector;
+	}
+
+	/**
+	 * Specify SVG output, with text drawn as outlined paths. The image is then independent
+	 * of resolution and typically smaller than a PNG for long text; browsers without SVG
+	 * support in images will not display it.
+	 * @param vector true for SVG, false for PNG
+	 * @return this, for chaining
+	 */
+	public BatikRenderedLabel setVector(boolean vector) {
+		this.vector = vector;
+		return this;
+	}
+
 	protected static class BatikRenderedTextImageResource extends RenderedTextImageResource {
 		
+		/** GVT font lists shared by labels in the same font; bounded like RenderedFontCache. */
+		private static final Map<Font, List<GVTFont>> gvtFonts = Collections.synchronizedMap(
+				new LinkedHashMap<Font, List<GVTFont>>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<Font, List<GVTFont>> eldest) {
+						return size() > 256;
+					}
+				});
+
+		/** Image from which font metrics are obtained for measuring. */
+		private static final BufferedImage metricsImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+		/** Matches the opening tag of the SVG root element, and its width and height attributes. */
+		private static final Pattern svgRoot = Pattern.compile("<svg\\s[^>]*>"),
+			svgWidth = Pattern.compile("\\swidth=\"(\\d+)\""), svgHeight = Pattern.compile("\\sheight=\"(\\d+)\"");
+
+		/** Decimal places of SVG coordinates, a tenth of a pixel being ample for text outlines. */
+		private static final int SVG_PRECISION = 1;
+
+		protected boolean vector;
+
+		/** @return unmodifiable single-element list of the GVT font for font */
+		protected static List<GVTFont> getGVTFonts(Font font) {
+			List<GVTFont> fonts = gvtFonts.get(font);
+			if (fonts == null)
+				gvtFonts.put(font, fonts = Collections.<GVTFont>singletonList(new AWTGVTFont(font)));
+			return fonts;
+		}
+
+		/** Produces SVG instead of PNG if vector is true. */
+		public synchronized void setVector(boolean vector) {
+			this.vector = vector;
+			setFormat(vector ? "svg+xml" : "png");
+			invalidate();
+		}
+
+		@Override
+		public synchronized void setState(RenderedLabel label) {
+			if (label instanceof BatikRenderedLabel)
+				setVector(((BatikRenderedLabel) label).isVector());
+			super.setState(label);
+		}
+
+		@Override
+		protected void appendRenderState(StringBuilder state) {
+			super.appendRenderState(state);
+			appendField(state, vector);
+		}
+
+		/**
+		 * @return lines of text, split at newlines and wrapped at maxWidth if set, with
+		 * Batik's font and paint attributes
+		 */
 		protected List<AttributedCharacterIterator> getAttributedLines() {
 			if (Strings.isEmpty(text))
 				return null;
-			AttributedString attributedText = new AttributedString(text);
-			
-			List<GVTFont> fonts = new ArrayList<GVTFont>(1);
-			fonts.add(new AWTGVTFont(font));
-			attributedText.addAttribute(StrokingTextPainter.GVT_FONTS, fonts);
-			
+			List<AttributedCharacterIterator> lines = new ArrayList<AttributedCharacterIterator>();
 			TextPaintInfo tpi = new TextPaintInfo();
 			tpi.visible = true;
 			tpi.fillPaint = color;
-			attributedText.addAttribute(StrokingTextPainter.PAINT_INFO, tpi);
-
-			return splitAtNewlines(attributedText, text);
-		}
-		
-		@Override
-		protected boolean render(Graphics2D graphics) {
-			final int width = getWidth(), height = getHeight();
-
-			// draw background if not null, otherwise leave transparent
-			if (backgroundColor != null) {
-				graphics.setColor(backgroundColor);
-				graphics.fillRect(0, 0, width, height);
+			for (String line : wrapLines()) {
+				AttributedString attributedText = new AttributedString(line);
+				if (line.length() > 0) {
+					attributedText.addAttribute(StrokingTextPainter.GVT_FONTS, getGVTFonts(font));
+					attributedText.addAttribute(StrokingTextPainter.PAINT_INFO, tpi);
+				}
+				lines.add(attributedText.getIterator());
 			}
+			return lines;
+		}
 
-			// render as a 1x1 pixel if text is empty
-			if (Strings.isEmpty(text)) {
-				if (width == 1 && height == 1)
-					return true;
-				setWidth(1);
-				setHeight(1);
-				return false;
+		/** @return text split at newlines and, if maxWidth is set, at the breaks of a standard layout */
+		private List<String> wrapLines() {
+			List<String> lines = new ArrayList<String>();
+			for (String line : text.split("\n", -1)) {
+				if (maxWidth == null || line.length() == 0)
+					lines.add(line);
+				else {
+					int start = 0;
+					for (TextLayout layout : RenderedFontCache.getLayouts(line, font, maxWidth)) {
+						lines.add(line.substring(start, start + layout.getCharacterCount()));
+						start += layout.getCharacterCount();
+					}
+				}
 			}
-			
-			// Get size of text
-			graphics.setFont(font);
-			final FontMetrics fontMetrics = graphics.getFontMetrics();
+			return lines;
+		}
 
-			List<AttributedCharacterIterator> attributedLines = getAttributedLines();
-			
+		private static void setHints(Graphics2D graphics) {
 			// each one of these is needed for a unhinted, anti-aliased display
 			graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
 					RenderingHints.VALUE_ANTIALIAS_ON);
@@ -104,35 +197,144 @@ public class BatikRenderedLabel extends RenderedLabel {
 					RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 			graphics.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
 					RenderingHints.VALUE_STROKE_PURE);
+		}
 
-			 // TODO: maxwidth wrapping layout, format string processing
-
+		/**
+		 * Creates a positioned text node for each non-empty line.
+		 * @param nodes list to add nodes to
+		 * @return size needed for all lines, or null if text is blank
+		 */
+		private Dimension layoutNodes(List<TextNode> nodes, FontMetrics fontMetrics) {
+			List<AttributedCharacterIterator> attributedLines = getAttributedLines();
+			if (attributedLines == null)
+				return null;
 			float lineHeight = fontMetrics.getHeight(),
 				spare = fontMetrics.getMaxAscent() - fontMetrics.getAscent()
 					+ fontMetrics.getMaxDescent() - fontMetrics.getDescent(),
 				neededHeight = attributedLines.size() * lineHeight + spare,
-				neededWidth = 0f, 
+				neededWidth = 0f,
 				y = fontMetrics.getMaxAscent();
-			
+
 			for (AttributedCharacterIterator line : attributedLines) {
-				TextNode node = new TextNode();
-				node.setLocation(new Point(0, (int) y));
-				node.setAttributedCharacterIterator(line);
-				node.getTextPainter().paint(node, graphics);
-				
-				float w = (float) node.getTextPainter().getBounds2D(node).getWidth() + 4f;
-				if (w > neededWidth)
-					neededWidth = w;
-				
+				if (line.getEndIndex() > line.getBeginIndex()) {
+					TextNode node = new TextNode();
+					node.setLocation(new Point(0, (int) y));
+					node.setAttributedCharacterIterator(line);
+					nodes.add(node);
+					Rectangle2D bounds = node.getTextPainter().getBounds2D(node);
+					float w = bounds == null ? 0f : (float) bounds.getWidth() + 4f;
+					if (w > neededWidth)
+						neededWidth = w;
+				}
 				y += lineHeight;
 			}
-			if (neededWidth > width || neededHeight > height) {
-				setWidth((int)Math.ceil(neededWidth));
-				setHeight((int)Math.ceil(neededHeight));
+			return new Dimension(Math.max(1, (int) Math.ceil(neededWidth)), Math.max(1, (int) Math.ceil(neededHeight)));
+		}
+
+		/** Measures with Batik's text bounds, which differ from the standard layout. */
+		@Override
+		protected TextMeasure measure() {
+			Graphics2D graphics = metricsImage.createGraphics();
+			try {
+				setHints(graphics);
+				Dimension size = layoutNodes(new ArrayList<TextNode>(), graphics.getFontMetrics(font));
+				if (size == null)
+					return null;
+				return new TextMeasure(Collections.<TextLayout>emptyList(), 0f, 0f, size.width, size.height);
+			} finally {
+				graphics.dispose();
+			}
+		}
+
+		@Override
+		protected boolean render(Graphics2D graphics) {
+			final int width = getWidth(), height = getHeight();
+
+			// draw background if not null, otherwise leave transparent
+			if (backgroundColor != null) {
+				graphics.setColor(backgroundColor);
+				graphics.fillRect(0, 0, width, height);
+			}
+
+			graphics.setFont(font);
+			setHints(graphics);
+			List<TextNode> nodes = new ArrayList<TextNode>();
+			Dimension needed = layoutNodes(nodes, graphics.getFontMetrics());
+
+			// render as a 1x1 pixel if text is empty
+			if (needed == null) {
+				if (width == 1 && height == 1)
+					return true;
+				setWidth(1);
+				setHeight(1);
 				return false;
 			}
+			if (needed.width > width || needed.height > height) {
+				setWidth(needed.width);
+				setHeight(needed.height);
+				return false;
+			}
+			for (TextNode node : nodes)
+				node.getTextPainter().paint(node, graphics);
+			return true;
+		}
+
+		/** Renders SVG with text as outlined paths if vector is set, otherwise PNG. */
+		@Override
+		protected synchronized byte[] render() {
+			if (!vector)
+				return super.render();
+			try {
+				Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+				SVGGeneratorContext context = SVGGeneratorContext.createDefault(document);
+				context.setPrecision(SVG_PRECISION);
+				context.setComment(null);
+				SVGGraphics2D graphics = new SVGGraphics2D(context, true);
+				graphics.setFont(font);
+				setHints(graphics);
+				List<TextNode> nodes = new ArrayList<TextNode>();
+				Dimension size = layoutNodes(nodes, graphics.getFontMetrics());
+				if (size == null)
+					size = new Dimension(1, 1);
+				graphics.setSVGCanvasSize(size);
+				if (backgroundColor != null) {
+					graphics.setColor(backgroundColor);
+					graphics.fillRect(0, 0, size.width, size.height);
+				}
+				for (TextNode node : nodes)
+					node.getTextPainter().paint(node, graphics);
 
-			return true;		
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				graphics.stream(writer, false);
+				writer.close();
+				if (size.width != getWidth())
+					setWidth(size.width);
+				if (size.height != getHeight())
+					setHeight(size.height);
+				return out.toByteArray();
+			} catch (ParserConfigurationException e) {
+				throw new RuntimeException(e);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/** Reads dimensions from the root element of SVG data. */
+		@Override
+		protected Dimension readDimensions(byte[] data) {
+			if (data == null || data.length == 0 || data[0] != '<')
+				return super.readDimensions(data);
+			try {
+				Matcher root = svgRoot.matcher(new String(data, 0, Math.min(data.length, 4096), "UTF-8"));
+				if (!root.find())
+					return null;
+				Matcher width = svgWidth.matcher(root.group()), height = svgHeight.matcher(root.group());
+				return width.find() && height.find() ?
+						new Dimension(Integer.parseInt(width.group(1)), Integer.parseInt(height.group(1))) : null;
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
@@ -0,0 +1,25 @@
+package net.databinder.hib;
+
+import java.lang.reflect.Array;
+
+/**
+ * Helper for registering Hibernate event listeners after those already configured,
+ * as in <code>listeners.setPreInsertEventListeners(EventListenerArrays.append(
+ * listeners.getPreInsertEventListeners(), listener))</code>.
+ */
+public final class EventListenerArrays {
+	private EventListenerArrays() { }
+
+	/**
+	 * @param existing listeners already registered for an event type
+	 * @param listener listener to add
+	 * @return new array of the existing listeners followed by listener
+	 */
+	@SuppressWarnings("unchecked")
+	public static <L> L[] append(L[] existing, L listener) {
+		L[] listeners = (L[]) Array.newInstance(existing.getClass().getComponentType(), existing.length + 1);
+		System.arraycopy(existing, 0, listeners, 0, existing.length);
+		listeners[existing.length] = listener;
+		return listeners;
+	}
+}
@@ -19,9 +19,22 @@
 
 package net.databinder.models.hib;
 
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.persistence.Version;
 
@@ -30,6 +43,7 @@ import net.databinder.models.BindingModel;
 import net.databinder.models.LoadableWritableModel;
 
 import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.lang.WicketObjects;
 import org.hibernate.Criteria;
 import org.hibernate.Hibernate;
 import org.hibernate.Session;
@@ -40,21 +54,32 @@ import org.hibernate.proxy.HibernateProxyHelper;
  * entity ID, different types of queries, or an existing persistent object. As a writable Wicket model,
  * the object it contains may be swapped at any time for a different persistent object, a Serializable
  * object, or null.
+ * <p>This model writes a compact serialized form to keep its page store and session replication
+ * footprint small: the entity class is written once per stream and referenced by a short code
+ * after that, and common identifier types are written as primitives. Fields of subclasses are
+ * serialized as usual. Query and criteria builders must not
+ * hold a reference to an enclosing instance (as anonymous and non-static inner classes do),
+ * since that would drag the enclosing component graph along with the model; such builders
+ * are refused with a NotSerializableException.</p>
  * @author Nathan Hamblen
  */
 public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements BindingModel<T> {
-  private static final long serialVersionUID = 1L;
+  private static final long serialVersionUID = 2L;
 
-  private Class<T> objectClass;
-	private Serializable objectId;
-	private QueryBuilder queryBuilder;
-	private CriteriaBuilder criteriaBuilder;
+	private static final int HAS_CLASS = 1, HAS_QUERY = 2, HAS_CRITERIA = 4, HAS_RETAINED = 8,
+		HAS_FACTORY_KEY = 16, RETAIN_UNSAVED = 32;
+	private static final byte ID_NONE = 0, ID_LONG = 1, ID_INTEGER = 2, ID_STRING = 3, ID_OBJECT = 4;
+
+  private transient Class<T> objectClass;
+	private transient Serializable objectId;
+	private transient QueryBuilder queryBuilder;
+	private transient CriteriaBuilder criteriaBuilder;
 	/** May store unsaved objects between requests. */
-	private T retainedObject;
+	private transient T retainedObject;
 	/** Enable retaining unsaved objects between requests. */
-	private boolean retainUnsaved = true;
+	private transient boolean retainUnsaved = true;
 
-	private Object factoryKey;
+	private transient Object factoryKey;
 
 	/**
 	 * Create a model bound to the given class and entity id. If nothing matches
@@ -165,6 +190,20 @@ public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements
 		}
 	}
 
+	/**
+	 * @param entity object that may be contained in the current Hibernate session
+	 * @param factoryKey session factory key, or null for the default factory
+	 * @return key equal for any instance of the same entity (class, id, and factory key),
+	 * or null if the object is not persistent in the current session
+	 */
+	public static Object getIdentityKey(Object entity, Object factoryKey) {
+		Session sess = Databinder.getHibernateSession(factoryKey);
+		if (entity == null || !sess.contains(entity))
+			return null;
+		return Arrays.asList(HibernateProxyHelper.getClassWithoutInitializingProxy(entity),
+				sess.getIdentifier(entity), factoryKey);
+	}
+
 	public Serializable getIdentifier() {
 		return Databinder.getHibernateSession(factoryKey).getIdentifier(getObject());
 	}
@@ -314,4 +353,134 @@ public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements
 	public void setRetainUnsaved(boolean retainUnsaved) {
 		this.retainUnsaved = retainUnsaved;
 	}
+
+	/**
+	 * Writes a compact form of this model's binding information. The temporary model
+	 * object is never written; retained unsaved objects are written with standard serialization.
+	 * @throws NotSerializableException if a builder holds a reference to an enclosing instance
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		checkNoEnclosingInstance(queryBuilder);
+		checkNoEnclosingInstance(criteriaBuilder);
+		int flags = 0;
+		if (objectClass != null) flags |= HAS_CLASS;
+		if (queryBuilder != null) flags |= HAS_QUERY;
+		if (criteriaBuilder != null) flags |= HAS_CRITERIA;
+		if (retainedObject != null) flags |= HAS_RETAINED;
+		if (factoryKey != null) flags |= HAS_FACTORY_KEY;
+		if (retainUnsaved) flags |= RETAIN_UNSAVED;
+		out.writeByte(flags);
+
+		if (objectClass != null)
+			ClassCodes.write(out, objectClass);
+
+		if (objectId == null)
+			out.writeByte(ID_NONE);
+		else if (objectId instanceof Long) {
+			out.writeByte(ID_LONG);
+			out.writeLong((Long) objectId);
+		} else if (objectId instanceof Integer) {
+			out.writeByte(ID_INTEGER);
+			out.writeInt((Integer) objectId);
+		} else if (objectId instanceof String) {
+			out.writeByte(ID_STRING);
+			out.writeUTF((String) objectId);
+		} else {
+			out.writeByte(ID_OBJECT);
+			out.writeObject(objectId);
+		}
+
+		if (queryBuilder != null) out.writeObject(queryBuilder);
+		if (criteriaBuilder != null) out.writeObject(criteriaBuilder);
+		if (retainedObject != null) out.writeObject(retainedObject);
+		if (factoryKey != null) out.writeObject(factoryKey);
+	}
+
+	/** Reads the form written by writeObject(). */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int flags = in.readByte();
+		retainUnsaved = (flags & RETAIN_UNSAVED) != 0;
+
+		if ((flags & HAS_CLASS) != 0)
+			objectClass = (Class<T>) ClassCodes.read(in);
+
+		switch (in.readByte()) {
+		case ID_LONG: objectId = in.readLong(); break;
+		case ID_INTEGER: objectId = in.readInt(); break;
+		case ID_STRING: objectId = in.readUTF(); break;
+		case ID_OBJECT: objectId = (Serializable) in.readObject(); break;
+		}
+
+		if ((flags & HAS_QUERY) != 0) queryBuilder = (QueryBuilder) in.readObject();
+		if ((flags & HAS_CRITERIA) != 0) criteriaBuilder = (CriteriaBuilder) in.readObject();
+		if ((flags & HAS_RETAINED) != 0) retainedObject = (T) in.readObject();
+		if ((flags & HAS_FACTORY_KEY) != 0) factoryKey = in.readObject();
+	}
+
+	/**
+	 * Refuses builders that hold a reference to an enclosing instance, normally a component.
+	 * Binders of a QueryBinderBuilder are checked as well.
+	 * @throws NotSerializableException if builder is an anonymous or inner class with an outer instance
+	 */
+	static void checkNoEnclosingInstance(Object builder) throws NotSerializableException {
+		if (builder == null)
+			return;
+		for (Class<?> c = builder.getClass(); c != null; c = c.getSuperclass())
+			for (Field f : c.getDeclaredFields())
+				if (f.isSynthetic() && f.getName().startsWith("this$"))
+					throw new NotSerializableException(builder.getClass().getName() + " holds a reference to " +
+							"its enclosing instance; use a static nested or top-level class for model builders and binders.");
+		if (builder instanceof QueryBinderBuilder)
+			for (QueryBinder binder : ((QueryBinderBuilder)builder).getBinders())
+				checkNoEnclosingInstance(binder);
+	}
+
+	/**
+	 * Interns classes per object stream: the first occurrence of a class in a stream is written
+	 * with its name, later occurrences only as a short code. Since codes are local to a stream,
+	 * no registry needs to be shared between cluster nodes.
+	 */
+	private static class ClassCodes {
+		private static final Map<ObjectOutput, Map<Class<?>, Short>> written =
+			Collections.synchronizedMap(new WeakHashMap<ObjectOutput, Map<Class<?>, Short>>());
+		private static final Map<ObjectInput, List<Class<?>>> read =
+			Collections.synchronizedMap(new WeakHashMap<ObjectInput, List<Class<?>>>());
+
+		static void write(ObjectOutput out, Class<?> c) throws IOException {
+			Map<Class<?>, Short> codes = written.get(out);
+			if (codes == null)
+				written.put(out, codes = new HashMap<Class<?>, Short>());
+			Short code = codes.get(c);
+			if (code != null)
+				out.writeShort(code);
+			else if (codes.size() < Short.MAX_VALUE) {
+				code = (short) codes.size();
+				codes.put(c, code);
+				out.writeShort(code);
+				out.writeUTF(c.getName());
+			} else {
+				out.writeShort(-1);
+				out.writeUTF(c.getName());
+			}
+		}
+
+		static Class<?> read(ObjectInput in) throws IOException, ClassNotFoundException {
+			List<Class<?>> classes = read.get(in);
+			if (classes == null)
+				read.put(in, classes = new ArrayList<Class<?>>());
+			short code = in.readShort();
+			if (code >= 0 && code < classes.size())
+				return classes.get(code);
+			String name = in.readUTF();
+			Class<?> c = WicketObjects.resolveClass(name);
+			if (c == null)
+				throw new ClassNotFoundException(name);
+			if (code >= 0)
+				classes.add(c);
+			return c;
+		}
+	}
 }
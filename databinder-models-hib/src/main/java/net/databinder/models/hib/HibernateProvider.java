@@ -189,6 +189,12 @@ public class HibernateProvider<T> extends PropertyDataProvider<T> {
 		return new HibernateObjectModel<T>(object);
 	}
 
+	/** @return identity key of the entity, or null if it is not persistent */
+	@Override
+	protected Object modelKey(T object) {
+		return HibernateObjectModel.getIdentityKey(object, factoryKey);
+	}
+
 	/** does nothing */
 	@Override
   public void detach() {
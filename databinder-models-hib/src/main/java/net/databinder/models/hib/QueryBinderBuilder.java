@@ -40,4 +40,8 @@ public class QueryBinderBuilder implements QueryBuilder {
 			b.bind(q);
 		return q;
 	}
+	/** @return binders applied to the query */
+	QueryBinder[] getBinders() {
+		return binders;
+	}
 }
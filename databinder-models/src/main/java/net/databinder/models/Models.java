@@ -19,12 +19,53 @@
  
 package net.databinder.models;
 
+import java.util.HashMap;
+
+import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.model.IDetachable;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.request.cycle.RequestCycle;
 
 /**
  * Utility class for Databinder models.
  */
 public class Models {
+	/** Models shared by key for the current request cycle. */
+	private static final MetaDataKey<HashMap<Object, IModel<?>>> SHARED_MODELS =
+		new MetaDataKey<HashMap<Object, IModel<?>>>() {
+			private static final long serialVersionUID = 1L;
+		};
+
+	/**
+	 * @param key identifies the model's object, e.g. by class and id
+	 * @return model registered for key during the current request, or null if none
+	 * or no request cycle is available
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> IModel<T> getShared(Object key) {
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle == null)
+			return null;
+		HashMap<Object, IModel<?>> models = cycle.getMetaData(SHARED_MODELS);
+		return models == null ? null : (IModel<T>) models.get(key);
+	}
+
+	/**
+	 * Registers a model to be returned by getShared(key) for the remainder of
+	 * the current request. Does nothing if no request cycle is available.
+	 * @return the given model, for chaining
+	 */
+	public static <T> IModel<T> putShared(Object key, IModel<T> model) {
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle != null) {
+			HashMap<Object, IModel<?>> models = cycle.getMetaData(SHARED_MODELS);
+			if (models == null)
+				cycle.setMetaData(SHARED_MODELS, models = new HashMap<Object, IModel<?>>());
+			models.put(key, model);
+		}
+		return model;
+	}
+
 	/** Detaches any given objects that implement IDetachable */
 	public static void checkDetach(Object... objs) {
 			for (Object obj : objs)
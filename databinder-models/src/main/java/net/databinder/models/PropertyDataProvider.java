@@ -18,6 +18,8 @@
  */
 package net.databinder.models;
 
+import java.util.Arrays;
+
 import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.CompoundPropertyModel;
 import org.apache.wicket.model.IModel;
@@ -32,27 +34,64 @@ public abstract class PropertyDataProvider<T> implements IDataProvider<T> {
 
   /** Controls wrapping with a compound property model. */
 	private boolean wrapWithPropertyModel = true;
+	/** Controls sharing of item models for the same entity within a request. */
+	private boolean shareModels = false;
 
 	public PropertyDataProvider<T> setWrapWithPropertyModel(boolean wrapWithPropertyModel) {
 		this.wrapWithPropertyModel = wrapWithPropertyModel;
 		return this;
 	}
 
+	/**
+	 * When enabled, items for the same entity are given the same model instance for the
+	 * remainder of the request, including items of other providers and views that share
+	 * models. This saves model allocations on pages that show an entity in several places,
+	 * but changing the object of one item's model will change it for all of them.
+	 * @param shareModels true to share item models within a request
+	 * @return this, for chaining
+	 * @see Models#getShared(Object)
+	 */
+	public PropertyDataProvider<T> setShareModels(boolean shareModels) {
+		this.shareModels = shareModels;
+		return this;
+	}
+
 	/**
 	 * Wraps object in a persistent object model, and also CompoundPropertyModel if
-	 * wrapInCompoundModel is true.
+	 * wrapInCompoundModel is true. If models are shared, a model previously created
+	 * for the same entity in this request is returned instead.
 	 * @param object object DataView would like to wrap
 	 * @return object wrapped in a peristent model and possibly CompoundPropertyModel
 	 */
 	public IModel<T> model(T object) {
+		Object key = null;
+		if (shareModels) {
+			Object entityKey = modelKey(object);
+			if (entityKey != null) {
+				key = Arrays.asList(entityKey, wrapWithPropertyModel);
+				IModel<T> shared = Models.getShared(key);
+				if (shared != null)
+					return shared;
+			}
+		}
 		IModel<T> model = dataModel(object);
 		if (wrapWithPropertyModel)
 			model = new CompoundPropertyModel<T>(model);
-		return model;
+		return key == null ? model : Models.putShared(key, model);
 	}
 
 	/** Wrap in appropriate persistent model in subclass */
 	protected abstract IModel<T> dataModel(T object);
 
+	/**
+	 * Identifies the entity for model sharing. Returns null by default, which
+	 * disables sharing; override in persistence-specific subclasses.
+	 * @param object object DataView would like to wrap
+	 * @return key equal for all models of the same entity, or null if it may not be shared
+	 */
+	protected Object modelKey(T object) {
+		return null;
+	}
+
 	public void detach() { }
 }